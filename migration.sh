@@ -1,3 +1,4 @@
+#PARTITIONS=16 ./migration.sh for the hash partitioned room_media_sessions
 psql -h localhost -p 15432 -U postgres -c 'drop database if exists xxx;' && \
  psql -h localhost -p 15432 -U postgres -c 'create database xxx;' && \
- psql -h localhost -p 15432 -U postgres -d xxx -a -f ./migration.sql
+ psql -h localhost -p 15432 -U postgres -d xxx ${PARTITIONS:+-v partitions=$PARTITIONS} -a -f ./migration.sql
@@ -1,3 +1,5 @@
+create extension if not exists pg_stat_statements;
+
 create type room_media_session_state as enum (
     'CREATED',
     'FIRST_OFFER_RECEIVED',
@@ -8,7 +10,20 @@ create type room_media_session_state as enum (
 
 CREATE CAST (character varying AS room_media_session_state) WITH INOUT AS IMPLICIT;
 
-create table rooms (room_id text primary key, current_room_session_id text);
+--version is bumped by every statement that switches current_room_session_id
+create table rooms (room_id text primary key, current_room_session_id text, version bigint not null default 0);
+
+-- psql -v partitions=N hash partitions room_media_sessions by room_id into N partitions, see migration.sh.
+-- the primary key of a partitioned table has to include room_id, the DAO names the constraint in on conflict
+-- and filters every statement by room_id so only one partition is touched
+\if :{?partitions}
+\set partition_by 'partition by hash (room_id)'
+\set primary_key 'room_session_id, peer_id, room_id'
+\else
+\set partitions 0
+\set partition_by ''
+\set primary_key 'room_session_id, peer_id'
+\endif
 
 create table room_media_sessions
 (
@@ -20,8 +35,10 @@ create table room_media_sessions
     connected_at     timestamptz(3),
     disconnected_at  timestamptz(3),
     state            room_media_session_state not null,
+    --bumped on every update, compared and set by the optimistic upsert
+    version          bigint                   not null default 0,
 
-    CONSTRAINT pk_room_media_sessions_id PRIMARY KEY (room_session_id, peer_id),
+    CONSTRAINT pk_room_media_sessions_id PRIMARY KEY (:primary_key),
 
     CONSTRAINT check_room_media_sessions_state_requirements CHECK (
                 state = 'ARCHIVED' or
@@ -38,12 +55,19 @@ create table room_media_sessions
                     and created_at is not null and disconnected_at is not null
                     )
         )
-);
+) :partition_by;
+
+select format('create table room_media_sessions_p%s partition of room_media_sessions '
+                  'for values with (modulus %s, remainder %s)', r, :partitions, r)
+from generate_series(0, :partitions - 1) r
+\gexec
 
+-- created on the partitioned table, every partition gets indexes of its own
 CREATE INDEX if not exists idx_room_media_sessions_media_session_id ON room_media_sessions (peer_id);
 CREATE INDEX if not exists idx_room_media_sessions_room_id ON room_media_sessions (room_id, peer_id);
 
---this one is to quickly find stalled active sessions and deactivate them. validation is needed on every offer
+--this one is to quickly find stalled active sessions and deactivate them, see StalledSessionReaper.
+-- validation is needed on every offer
 CREATE INDEX if not exists idx_room_media_sessions_active_sessions ON room_media_sessions
     (room_id, room_session_id, created_at)
     where disconnected_at is null
@@ -56,3 +80,218 @@ CREATE INDEX if not exists idx_room_media_sessions_not_archived ON room_media_se
     where state not in ('ARCHIVED')
 ;
 
+--this one is to find finished sessions old enough to be moved to the history, see SessionArchiver
+CREATE INDEX if not exists idx_room_media_sessions_finished ON room_media_sessions
+    (coalesce(disconnected_at, created_at))
+    where state in ('DISCONNECTED', 'ARCHIVED')
+;
+
+-- finished media sessions moved out of room_media_sessions by SessionArchiver.
+-- append only: no keys, the same media session can be moved again once it's reused and finished
+create table if not exists room_media_sessions_history
+(
+    peer_id          text                     not null,
+    room_session_id  text                     not null,
+    room_id          text                     not null,
+    created_at       timestamptz(3)           not null,
+    first_offer_at   timestamptz(3),
+    connected_at     timestamptz(3),
+    disconnected_at  timestamptz(3),
+    state            room_media_session_state not null,
+    version          bigint                   not null,
+    archived_at      timestamptz(3)           not null default now()
+);
+
+CREATE INDEX if not exists idx_room_media_sessions_history_archived_at ON room_media_sessions_history
+    using brin (archived_at);
+
+-- an archived room session is still known, stale checks look it up here
+CREATE INDEX if not exists idx_room_media_sessions_history_room_session ON room_media_sessions_history
+    (room_id, room_session_id);
+
+
+-- server side versions of SampleService transitions. every call is one round trip and row locks
+-- are held only while the function runs.
+-- transition rules (target state, timestamps, states that may be overwritten) are still passed by the caller
+
+-- same as UPDATE_BASE_SQL. rms_unknown key updates only CREATED rows, just like UPDATE_CREATED_ROOM_SESSION
+create or replace function rms_update(
+    p_room_id text,
+    p_key_room_session_id text,
+    p_room_session_id text,
+    p_peer_id text,
+    p_created_at timestamptz,
+    p_first_offer_at timestamptz,
+    p_connected_at timestamptz,
+    p_disconnected_at timestamptz,
+    p_state room_media_session_state,
+    p_updated_states room_media_session_state[]
+) returns integer
+    language plpgsql as
+$$
+declare
+    v_updated integer;
+begin
+    update room_media_sessions
+    set created_at      = case when p_created_at > created_at
+                                   then created_at else coalesce(p_created_at, created_at) end,
+        first_offer_at  = case when p_first_offer_at > first_offer_at
+                                   then first_offer_at else coalesce(p_first_offer_at, first_offer_at) end,
+        connected_at    = case when p_connected_at > connected_at
+                                   then connected_at else coalesce(p_connected_at, connected_at) end,
+        disconnected_at = case when p_disconnected_at > disconnected_at
+                                   then disconnected_at else coalesce(p_disconnected_at, disconnected_at) end,
+        state           = case when state = any (p_updated_states) then p_state else state end,
+        room_session_id = p_room_session_id,
+        version         = version + 1
+    where peer_id = p_peer_id
+      and room_id = p_room_id
+      and room_session_id = p_key_room_session_id
+      and (p_key_room_session_id <> 'rms_unknown' or state = 'CREATED');
+    get diagnostics v_updated = row_count;
+    return v_updated;
+end;
+$$;
+
+-- SampleService.upsertTransactionally: stale check, update/update/insert/update cascade, current room session
+create or replace function rms_upsert(
+    p_room_id text,
+    p_room_session_id text,
+    p_peer_id text,
+    p_created_at timestamptz,
+    p_first_offer_at timestamptz,
+    p_connected_at timestamptz,
+    p_disconnected_at timestamptz,
+    p_state room_media_session_state,
+    p_updated_states room_media_session_state[]
+) returns boolean
+    language plpgsql as
+$$
+declare
+    v_current_room_session_id text;
+    v_updated integer;
+begin
+    select current_room_session_id into v_current_room_session_id from rooms where room_id = p_room_id;
+    if v_current_room_session_id is not null
+        and v_current_room_session_id <> p_room_session_id
+        and (exists (select 1
+                     from room_media_sessions
+                     where room_id = p_room_id
+                       and room_session_id = p_room_session_id
+                       and state not in ('ARCHIVED', 'CREATED'))
+            or exists (select 1
+                       from room_media_sessions_history
+                       where room_id = p_room_id
+                         and room_session_id = p_room_session_id
+                         and state <> 'ARCHIVED')) then
+        return false;
+    end if;
+
+    v_updated := rms_update(p_room_id, p_room_session_id, p_room_session_id, p_peer_id, p_created_at,
+                            p_first_offer_at, p_connected_at, p_disconnected_at, p_state, p_updated_states);
+    if v_updated = 0 then
+        begin
+            v_updated := rms_update(p_room_id, 'rms_unknown', p_room_session_id, p_peer_id, p_created_at,
+                                    p_first_offer_at, p_connected_at, p_disconnected_at, p_state, p_updated_states);
+        exception
+            when integrity_constraint_violation then
+                -- someone else has already moved the CREATED row
+                v_updated := 0;
+        end;
+    end if;
+    if v_updated = 0 then
+        insert into room_media_sessions (peer_id, room_session_id, room_id, created_at, first_offer_at,
+                                         connected_at, disconnected_at, state)
+        values (p_peer_id, p_room_session_id, p_room_id, p_created_at, p_first_offer_at,
+                p_connected_at, p_disconnected_at, p_state)
+        on conflict on constraint pk_room_media_sessions_id do nothing;
+        get diagnostics v_updated = row_count;
+    end if;
+    if v_updated = 0 then
+        -- the row inserted concurrently is visible to the next statement
+        v_updated := rms_update(p_room_id, p_room_session_id, p_room_session_id, p_peer_id, p_created_at,
+                                p_first_offer_at, p_connected_at, p_disconnected_at, p_state, p_updated_states);
+    end if;
+    if v_updated = 0 then
+        raise exception 'Failed to update info on room media sessions. 0 rows updated. room_session_id: %, peer_id: %',
+            p_room_session_id, p_peer_id;
+    end if;
+
+    update rooms
+    set current_room_session_id = p_room_session_id,
+        version = version + case when current_room_session_id = p_room_session_id then 0 else 1 end
+    where room_id = p_room_id;
+    return true;
+end;
+$$;
+
+-- SampleService.offerReceived: room session liveness, disconnect of other room sessions, first offer upsert
+create or replace function rms_offer_received(
+    p_room_id text,
+    p_room_session_id text,
+    p_peer_id text,
+    p_created_at timestamptz,
+    p_first_offer_at timestamptz,
+    p_connected_at timestamptz,
+    p_disconnected_at timestamptz,
+    p_state room_media_session_state,
+    p_updated_states room_media_session_state[]
+) returns boolean
+    language plpgsql as
+$$
+declare
+    v_latest_room_session_id text;
+begin
+    select current_room_session_id into v_latest_room_session_id from rooms where room_id = p_room_id;
+    if v_latest_room_session_id is not null
+        and v_latest_room_session_id <> p_room_session_id
+        and (exists (select 1
+                     from room_media_sessions
+                     where room_id = p_room_id
+                       and room_session_id = p_room_session_id
+                       and state not in ('ARCHIVED', 'CREATED'))
+            or exists (select 1
+                       from room_media_sessions_history
+                       where room_id = p_room_id
+                         and room_session_id = p_room_session_id
+                         and state <> 'ARCHIVED')) then
+        return false;
+    end if;
+
+    with to_disconnect as (
+        select ctid as the_ctid
+        from room_media_sessions
+        where room_id = p_room_id
+          and room_session_id <> p_room_session_id
+          and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+          and disconnected_at is null
+        order by room_session_id, peer_id
+        for update
+    ),
+    being_disconnected as (
+        update room_media_sessions
+        set disconnected_at = p_created_at,
+            state = 'DISCONNECTED',
+            version = version + 1
+        -- ctids repeat across partitions, room_id picks the partition
+        where room_id = p_room_id
+          and ctid in (select the_ctid from to_disconnect)
+        returning peer_id, room_id
+    )
+    insert into room_media_sessions (peer_id, room_session_id, room_id, created_at, state)
+    select distinct peer_id, 'rms_unknown', room_id, p_created_at, 'CREATED'::room_media_session_state
+    from being_disconnected as bd
+    where not exists (
+        select 1 from room_media_sessions as rms
+        where ((rms.room_session_id = p_room_session_id
+                    and rms.state in ('FIRST_OFFER_RECEIVED', 'CONNECTED', 'DISCONNECTED'))
+            or (rms.room_session_id = 'rms_unknown' and rms.state in ('CREATED')))
+          and rms.peer_id = bd.peer_id
+          and rms.room_id = bd.room_id
+    )
+    on conflict on constraint pk_room_media_sessions_id do nothing;
+
+    return rms_upsert(p_room_id, p_room_session_id, p_peer_id, p_created_at, p_first_offer_at,
+                      p_connected_at, p_disconnected_at, p_state, p_updated_states);
+end;
+$$;
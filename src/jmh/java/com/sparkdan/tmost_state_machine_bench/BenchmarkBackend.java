@@ -0,0 +1,99 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Wires SampleService by hand, without a Spring context, against either the real
+ * Postgres DAO or {@link StubRoomMediaSessionDao}.
+ * Postgres connection settings are taken from bench.jdbc.* system properties and default
+ * to the docker-compose setup from application.properties.
+ */
+public class BenchmarkBackend implements AutoCloseable {
+
+    public static final String STUB = "stub";
+    public static final String POSTGRES = "postgres";
+
+    private final HikariDataSource dataSource;
+    private final RoomMediaSessionDao dao;
+    private final SampleService sampleService;
+
+    public BenchmarkBackend(String backend, int poolSize) {
+        PlatformTransactionManager transactionManager;
+        switch (backend) {
+            case STUB -> {
+                dataSource = null;
+                dao = new StubRoomMediaSessionDao();
+                transactionManager = new NoopTransactionManager();
+            }
+            case POSTGRES -> {
+                dataSource = new HikariDataSource();
+                dataSource.setJdbcUrl(System.getProperty("bench.jdbc.url", "jdbc:postgresql://localhost:15432/xxx"));
+                dataSource.setUsername(System.getProperty("bench.jdbc.username", "postgres"));
+                dataSource.setPassword(System.getProperty("bench.jdbc.password", "password"));
+                dataSource.setMaximumPoolSize(poolSize);
+                dao = new JdbcRoomMediaSessionDao(
+                        new JdbcTemplate(dataSource),
+                        new NamedParameterJdbcTemplate(dataSource)
+                );
+                transactionManager = new DataSourceTransactionManager(dataSource);
+            }
+            default -> throw new IllegalArgumentException("Unknown benchmark backend " + backend);
+        }
+
+        sampleService = new SampleService();
+        sampleService.meterRegistry = new SimpleMeterRegistry();
+        sampleService.roomMediaSessionDao = dao;
+        sampleService.transactionTemplate = new TransactionTemplate(transactionManager);
+        sampleService.roomSessionCache = new RoomSessionCache();
+        sampleService.roomSessionCache.meterRegistry = sampleService.meterRegistry;
+        sampleService.roomSessionCache.registerMeters();
+        sampleService.transitionRecorder = new TransitionRecorder();
+        sampleService.callTracer = new CallTracer();
+        sampleService.callTracer.meterRegistry = sampleService.meterRegistry;
+        sampleService.optimisticUpsertStrategy = new OptimisticUpsertStrategy();
+        sampleService.optimisticUpsertStrategy.meterRegistry = sampleService.meterRegistry;
+        sampleService.optimisticUpsertStrategy.roomMediaSessionDao = dao;
+        sampleService.optimisticUpsertStrategy.transactionTemplate = sampleService.transactionTemplate;
+        sampleService.optimisticUpsertStrategy.registerMeters();
+        sampleService.registerMeters();
+    }
+
+    public RoomMediaSessionDao getDao() {
+        return dao;
+    }
+
+    public SampleService getSampleService() {
+        return sampleService;
+    }
+
+    @Override
+    public void close() {
+        if (dataSource != null) {
+            dataSource.close();
+        }
+    }
+
+    private static class NoopTransactionManager implements PlatformTransactionManager {
+        @Override
+        public TransactionStatus getTransaction(TransactionDefinition definition) {
+            return new SimpleTransactionStatus();
+        }
+
+        @Override
+        public void commit(TransactionStatus status) {
+        }
+
+        @Override
+        public void rollback(TransactionStatus status) {
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs every benchmark once per thread count listed in the jmh.threads system property.
+ * Benchmark name regexps can be passed as arguments, e.g. "SampleServiceBenchmark.offerReceived".
+ * Backends are listed in the jmh.backend property, -Djmh.backend=stub runs without Postgres.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws RunnerException {
+        String[] threadCounts = System.getProperty("jmh.threads", "1,4,16").split(",");
+        String[] backends = StringUtils.split(System.getProperty("jmh.backend", ""), ",");
+
+        for (String threadCount : threadCounts) {
+            int threads = Integer.parseInt(threadCount.trim());
+            ChainedOptionsBuilder options = new OptionsBuilder()
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.CSV)
+                    .result(String.format("target/jmh_threads_%d.csv", threads));
+            if (args.length == 0) {
+                options.include(SampleServiceBenchmark.class.getSimpleName())
+                        .include(RoomMediaSessionDaoBenchmark.class.getSimpleName());
+            }
+            for (String include : args) {
+                options.include(include);
+            }
+            if (backends.length > 0) {
+                options.param("backend", backends);
+            }
+            new Runner(options.build()).run();
+        }
+    }
+}
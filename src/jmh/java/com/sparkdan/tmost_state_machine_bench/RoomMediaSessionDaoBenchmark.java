@@ -0,0 +1,126 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.Instant;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CREATED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_DISCONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_FIRST_OFFER_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_PEER_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_STATE;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_VERSION;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_BY_ROOM_SESSION_ID_STATEMENT;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.ARCHIVED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+
+/**
+ * Row mapping and parameter binding of the DAO. Both are pure JVM work, so there is no
+ * database backend here: a canned in-memory ResultSet stands in for the driver.
+ * Run with -prof gc to see allocation per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomMediaSessionDaoBenchmark {
+
+    private JdbcRoomMediaSessionDao dao;
+    private ResultSet connectedRow;
+    private UpsertRMSRequest connectedRequest;
+    private PreparedStatement discardingStatement;
+
+    @Setup
+    public void setUp() {
+        dao = new JdbcRoomMediaSessionDao(null, null);
+
+        Timestamp now = new Timestamp(System.currentTimeMillis());
+        Map<String, Object> row = new HashMap<>();
+        row.put(COL_ROOM_ID, UUID.randomUUID().toString());
+        row.put(COL_ROOM_SESSION_ID, UUID.randomUUID().toString());
+        row.put(COL_PEER_ID, UUID.randomUUID().toString());
+        row.put(COL_CREATED_AT, now);
+        row.put(COL_FIRST_OFFER_AT, now);
+        row.put(COL_CONNECTED_AT, now);
+        row.put(COL_DISCONNECTED_AT, null);
+        row.put(COL_STATE, CONNECTED.toString());
+        row.put(COL_VERSION, 3L);
+        connectedRow = cannedRow(row);
+        discardingStatement = (PreparedStatement) Proxy.newProxyInstance(
+                RoomMediaSessionDaoBenchmark.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> null
+        );
+
+        Instant instant = Instant.now();
+        connectedRequest = UpsertRMSRequest.builder()
+                .roomId(UUID.randomUUID().toString())
+                .roomSessionId(UUID.randomUUID().toString())
+                .peerId(UUID.randomUUID().toString())
+                .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED))
+                .newState(CONNECTED)
+                .newCreatedAt(instant)
+                .newFirstOfferAt(instant)
+                .newConnectedAt(instant)
+                .build();
+    }
+
+    private static ResultSet cannedRow(Map<String, Object> row) {
+        return (ResultSet) Proxy.newProxyInstance(
+                RoomMediaSessionDaoBenchmark.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "getString", "getTimestamp", "getObject", "getLong" -> row.get((String) args[0]);
+                    case "wasNull" -> false;
+                    default -> throw new UnsupportedOperationException(method.getName());
+                }
+        );
+    }
+
+    @Benchmark
+    public RoomMediaSessionDto parseRow() {
+        return dao.parseRow(connectedRow);
+    }
+
+    @Benchmark
+    public MapSqlParameterSource fromUpsertRMSRequest() {
+        return dao.fromUpsertRMSRequest(connectedRequest);
+    }
+
+    /**
+     * What the update cascade does per statement instead of {@link #fromUpsertRMSRequest()}.
+     */
+    @Benchmark
+    public String bindUpsertStatement() throws SQLException {
+        UpsertStatement statement = UPDATE_BY_ROOM_SESSION_ID_STATEMENT;
+        statement.bind(discardingStatement, connectedRequest);
+        return statement.sql(connectedRequest);
+    }
+}
@@ -0,0 +1,89 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-call cost of the SampleService transitions.
+ * The stub backend shows the JVM-side overhead, the postgres one adds the database round trips on top.
+ * Every benchmark thread works in its own room so that threads don't contend on the same rows.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SampleServiceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Backend {
+        @Param({BenchmarkBackend.STUB, BenchmarkBackend.POSTGRES})
+        public String backend;
+
+        @Param({"40"})
+        public int poolSize;
+
+        BenchmarkBackend wired;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            wired = new BenchmarkBackend(backend, poolSize);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            wired.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Room {
+        String roomId;
+        String roomSessionId;
+        String peerId;
+        long peerCounter;
+
+        @Setup(Level.Trial)
+        public void setUp(Backend backend) {
+            roomId = UUID.randomUUID().toString();
+            roomSessionId = UUID.randomUUID().toString();
+            peerId = UUID.randomUUID().toString();
+            backend.wired.getDao().createRoom(roomId);
+            backend.wired.getSampleService().createSession(roomId, peerId);
+        }
+    }
+
+    @Benchmark
+    public void createSession(Backend backend, Room room) {
+        backend.wired.getSampleService().createSession(room.roomId, room.roomId + "-" + room.peerCounter++);
+    }
+
+    @Benchmark
+    public boolean offerReceived(Backend backend, Room room) {
+        return backend.wired.getSampleService().offerReceived(room.roomId, room.peerId, room.roomSessionId);
+    }
+
+    @Benchmark
+    public boolean connected(Backend backend, Room room) {
+        return backend.wired.getSampleService().connected(room.roomId, room.peerId, room.roomSessionId);
+    }
+
+    @Benchmark
+    public boolean disconnected(Backend backend, Room room) {
+        return backend.wired.getSampleService().disconnected(room.roomId, room.peerId, room.roomSessionId);
+    }
+}
@@ -0,0 +1,182 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Answers every call in-process without touching the database, so that benchmarks
+ * against it measure only the JVM side of SampleService: request building, timers, throttling.
+ * Every room is reported as having no current room session and every update as touching one row.
+ */
+public class StubRoomMediaSessionDao implements RoomMediaSessionDao {
+
+    @Nullable
+    @Override
+    public RoomMediaSessionDto findByPrimaryKey(String roomId, @Nullable String roomSessionId, String peer_id) {
+        return null;
+    }
+
+    @Nullable
+    @Override
+    public String getLatestRoomSessionId(String roomId) {
+        return null;
+    }
+
+    @Override
+    public void setLatestRoomSessionId(String roomId, String roomSessionId) {
+    }
+
+    @Override
+    public boolean isBrandNewRoomSession(String roomId, String roomSessionId) {
+        return true;
+    }
+
+    @Override
+    public RoomSessionSnapshot readRoomSessionSnapshot(String roomId, String roomSessionId,
+                                                       boolean withOtherActiveRoomSessions) {
+        return new RoomSessionSnapshot(null, true, Collections.emptyList());
+    }
+
+    @Override
+    public void createRoom(String roomId) {
+    }
+
+    @Override
+    public void created(String roomId, String peerId) {
+    }
+
+    @Override
+    public void created(String roomId, Collection<String> peerIds) {
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreate(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreateWithoutLocking(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public RoomMediaSessionDto insert(RoomMediaSessionDto roomMediaSessionDto) {
+        return roomMediaSessionDto;
+    }
+
+    @Override
+    public Collection<String> findOtherActiveRoomSessions(String roomId, String roomSessionId) {
+        return Collections.emptyList();
+    }
+
+    @Override
+    public boolean isConnected(String mediaSessionId) {
+        return false;
+    }
+
+    @Override
+    public void selectRoomIdForUpdate(String roomId) {
+    }
+
+    @Override
+    public void advisoryLockRoom(String roomId, int namespace, int keySpace, long timeoutMillis) {
+    }
+
+    @Override
+    public VersionedRoom readVersionedRoom(String roomId) {
+        return new VersionedRoom(null, 0);
+    }
+
+    @Override
+    public int compareAndSetLatestRoomSessionId(String roomId, String roomSessionId, long expectedVersion) {
+        return 1;
+    }
+
+    @Override
+    public int compareAndSetRoomMediaSession(UpsertRMSRequest upsertRMSRequest, String expectedRoomSessionId,
+                                             long expectedVersion, long expectedRoomVersion) {
+        return 1;
+    }
+
+    @Override
+    public int compareAndInsertRoomMediaSession(UpsertRMSRequest upsertRMSRequest, long expectedRoomVersion) {
+        return 1;
+    }
+
+    @Override
+    public int updateByRoomSessionId(UpsertRMSRequest upsertRMSRequest) {
+        return 1;
+    }
+
+    @Override
+    public int updateByRoomSessionIdAndSetLatest(UpsertRMSRequest upsertRMSRequest) {
+        return 1;
+    }
+
+    @Override
+    public int updateCreatedRoomSession(UpsertRMSRequest upsertRMSRequest) {
+        return 1;
+    }
+
+    @Override
+    public int insertOrDoNothing(UpsertRMSRequest upsertRMSRequest) {
+        return 1;
+    }
+
+    @Override
+    public UpsertOutcome upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        return UpsertOutcome.ACCEPTED;
+    }
+
+    @Override
+    public int[] upsertInBatch(List<UpsertRMSRequest> upsertRMSRequests) {
+        int[] result = new int[upsertRMSRequests.size()];
+        Arrays.fill(result, 1);
+        return result;
+    }
+
+    @Override
+    public Map<String, UpsertOutcome> upsertFirstOffers(String roomId, String roomSessionId,
+                                                        Collection<String> peerIds) {
+        Map<String, UpsertOutcome> outcomes = new LinkedHashMap<>();
+        peerIds.forEach(peerId -> outcomes.put(peerId, UpsertOutcome.ACCEPTED));
+        return outcomes;
+    }
+
+    @Override
+    public boolean offerReceivedServerSide(UpsertRMSRequest firstOfferRequest) {
+        return true;
+    }
+
+    @Override
+    public boolean upsertServerSide(UpsertRMSRequest upsertRMSRequest) {
+        return true;
+    }
+
+    @Override
+    public ReapedSessions reapStalledSessions(int batchSize, long createdBeforeMillis, long offeredBeforeMillis) {
+        return new ReapedSessions(0, 0, 0);
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByMediaSessionId(String peerId) {
+        return 0;
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByPeerId(String peerId) {
+        return 0;
+    }
+}
@@ -0,0 +1,27 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Gaps between the arrivals of {@link OpenLoopLoadGenerator}.
+ */
+public enum ArrivalProcess {
+    FIXED {
+        @Override
+        long nextIntervalNanos(double ratePerSecond) {
+            return (long) (1_000_000_000 / ratePerSecond);
+        }
+    },
+    /**
+     * Exponentially distributed gaps, independent arrivals at the given average rate.
+     */
+    POISSON {
+        @Override
+        long nextIntervalNanos(double ratePerSecond) {
+            double uniform = 1.0 - ThreadLocalRandom.current().nextDouble();
+            return (long) (-Math.log(uniform) * 1_000_000_000 / ratePerSecond);
+        }
+    };
+
+    abstract long nextIntervalNanos(double ratePerSecond);
+}
@@ -0,0 +1,55 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a single {@link SampleService} transition did on the database: round trips, time spent in every
+ * {@link RoomMediaSessionDao} method and waiting for a pool connection, whether the upsert had to retry.
+ * Bound to the thread running the transition, which is the lane thread in {@link UpsertMode#LANES}.
+ */
+class CallTrace {
+
+    private static final ThreadLocal<CallTrace> CURRENT = new ThreadLocal<>();
+
+    record DaoCall(String method, long nanos) {
+    }
+
+    int roundTrips;
+    long acquireNanos;
+    boolean retried;
+    final List<DaoCall> daoCalls = new ArrayList<>(8);
+
+    static CallTrace current() {
+        return CURRENT.get();
+    }
+
+    static void bind(CallTrace trace) {
+        CURRENT.set(trace);
+    }
+
+    static void unbind() {
+        CURRENT.remove();
+    }
+
+    static void roundTrip() {
+        CallTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.roundTrips++;
+        }
+    }
+
+    static void connectionAcquired(long nanos) {
+        CallTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.acquireNanos += nanos;
+        }
+    }
+
+    static void retried() {
+        CallTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.retried = true;
+        }
+    }
+}
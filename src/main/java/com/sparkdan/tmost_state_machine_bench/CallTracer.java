@@ -0,0 +1,126 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.Setter;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Publishes {@link CallTrace}s, so a slow transition can be blamed on a DAO method, on the pool or on
+ * the extra statements of a retry:
+ * <ul>
+ *     <li>sampleservice.roundtrips: round trips of a transition</li>
+ *     <li>sampleservice.connection.acquire: time a transition waited for pool connections</li>
+ *     <li>dao.method: every RoomMediaSessionDao call</li>
+ * </ul>
+ * All of them are tagged by transition, strategy (the upsert mode) and outcome: accepted, stale, retry or failed.
+ * DAO calls made outside of a transition, e.g. by the write-behind flusher, are tagged none.
+ * <p>
+ * Off unless calltrace.enabled=true: the tracing runs inside the latency it measures. The meters are
+ * registered once per tag combination and looked up from a map after that.
+ */
+@Service
+public class CallTracer {
+
+    static final String NONE = "none";
+
+    private static final TransitionKey OUTSIDE_OF_TRANSITIONS = new TransitionKey(null, null, NONE);
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Setter
+    @Value("${calltrace.enabled:false}")
+    private boolean enabled = false;
+
+    private record TransitionKey(@Nullable TransitionType transition, @Nullable UpsertMode strategy, String outcome) {
+
+        Tags tags() {
+            return Tags.of(
+                    "transition", transition == null ? NONE : transition.getLabel(),
+                    "strategy", strategy == null ? NONE : strategy.name().toLowerCase(),
+                    "outcome", outcome
+            );
+        }
+    }
+
+    private record MethodKey(TransitionKey transition, String method) {
+    }
+
+    private record TransitionMeters(DistributionSummary roundTrips, Timer connectionAcquire) {
+    }
+
+    private final Map<TransitionKey, TransitionMeters> transitionMeters = new ConcurrentHashMap<>();
+
+    private final Map<MethodKey, Timer> daoMethodTimers = new ConcurrentHashMap<>();
+
+    public <T> T trace(TransitionType transition, UpsertMode upsertMode, Callable<T> call) throws Exception {
+        if (!enabled || CallTrace.current() != null) {
+            return call.call();
+        }
+        CallTrace trace = new CallTrace();
+        CallTrace.bind(trace);
+        String outcome = "failed";
+        try {
+            T result = call.call();
+            outcome = Boolean.FALSE.equals(result) ? "stale" : trace.retried ? "retry" : "accepted";
+            return result;
+        } finally {
+            CallTrace.unbind();
+            publish(trace, new TransitionKey(transition, upsertMode, outcome));
+        }
+    }
+
+    void daoCall(String method, long nanos) {
+        CallTrace trace = CallTrace.current();
+        if (trace != null) {
+            trace.daoCalls.add(new CallTrace.DaoCall(method, nanos));
+            return;
+        }
+        daoMethodTimer(new MethodKey(OUTSIDE_OF_TRANSITIONS, method)).record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    private void publish(CallTrace trace, TransitionKey key) {
+        TransitionMeters meters = transitionMeters.computeIfAbsent(key, this::transitionMeters);
+        meters.roundTrips().record(trace.roundTrips);
+        meters.connectionAcquire().record(trace.acquireNanos, TimeUnit.NANOSECONDS);
+        for (CallTrace.DaoCall daoCall : trace.daoCalls) {
+            daoMethodTimer(new MethodKey(key, daoCall.method())).record(daoCall.nanos(), TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private TransitionMeters transitionMeters(TransitionKey key) {
+        return new TransitionMeters(
+                DistributionSummary.builder("sampleservice.roundtrips")
+                        .tags(key.tags())
+                        .publishPercentiles(0.5, 0.9, 0.99)
+                        .distributionStatisticExpiry(Duration.ofSeconds(30))
+                        .register(meterRegistry),
+                Timer.builder("sampleservice.connection.acquire")
+                        .tags(key.tags())
+                        .publishPercentiles(0.5, 0.9, 0.99)
+                        .distributionStatisticExpiry(Duration.ofSeconds(30))
+                        .register(meterRegistry)
+        );
+    }
+
+    private Timer daoMethodTimer(MethodKey key) {
+        return daoMethodTimers.computeIfAbsent(key, k -> Timer.builder("dao.method")
+                .tag("method", k.method())
+                .tags(k.transition().tags())
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry));
+    }
+}
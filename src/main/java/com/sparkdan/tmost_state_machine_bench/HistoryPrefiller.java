@@ -0,0 +1,106 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import org.intellij.lang.annotations.Language;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Fills the database with finished rooms, so the suites run against tables and indexes of production size
+ * instead of an empty database.
+ * History rooms are named history-N, {@link #fillTo(long)} only adds the ones that aren't there yet.
+ * Their media sessions are ARCHIVED or DISCONNECTED, so they stay out of the active sessions index and,
+ * when archived, out of the not archived one.
+ */
+@Service
+@Slf4j
+public class HistoryPrefiller {
+
+    @Language("SQL")
+    private static final String INSERT_ROOMS = """
+            insert into rooms (room_id, current_room_session_id)
+            select 'history-' || r, 'history-' || r || '-' || (:sessions_per_room - 1)
+            from generate_series(:from_room, :to_room) r
+            on conflict do nothing
+            """;
+
+    /**
+     * Room sessions an hour apart, the last one ending a minute per room before now.
+     */
+    @Language("SQL")
+    private static final String INSERT_MEDIA_SESSIONS = """
+            insert into room_media_sessions (
+                peer_id, room_session_id, room_id,
+                created_at, first_offer_at, connected_at, disconnected_at, state
+            )
+            select 'history-' || r || '-peer-' || p,
+                   'history-' || r || '-' || s,
+                   'history-' || r,
+                   t.started, t.started + interval '1 second', t.started + interval '2 seconds',
+                   t.started + interval '50 minutes',
+                   cast(case when random() * 100 < :archived_percent then 'ARCHIVED' else 'DISCONNECTED' end
+                       as room_media_session_state)
+            from generate_series(:from_room, :to_room) r,
+                 generate_series(0, :sessions_per_room - 1) s,
+                 generate_series(0, :peers_per_room - 1) p,
+                 lateral (
+                     select now() - (:total_rooms - r) * interval '1 minute'
+                                  - (:sessions_per_room - s) * interval '1 hour' as started
+                 ) t
+            on conflict do nothing
+            """;
+
+    @Autowired
+    NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    @Value("${history.peers.per.room:10}")
+    int peersPerRoom = 10;
+
+    @Value("${history.sessions.per.room:3}")
+    int sessionsPerRoom = 3;
+
+    @Value("${history.archived.percent:90}")
+    int archivedPercent = 90;
+
+    /**
+     * Rooms per statement, one statement is one transaction.
+     */
+    @Value("${history.batch.rooms:10000}")
+    int batchRooms = 10000;
+
+    public void fillTo(long rooms) {
+        Long existing = namedJdbcTemplate.queryForObject(
+                "select count(*) from rooms where room_id like 'history-%'",
+                Map.of(),
+                Long.class
+        );
+        long from = existing == null ? 0 : existing;
+        if (from >= rooms) {
+            return;
+        }
+
+        log.info("Filling history from {} to {} rooms, {} media sessions each",
+                from, rooms, peersPerRoom * sessionsPerRoom);
+        long start = System.currentTimeMillis();
+        for (; from < rooms; from += batchRooms) {
+            Map<String, Object> params = Map.of(
+                    "from_room", from,
+                    "to_room", Math.min(from + batchRooms, rooms) - 1,
+                    "total_rooms", rooms,
+                    "sessions_per_room", sessionsPerRoom,
+                    "peers_per_room", peersPerRoom,
+                    "archived_percent", archivedPercent
+            );
+            namedJdbcTemplate.update(INSERT_ROOMS, params);
+            namedJdbcTemplate.update(INSERT_MEDIA_SESSIONS, params);
+            log.debug("Filled history up to {} rooms", Math.min(from + batchRooms, rooms));
+        }
+        //the suite shouldn't start with autovacuum catching up on the bulk load
+        namedJdbcTemplate.getJdbcTemplate().execute("vacuum analyze rooms, room_media_sessions");
+        log.info("Filled history of {} rooms in {} ms", rooms, System.currentTimeMillis() - start);
+    }
+}
@@ -0,0 +1,769 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import jakarta.annotation.Nonnull;
+import lombok.ToString;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.stereotype.Service;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.ARCHIVED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+
+/**
+ * Pure in-JVM implementation of the room media session state machine, enabled with dao.engine=memory.
+ * Shows the throughput ceiling of the state machine logic without the database and can serve
+ * as a hot tier for rooms owned by a single node.
+ * <p>
+ * Every room is guarded by one lock out of a fixed set of stripes, and every method runs atomically
+ * under the lock of the room it touches. That makes {@link #selectRoomIdForUpdate(String)} a plain
+ * existence check: there is nothing left to serialize once a single call returns.
+ * A peer is assumed to belong to a single room, which is what the service always does.
+ */
+@Service
+@ConditionalOnProperty(name = "dao.engine", havingValue = "memory")
+@Slf4j
+public class InMemoryRoomMediaSessionStore implements RoomMediaSessionDao {
+
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private final ReentrantLock[] stripes;
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> peerRooms = new ConcurrentHashMap<>();
+
+    public InMemoryRoomMediaSessionStore(@Value("${dao.memory.lock.stripes:256}") int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    private static class Room {
+        private final String roomId;
+        private volatile String currentRoomSessionId;
+        //guarded by the room stripe
+        private long version;
+        //peer_id -> room_session_id -> row, guarded by the room stripe
+        private final Map<String, Map<String, Row>> peers = new HashMap<>();
+
+        private Room(String roomId) {
+            this.roomId = roomId;
+        }
+    }
+
+    @ToString
+    private static class Row {
+        private final String roomId;
+        private final String peerId;
+        private String roomSessionId;
+        private long createdAt = NO_TIME;
+        private long firstOfferAt = NO_TIME;
+        private long connectedAt = NO_TIME;
+        private long disconnectedAt = NO_TIME;
+        private RoomMediaSessionState state;
+        private long version;
+
+        private Row(String roomId, String peerId, String roomSessionId) {
+            this.roomId = roomId;
+            this.peerId = peerId;
+            this.roomSessionId = roomSessionId;
+        }
+
+        private Row copy() {
+            Row copy = new Row(roomId, peerId, roomSessionId);
+            copy.createdAt = createdAt;
+            copy.firstOfferAt = firstOfferAt;
+            copy.connectedAt = connectedAt;
+            copy.disconnectedAt = disconnectedAt;
+            copy.state = state;
+            copy.version = version;
+            return copy;
+        }
+
+        private boolean isActive() {
+            return (state == FIRST_OFFER_RECEIVED || state == CONNECTED) && disconnectedAt == NO_TIME;
+        }
+    }
+
+    private ReentrantLock stripe(String roomId) {
+        int h = roomId.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    private <T> T inRoom(String roomId, T noRoomResult, Function<Room, T> action) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            return noRoomResult;
+        }
+        ReentrantLock lock = stripe(roomId);
+        lock.lock();
+        try {
+            return action.apply(room);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private <T> T inExistingRoom(String roomId, Function<Room, T> action) {
+        if (!rooms.containsKey(roomId)) {
+            throw new DataIntegrityViolationException(String.format(
+                    "insert or update on table \"room_media_sessions\" violates foreign key constraint. room_id=%s",
+                    roomId
+            ));
+        }
+        return inRoom(roomId, null, action);
+    }
+
+    @Nullable
+    private static Row row(Room room, String peerId, String roomSessionId) {
+        Map<String, Row> peerRows = room.peers.get(peerId);
+        return peerRows == null ? null : peerRows.get(roomSessionId);
+    }
+
+    private void put(Room room, Row row) {
+        room.peers.computeIfAbsent(row.peerId, p -> new HashMap<>(4)).put(row.roomSessionId, row);
+        peerRooms.putIfAbsent(row.peerId, room.roomId);
+    }
+
+    private static void checkStateRequirements(Row row) {
+        boolean knownSession = !UNKNOWN_ROOM_SESSION_ID.equals(row.roomSessionId);
+        boolean created = row.createdAt != NO_TIME;
+        boolean valid = switch (row.state) {
+            case ARCHIVED -> true;
+            case CREATED -> !knownSession && created && row.firstOfferAt == NO_TIME
+                            && row.connectedAt == NO_TIME && row.disconnectedAt == NO_TIME;
+            case FIRST_OFFER_RECEIVED -> knownSession && created && row.firstOfferAt != NO_TIME
+                                         && row.connectedAt == NO_TIME && row.disconnectedAt == NO_TIME;
+            case CONNECTED -> knownSession && created && row.connectedAt != NO_TIME
+                              && row.disconnectedAt == NO_TIME;
+            case DISCONNECTED -> knownSession && created && row.disconnectedAt != NO_TIME;
+        };
+        if (!valid) {
+            throw new DataIntegrityViolationException(
+                    "new row violates check constraint check_room_media_sessions_state_requirements: " + row
+            );
+        }
+    }
+
+    private static long millis(@Nullable Instant instant) {
+        return instant == null ? NO_TIME : instant.getMillis();
+    }
+
+    @Nullable
+    private static Instant instant(long millis) {
+        return millis == NO_TIME ? null : new Instant(millis);
+    }
+
+    //same as the case expressions of UPDATE_BASE_SQL: the earliest known timestamp wins
+    private static long earliest(long current, @Nullable Instant requested) {
+        if (requested == null) {
+            return current;
+        }
+        long requestedMillis = requested.getMillis();
+        return current == NO_TIME || requestedMillis <= current ? requestedMillis : current;
+    }
+
+    private static RoomMediaSessionDto toDto(Row row) {
+        return new RoomMediaSessionDto(
+                row.roomId,
+                row.peerId,
+                UNKNOWN_ROOM_SESSION_ID.equals(row.roomSessionId) ? null : row.roomSessionId,
+                instant(row.createdAt),
+                instant(row.firstOfferAt),
+                instant(row.connectedAt),
+                instant(row.disconnectedAt),
+                row.state,
+                row.version
+        );
+    }
+
+    /**
+     * Applies UPDATE_BASE_SQL to the row, moving it to the room session of the request.
+     * Nothing is changed if the result violates the table constraints.
+     */
+    private void update(Room room, Row current, UpsertRMSRequest request) {
+        Row updated = current.copy();
+        updated.createdAt = earliest(current.createdAt, request.getNewCreatedAt());
+        updated.firstOfferAt = earliest(current.firstOfferAt, request.getNewFirstOfferAt());
+        updated.connectedAt = earliest(current.connectedAt, request.getNewConnectedAt());
+        updated.disconnectedAt = earliest(current.disconnectedAt, request.getNewDisconnectedAt());
+        if (request.getUpdatedStates().contains(current.state)) {
+            updated.state = request.getNewState();
+        }
+        updated.roomSessionId = request.getRoomSessionId();
+        updated.version = current.version + 1;
+
+        boolean moved = !updated.roomSessionId.equals(current.roomSessionId);
+        if (moved && row(room, current.peerId, updated.roomSessionId) != null) {
+            throw new DuplicateKeyException(
+                    "duplicate key value violates unique constraint pk_room_media_sessions_id: " + updated
+            );
+        }
+        checkStateRequirements(updated);
+
+        if (moved) {
+            room.peers.get(current.peerId).remove(current.roomSessionId);
+        }
+        put(room, updated);
+    }
+
+    @Nullable
+    @Override
+    public RoomMediaSessionDto findByPrimaryKey(String roomId, @Nullable String roomSessionId, String peer_id) {
+        return inRoom(roomId, null, room -> {
+            Row row = row(room, peer_id, ObjectUtils.defaultIfNull(roomSessionId, UNKNOWN_ROOM_SESSION_ID));
+            return row == null ? null : toDto(row);
+        });
+    }
+
+    @Nullable
+    @Override
+    public String getLatestRoomSessionId(String roomId) {
+        Room room = rooms.get(roomId);
+        if (room == null) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return room.currentRoomSessionId;
+    }
+
+    @Override
+    public void setLatestRoomSessionId(@Nonnull String roomId, @Nonnull String roomSessionId) {
+        inRoom(roomId, null, room -> {
+            if (!roomSessionId.equals(room.currentRoomSessionId)) {
+                room.currentRoomSessionId = roomSessionId;
+                room.version++;
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean isBrandNewRoomSession(String roomId, String roomSessionId) {
+        return inRoom(roomId, true, room -> isBrandNew(room, roomSessionId));
+    }
+
+    private static boolean isBrandNew(Room room, String roomSessionId) {
+        for (Map<String, Row> peerRows : room.peers.values()) {
+            Row row = peerRows.get(roomSessionId);
+            if (row != null && row.state != ARCHIVED && row.state != CREATED) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public RoomSessionSnapshot readRoomSessionSnapshot(String roomId, String roomSessionId,
+                                                       boolean withOtherActiveRoomSessions) {
+        String currentRoomSessionId = getLatestRoomSessionId(roomId);
+        return new RoomSessionSnapshot(
+                currentRoomSessionId,
+                isBrandNewRoomSession(roomId, roomSessionId),
+                withOtherActiveRoomSessions
+                        ? new ArrayList<>(findOtherActiveRoomSessions(roomId, roomSessionId))
+                        : Collections.emptyList()
+        );
+    }
+
+    @Override
+    public void createRoom(String roomId) {
+        if (rooms.putIfAbsent(roomId, new Room(roomId)) != null) {
+            throw new DuplicateKeyException("duplicate key value violates unique constraint rooms_pkey: " + roomId);
+        }
+    }
+
+    @Override
+    public void created(String roomId, String peerId) {
+        created(roomId, List.of(peerId));
+    }
+
+    @Override
+    public void created(String roomId, Collection<String> peerIds) {
+        long now = System.currentTimeMillis();
+        inExistingRoom(roomId, room -> {
+            for (String peerId : peerIds) {
+                if (row(room, peerId, UNKNOWN_ROOM_SESSION_ID) == null) {
+                    Row row = new Row(roomId, peerId, UNKNOWN_ROOM_SESSION_ID);
+                    row.createdAt = now;
+                    row.state = CREATED;
+                    put(room, row);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreate(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        if (roomSessionIdsToDisconnect.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        Set<String> toDisconnect = new HashSet<>(roomSessionIdsToDisconnect);
+        long now = System.currentTimeMillis();
+        List<RoomMediaSessionDto> recreated = new ArrayList<>();
+        inRoom(roomId, null, room -> {
+            disconnectAndRecreate(
+                    room,
+                    row -> toDisconnect.contains(row.roomSessionId),
+                    newRoomSessionId,
+                    now,
+                    recreated
+            );
+            return null;
+        });
+        return recreated;
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreateWithoutLocking(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        //the stripe lock is all there is
+        return disconnectAllInRoomAndRecreate(roomId, roomSessionIdsToDisconnect, newRoomSessionId);
+    }
+
+    private void disconnectAndRecreate(Room room, Predicate<Row> toDisconnect, String newRoomSessionId,
+                                       long now, List<RoomMediaSessionDto> recreated) {
+        Set<String> disconnectedPeers = new LinkedHashSet<>();
+        for (Map<String, Row> peerRows : room.peers.values()) {
+            for (Row row : peerRows.values()) {
+                if (row.isActive() && toDisconnect.test(row)) {
+                    row.disconnectedAt = now;
+                    row.state = DISCONNECTED;
+                    row.version++;
+                    disconnectedPeers.add(row.peerId);
+                }
+            }
+        }
+
+        for (String peerId : disconnectedPeers) {
+            Map<String, Row> peerRows = room.peers.get(peerId);
+            Row current = peerRows.get(newRoomSessionId);
+            boolean alreadyConnecting = current != null
+                                        && current.state != CREATED && current.state != ARCHIVED;
+            //on conflict do nothing
+            if (alreadyConnecting || peerRows.containsKey(UNKNOWN_ROOM_SESSION_ID)) {
+                continue;
+            }
+            Row reconnect = new Row(room.roomId, peerId, UNKNOWN_ROOM_SESSION_ID);
+            reconnect.createdAt = now;
+            reconnect.state = CREATED;
+            put(room, reconnect);
+            recreated.add(toDto(reconnect));
+        }
+    }
+
+    @Override
+    public RoomMediaSessionDto insert(RoomMediaSessionDto roomMediaSessionDto) {
+        Row row = new Row(
+                roomMediaSessionDto.getRoomId(),
+                roomMediaSessionDto.getMediaSessionId(),
+                ObjectUtils.defaultIfNull(roomMediaSessionDto.getRoomSessionId(), UNKNOWN_ROOM_SESSION_ID)
+        );
+        row.createdAt = millis(roomMediaSessionDto.getCreatedAt());
+        row.firstOfferAt = millis(roomMediaSessionDto.getFirstOfferAt());
+        row.connectedAt = millis(roomMediaSessionDto.getConnectedAt());
+        row.disconnectedAt = millis(roomMediaSessionDto.getDisconnectedAt());
+        row.state = roomMediaSessionDto.getState();
+        checkStateRequirements(row);
+
+        return inExistingRoom(row.roomId, room -> {
+            if (row(room, row.peerId, row.roomSessionId) != null) {
+                throw new DuplicateKeyException(
+                        "duplicate key value violates unique constraint pk_room_media_sessions_id: " + row
+                );
+            }
+            put(room, row);
+            return toDto(row);
+        });
+    }
+
+    @Override
+    public Collection<String> findOtherActiveRoomSessions(@Nonnull String roomId, @Nonnull String roomSessionId) {
+        return inRoom(roomId, Collections.<String>emptyList(), room -> {
+            Set<String> result = new LinkedHashSet<>();
+            for (Map<String, Row> peerRows : room.peers.values()) {
+                for (Row row : peerRows.values()) {
+                    if (row.isActive() && !roomSessionId.equals(row.roomSessionId)) {
+                        result.add(row.roomSessionId);
+                    }
+                }
+            }
+            return new ArrayList<>(result);
+        });
+    }
+
+    @Override
+    public boolean isConnected(String mediaSessionId) {
+        String roomId = peerRooms.get(mediaSessionId);
+        if (roomId == null) {
+            return false;
+        }
+        return inRoom(roomId, false, room -> {
+            Map<String, Row> peerRows = room.peers.get(mediaSessionId);
+            return peerRows != null && peerRows.values().stream().anyMatch(row -> row.state == CONNECTED);
+        });
+    }
+
+    @Override
+    public void selectRoomIdForUpdate(String roomId) {
+        if (!rooms.containsKey(roomId)) {
+            throw new EmptyResultDataAccessException(1);
+        }
+    }
+
+    @Override
+    public void advisoryLockRoom(String roomId, int namespace, int keySpace, long timeoutMillis) {
+        //same as selectRoomIdForUpdate: the stripe lock of every call is all there is
+        selectRoomIdForUpdate(roomId);
+    }
+
+    @Override
+    public VersionedRoom readVersionedRoom(String roomId) {
+        if (!rooms.containsKey(roomId)) {
+            throw new EmptyResultDataAccessException(1);
+        }
+        return inRoom(roomId, null, room -> new VersionedRoom(room.currentRoomSessionId, room.version));
+    }
+
+    @Override
+    public int compareAndSetLatestRoomSessionId(String roomId, String roomSessionId, long expectedVersion) {
+        return inRoom(roomId, 0, room -> {
+            if (room.version != expectedVersion) {
+                return 0;
+            }
+            room.currentRoomSessionId = roomSessionId;
+            room.version++;
+            return 1;
+        });
+    }
+
+    @Override
+    public int compareAndSetRoomMediaSession(UpsertRMSRequest upsertRMSRequest, String expectedRoomSessionId,
+                                             long expectedVersion, long expectedRoomVersion) {
+        try {
+            return inRoom(upsertRMSRequest.getRoomId(), 0, room -> {
+                Row row = row(room, upsertRMSRequest.getPeerId(), expectedRoomSessionId);
+                if (room.version != expectedRoomVersion || row == null || row.version != expectedVersion) {
+                    return 0;
+                }
+                update(room, row, upsertRMSRequest);
+                return 1;
+            });
+        } catch (DataIntegrityViolationException e) {
+            log.debug("failed to compare and set RMS with update request {}", upsertRMSRequest, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public int updateByRoomSessionId(UpsertRMSRequest upsertRMSRequest) {
+        return inRoom(upsertRMSRequest.getRoomId(), 0, room -> {
+            Row row = row(room, upsertRMSRequest.getPeerId(), upsertRMSRequest.getRoomSessionId());
+            if (row == null) {
+                return 0;
+            }
+            update(room, row, upsertRMSRequest);
+            return 1;
+        });
+    }
+
+    @Override
+    public int updateByRoomSessionIdAndSetLatest(UpsertRMSRequest upsertRMSRequest) {
+        int updated = updateByRoomSessionId(upsertRMSRequest);
+        setLatestRoomSessionId(upsertRMSRequest.getRoomId(), upsertRMSRequest.getRoomSessionId());
+        return updated;
+    }
+
+    @Override
+    public int updateCreatedRoomSession(UpsertRMSRequest upsertRMSRequest) {
+        try {
+            return inRoom(upsertRMSRequest.getRoomId(), 0, room -> {
+                Row row = row(room, upsertRMSRequest.getPeerId(), UNKNOWN_ROOM_SESSION_ID);
+                if (row == null || row.state != CREATED) {
+                    return 0;
+                }
+                update(room, row, upsertRMSRequest);
+                return 1;
+            });
+        } catch (DataIntegrityViolationException e) {
+            log.info("failed to update created RMS with update request {}. probably someone else already updated it",
+                    upsertRMSRequest,
+                    e
+            );
+            return 0;
+        }
+    }
+
+    private static Row newRow(UpsertRMSRequest upsertRMSRequest) {
+        Row row = new Row(
+                upsertRMSRequest.getRoomId(),
+                upsertRMSRequest.getPeerId(),
+                upsertRMSRequest.getRoomSessionId()
+        );
+        row.createdAt = millis(upsertRMSRequest.getNewCreatedAt());
+        row.firstOfferAt = millis(upsertRMSRequest.getNewFirstOfferAt());
+        row.connectedAt = millis(upsertRMSRequest.getNewConnectedAt());
+        row.disconnectedAt = millis(upsertRMSRequest.getNewDisconnectedAt());
+        row.state = upsertRMSRequest.getNewState();
+        return row;
+    }
+
+    @Override
+    public int insertOrDoNothing(UpsertRMSRequest upsertRMSRequest) {
+        Row row = newRow(upsertRMSRequest);
+        checkStateRequirements(row);
+
+        return inExistingRoom(row.roomId, room -> {
+            if (row(room, row.peerId, row.roomSessionId) != null) {
+                return 0;
+            }
+            put(room, row);
+            return 1;
+        });
+    }
+
+    /**
+     * There are no transactions to hold the room at the version for, the check and the insert are atomic.
+     */
+    @Override
+    public int compareAndInsertRoomMediaSession(UpsertRMSRequest upsertRMSRequest, long expectedRoomVersion) {
+        Row row = newRow(upsertRMSRequest);
+        checkStateRequirements(row);
+
+        return inExistingRoom(row.roomId, room -> {
+            if (room.version != expectedRoomVersion || row(room, row.peerId, row.roomSessionId) != null) {
+                return 0;
+            }
+            put(room, row);
+            return 1;
+        });
+    }
+
+    private static boolean isStale(Room room, String roomSessionId) {
+        String current = room.currentRoomSessionId;
+        return current != null && !current.equals(roomSessionId) && !isBrandNew(room, roomSessionId);
+    }
+
+    /**
+     * The whole upsert cascade of SampleService under the room lock.
+     * Constraint violations are thrown as is, there's nothing to retry with the lock held.
+     */
+    private UpsertOutcome upsert(Room room, UpsertRMSRequest upsertRMSRequest) {
+        String roomSessionId = upsertRMSRequest.getRoomSessionId();
+        String peerId = upsertRMSRequest.getPeerId();
+        if (isStale(room, roomSessionId)) {
+            return UpsertOutcome.STALE;
+        }
+
+        Row row = row(room, peerId, roomSessionId);
+        if (row == null) {
+            row = row(room, peerId, UNKNOWN_ROOM_SESSION_ID);
+            if (row != null && row.state != CREATED) {
+                row = null;
+            }
+        }
+        if (row != null) {
+            update(room, row, upsertRMSRequest);
+        } else {
+            Row inserted = newRow(upsertRMSRequest);
+            checkStateRequirements(inserted);
+            put(room, inserted);
+        }
+        room.currentRoomSessionId = roomSessionId;
+        return UpsertOutcome.ACCEPTED;
+    }
+
+    @Override
+    public UpsertOutcome upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        try {
+            return inExistingRoom(upsertRMSRequest.getRoomId(), room -> upsert(room, upsertRMSRequest));
+        } catch (DataIntegrityViolationException e) {
+            log.info("failed to upsert RMS with update request {}", upsertRMSRequest, e);
+            return UpsertOutcome.NOT_UPDATED;
+        }
+    }
+
+    @Override
+    public int[] upsertInBatch(List<UpsertRMSRequest> upsertRMSRequests) {
+        int[] result = new int[upsertRMSRequests.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = upsertInSingleStatement(upsertRMSRequests.get(i)) == UpsertOutcome.ACCEPTED ? 1 : 0;
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, UpsertOutcome> upsertFirstOffers(String roomId, String roomSessionId,
+                                                        Collection<String> peerIds) {
+        Instant now = Instant.now();
+        Map<String, UpsertOutcome> outcomes = new LinkedHashMap<>();
+        inExistingRoom(roomId, room -> {
+            for (String peerId : peerIds) {
+                UpsertRMSRequest firstOffer = UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, now);
+                try {
+                    outcomes.put(peerId, upsert(room, firstOffer));
+                } catch (DataIntegrityViolationException e) {
+                    log.info("failed to upsert RMS with update request {}", firstOffer, e);
+                    outcomes.put(peerId, UpsertOutcome.NOT_UPDATED);
+                }
+            }
+            return null;
+        });
+        return outcomes;
+    }
+
+    @Override
+    public boolean offerReceivedServerSide(UpsertRMSRequest firstOfferRequest) {
+        String roomSessionId = firstOfferRequest.getRoomSessionId();
+        long now = System.currentTimeMillis();
+        return inExistingRoom(firstOfferRequest.getRoomId(), room -> {
+            if (isStale(room, roomSessionId)) {
+                return false;
+            }
+            disconnectAndRecreate(
+                    room,
+                    row -> !roomSessionId.equals(row.roomSessionId),
+                    roomSessionId,
+                    now,
+                    new ArrayList<>()
+            );
+            return upsert(room, firstOfferRequest) == UpsertOutcome.ACCEPTED;
+        });
+    }
+
+    @Override
+    public boolean upsertServerSide(UpsertRMSRequest upsertRMSRequest) {
+        return inExistingRoom(upsertRMSRequest.getRoomId(), room -> upsert(room, upsertRMSRequest))
+               == UpsertOutcome.ACCEPTED;
+    }
+
+    private int disconnectPeer(String peerId, Predicate<Row> filter) {
+        String roomId = peerRooms.get(peerId);
+        if (roomId == null) {
+            return 0;
+        }
+        long now = System.currentTimeMillis();
+        return inRoom(roomId, 0, room -> {
+            Map<String, Row> peerRows = room.peers.get(peerId);
+            if (peerRows == null) {
+                return 0;
+            }
+            List<Row> updated = new ArrayList<>();
+            for (Row row : peerRows.values()) {
+                if (filter.test(row)) {
+                    Row disconnected = row.copy();
+                    disconnected.state = DISCONNECTED;
+                    disconnected.disconnectedAt = now;
+                    checkStateRequirements(disconnected);
+                    updated.add(disconnected);
+                }
+            }
+            updated.forEach(row -> put(room, row));
+            return updated.size();
+        });
+    }
+
+    @Override
+    public ReapedSessions reapStalledSessions(int batchSize, long createdBeforeMillis, long offeredBeforeMillis) {
+        long now = System.currentTimeMillis();
+        int disconnected = 0;
+        int expired = 0;
+        List<RoomMediaSessionDto> recreated = new ArrayList<>();
+        for (Room room : rooms.values()) {
+            if (disconnected + expired >= batchSize) {
+                break;
+            }
+            ReentrantLock lock = stripe(room.roomId);
+            //skip locked
+            if (!lock.tryLock()) {
+                continue;
+            }
+            try {
+                for (Map<String, Row> peerRows : room.peers.values()) {
+                    Row created = peerRows.get(UNKNOWN_ROOM_SESSION_ID);
+                    if (created != null && created.state == CREATED && created.createdAt < createdBeforeMillis
+                        && disconnected + expired < batchSize) {
+                        peerRows.remove(UNKNOWN_ROOM_SESSION_ID);
+                        expired++;
+                    }
+                }
+
+                String currentRoomSessionId = room.currentRoomSessionId;
+                int[] budget = {batchSize - disconnected - expired};
+                if (currentRoomSessionId != null) {
+                    disconnectAndRecreate(
+                            room,
+                            row -> {
+                                if (currentRoomSessionId.equals(row.roomSessionId) || budget[0] == 0) {
+                                    return false;
+                                }
+                                budget[0]--;
+                                return true;
+                            },
+                            currentRoomSessionId,
+                            now,
+                            recreated
+                    );
+                }
+                for (Map<String, Row> peerRows : room.peers.values()) {
+                    for (Row row : peerRows.values()) {
+                        if (row.isActive() && row.state == FIRST_OFFER_RECEIVED
+                            && row.firstOfferAt < offeredBeforeMillis && budget[0] > 0) {
+                            row.disconnectedAt = now;
+                            row.state = DISCONNECTED;
+                            row.version++;
+                            budget[0]--;
+                        }
+                    }
+                }
+                disconnected = batchSize - expired - budget[0];
+            } finally {
+                lock.unlock();
+            }
+        }
+        return new ReapedSessions(disconnected, expired, recreated.size());
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByMediaSessionId(String peerId) {
+        return disconnectPeer(peerId, row -> row.state == FIRST_OFFER_RECEIVED || row.state == CONNECTED);
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByPeerId(String peerId) {
+        return disconnectPeer(peerId, row -> true);
+    }
+}
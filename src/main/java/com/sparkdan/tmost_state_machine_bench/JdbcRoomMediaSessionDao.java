@@ -0,0 +1,1265 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.Nonnull;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.ObjectUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.EmptyResultDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.core.support.AbstractSqlTypeValue;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+@Service
+@ConditionalOnProperty(name = "dao.engine", havingValue = "jdbc", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class JdbcRoomMediaSessionDao implements RoomMediaSessionDao {
+
+    public static final String COL_ROOM_ID = "room_id";
+    public static final String COL_ROOM_SESSION_ID = "room_session_id";
+    public static final String COL_PEER_ID = "peer_id";
+    public static final String COL_CREATED_AT = "created_at";
+    public static final String COL_FIRST_OFFER_AT = "first_offer_at";
+    public static final String COL_CONNECTED_AT = "connected_at";
+    public static final String COL_DISCONNECTED_AT = "disconnected_at";
+    public static final String COL_STATE = "state";
+    public static final String COL_VERSION = "version";
+
+    private static final List<String> COLUMNS = List.of(COL_PEER_ID, COL_ROOM_SESSION_ID,
+            COL_ROOM_ID, COL_CREATED_AT, COL_FIRST_OFFER_AT, COL_CONNECTED_AT, COL_DISCONNECTED_AT, COL_STATE);
+    private static final String COLUMNS_STR = StringUtils.join(COLUMNS, ",");
+    private static final String COLUMNS_BOUND_STR = boundColumns(COLUMNS);
+
+    private static final List<String> CREATE_COLUMNS = List.of(COL_STATE, COL_ROOM_ID, COL_ROOM_SESSION_ID,
+            COL_PEER_ID, COL_CREATED_AT);
+    private static final String CREATE_COLUMNS_STR = StringUtils.join(CREATE_COLUMNS, ",");
+
+    @Language("SQL")
+    public static final String UPDATE_BASE_SQL = """
+            update room_media_sessions
+                set created_at = case when :created_at > created_at
+                        then created_at else coalesce(:created_at, created_at) end,
+                    first_offer_at = case when :first_offer_at > first_offer_at
+                        then first_offer_at else coalesce(:first_offer_at, first_offer_at) end,
+                    connected_at = case when :connected_at > connected_at
+                        then connected_at else coalesce(:connected_at, connected_at) end,
+                    disconnected_at = case when :disconnected_at > disconnected_at
+                        then disconnected_at else coalesce(:disconnected_at, disconnected_at) end,
+                    state = cast( case when cast(state as text) in (:updated_states)
+                        then :state else cast(state as text) end
+                        as room_media_session_state
+                        ),
+                    room_session_id = :room_session_id,
+                    version = version + 1
+            where peer_id = :peer_id
+                and room_id = :room_id
+            """;
+    @Language("SQL")
+    public static final String UPDATE_BY_ROOM_SESSION_ID = UPDATE_BASE_SQL + """
+                and room_session_id = :room_session_id
+            """;
+    @Language("SQL")
+    public static final String UPDATE_CREATED_ROOM_SESSION = UPDATE_BASE_SQL + String.format("""
+                and state = 'CREATED'
+                and room_session_id = '%s'
+            """, UNKNOWN_ROOM_SESSION_ID);
+    /**
+     * Shares the lock of the rooms row until the end of the transaction, a switch of the room session can't
+     * commit under the transition that checked the version.
+     */
+    private static final String ROOM_AT_EXPECTED_VERSION = """
+            exists (select 1 from rooms where room_id = :room_id and version = :expected_room_version for share)""";
+    @Language("SQL")
+    public static final String COMPARE_AND_SET_ROOM_MEDIA_SESSION = UPDATE_BASE_SQL + """
+                and room_session_id = :expected_room_session_id
+                and version = :expected_version
+            """ + "    and " + ROOM_AT_EXPECTED_VERSION + "\n";
+    private static final String ADVISORY_LOCK_KEY = """
+            case when :key_space > 0 then mod(hashtext(:room_id), :key_space) else hashtext(:room_id) end""";
+    /**
+     * Waits for the advisory lock no longer than lock_timeout, then puts back the lock_timeout the rest of
+     * the transaction had. The CTEs only reference each other to make Postgres run them in this order.
+     */
+    @Language("SQL")
+    static final String ADVISORY_LOCK_WITH_TIMEOUT = """
+            with previous as (
+                select current_setting('lock_timeout') as lock_timeout
+            ),
+            timeout as (
+                select set_config('lock_timeout', :lock_timeout, true) from previous
+            ),
+            locked as (
+                select pg_advisory_xact_lock(:namespace, """ + ADVISORY_LOCK_KEY + """
+            ) from timeout
+            )
+            select set_config('lock_timeout', previous.lock_timeout, true)
+            from locked, previous
+            """;
+    static final UpsertStatement UPDATE_BY_ROOM_SESSION_ID_STATEMENT =
+            UpsertStatement.compile(UPDATE_BY_ROOM_SESSION_ID);
+    static final UpsertStatement UPDATE_CREATED_ROOM_SESSION_STATEMENT =
+            UpsertStatement.compile(UPDATE_CREATED_ROOM_SESSION);
+    private static final UpsertStatement COMPARE_AND_SET_ROOM_MEDIA_SESSION_STATEMENT =
+            UpsertStatement.compile(COMPARE_AND_SET_ROOM_MEDIA_SESSION);
+    private static final int[] EXPECTED_ROOM_SESSION_ID =
+            COMPARE_AND_SET_ROOM_MEDIA_SESSION_STATEMENT.positions("expected_room_session_id");
+    private static final int[] EXPECTED_VERSION =
+            COMPARE_AND_SET_ROOM_MEDIA_SESSION_STATEMENT.positions("expected_version");
+    private static final int[] EXPECTED_ROOM_VERSION =
+            COMPARE_AND_SET_ROOM_MEDIA_SESSION_STATEMENT.positions("expected_room_version");
+    @Language("SQL")
+    public static final String INSERT_OR_DO_NOTHING = String.format("""
+            insert into room_media_sessions (%s)
+            values (%s)
+            on conflict on constraint pk_room_media_sessions_id do nothing
+            """, COLUMNS_STR, COLUMNS_BOUND_STR
+    );
+    private static final UpsertStatement INSERT_OR_DO_NOTHING_STATEMENT = UpsertStatement.compile(INSERT_OR_DO_NOTHING);
+    @Language("SQL")
+    public static final String COMPARE_AND_INSERT_ROOM_MEDIA_SESSION = String.format("""
+            insert into room_media_sessions (%s)
+            select :peer_id, :room_session_id, :room_id,
+                cast(:created_at as timestamptz), cast(:first_offer_at as timestamptz),
+                cast(:connected_at as timestamptz), cast(:disconnected_at as timestamptz),
+                cast(:state as room_media_session_state)
+            where %s
+            on conflict on constraint pk_room_media_sessions_id do nothing
+            """, COLUMNS_STR, ROOM_AT_EXPECTED_VERSION
+    );
+    private static final UpsertStatement COMPARE_AND_INSERT_ROOM_MEDIA_SESSION_STATEMENT =
+            UpsertStatement.compile(COMPARE_AND_INSERT_ROOM_MEDIA_SESSION);
+    private static final int[] INSERT_EXPECTED_ROOM_VERSION =
+            COMPARE_AND_INSERT_ROOM_MEDIA_SESSION_STATEMENT.positions("expected_room_version");
+    @Language("SQL")
+    private static final String CREATED_SQL = String.format("""
+            insert into room_media_sessions (%s)
+            values ('%s', ?, '%s', ?, ?)
+            on conflict on constraint pk_room_media_sessions_id do nothing
+            """, CREATE_COLUMNS_STR, RoomMediaSessionState.CREATED, UNKNOWN_ROOM_SESSION_ID
+    );
+    /**
+     * CREATED_SQL for a whole join burst, the peer ids are bound as one text array.
+     */
+    private static final String CREATED_ALL_SQL = String.format("""
+            insert into room_media_sessions (%s)
+            select '%s', ?, '%s', peer_id, ?
+            from unnest(?::text[]) as peer_id
+            on conflict on constraint pk_room_media_sessions_id do nothing
+            """, CREATE_COLUMNS_STR, RoomMediaSessionState.CREATED, UNKNOWN_ROOM_SESSION_ID
+    );
+    /**
+     * A room session is known once one of its media sessions got past CREATED. The history counts as well:
+     * a late offer for a room session {@link SessionArchiver} has moved entirely must not switch the room back to it.
+     */
+    @Language("SQL")
+    static final String KNOWN_ROOM_SESSION = """
+            (exists (
+                select 1 from room_media_sessions
+                where room_id = :room_id
+                  and room_session_id = :room_session_id
+                  --just like in idx_room_media_sessions_not_archived
+                  and state not in ('ARCHIVED', 'CREATED')
+            ) or exists (
+                select 1 from room_media_sessions_history
+                where room_id = :room_id
+                  and room_session_id = :room_session_id
+                  and state <> 'ARCHIVED'
+            ))""";
+    /**
+     * Every statement that sets current_room_session_id moves the version of the room on when the room session
+     * changes, {@link OptimisticUpsertStrategy} compares against it.
+     */
+    static final String BUMP_ROOM_VERSION =
+            "version = version + case when current_room_session_id = :room_session_id then 0 else 1 end\n";
+    /**
+     * The stale room session check and the update/update/insert cascade of SampleService.upsertTransactionally
+     * as CTEs. All parts see the same snapshot, so a media session inserted concurrently
+     * shows up as nothing upserted and the statement has to be repeated.
+     */
+    @Language("SQL")
+    private static final String UPSERT_CTE = """
+            with current_room as (
+                select current_room_session_id from rooms where room_id = :room_id
+            ),
+            stale as (
+                select 1 from current_room
+                where current_room_session_id is not null
+                  and current_room_session_id <> :room_session_id
+                  and """ + KNOWN_ROOM_SESSION + """
+            ),
+            updated as (
+            """ + UPDATE_BY_ROOM_SESSION_ID + """
+                and not exists (select 1 from stale)
+                returning 1
+            ),
+            updated_created as (
+            """ + UPDATE_CREATED_ROOM_SESSION + """
+                and not exists (select 1 from stale)
+                and not exists (select 1 from updated)
+                returning 1
+            ),
+            inserted as (
+                insert into room_media_sessions (
+                    peer_id, room_session_id, room_id,
+                    created_at, first_offer_at, connected_at, disconnected_at, state
+                )
+                select :peer_id, :room_session_id, :room_id,
+                    cast(:created_at as timestamptz), cast(:first_offer_at as timestamptz),
+                    cast(:connected_at as timestamptz), cast(:disconnected_at as timestamptz),
+                    cast(:state as room_media_session_state)
+                where not exists (select 1 from stale)
+                  and not exists (select 1 from updated)
+                  and not exists (select 1 from updated_created)
+                on conflict on constraint pk_room_media_sessions_id do nothing
+                returning 1
+            ),
+            upserted as (
+                select 1 from updated
+                union all select 1 from updated_created
+                union all select 1 from inserted
+            )
+            """;
+    @Language("SQL")
+    public static final String UPSERT_IN_SINGLE_STATEMENT = UPSERT_CTE + """
+            , room_updated as (
+                update rooms
+                    set current_room_session_id = :room_session_id,
+                        """ + BUMP_ROOM_VERSION + """
+                where room_id = :room_id
+                  and exists (select 1 from upserted)
+            )
+            select exists (select 1 from stale) as stale,
+                   (select count(*) from upserted) as upserted
+            """;
+    /**
+     * The first offer cascade of {@link #UPSERT_CTE} over a set of peers: rows of the room session are updated,
+     * CREATED rows of the remaining peers are moved to the room session, the rest are inserted.
+     * A peer upserted by none of them lost a race to a concurrent insert.
+     * The placeholders take the change guards of {@link #UPSERT_FIRST_OFFERS_IF_CHANGED_SQL}: the guard of the
+     * update, the rows of the room session the peers already have, the version bump and the guard of the rooms
+     * update.
+     */
+    @Language("SQL")
+    private static final String UPSERT_FIRST_OFFERS_TEMPLATE = """
+            with peers as (
+                select distinct unnest(cast(:peer_ids as text[])) as peer_id
+            ),
+            current_room as (
+                select current_room_session_id from rooms where room_id = :room_id
+            ),
+            stale as (
+                select 1 from current_room
+                where current_room_session_id is not null
+                  and current_room_session_id <> :room_session_id
+                  and """ + KNOWN_ROOM_SESSION + """
+            ),
+            updated as (
+                update room_media_sessions
+                    set created_at = least(created_at, cast(:now as timestamptz)),
+                        first_offer_at = least(first_offer_at, cast(:now as timestamptz)),
+                        state = case when state in ('CREATED', 'ARCHIVED', 'FIRST_OFFER_RECEIVED')
+                            then 'FIRST_OFFER_RECEIVED' else state end,
+                        version = version + 1
+                where room_id = :room_id
+                  and room_session_id = :room_session_id
+                  and peer_id in (select peer_id from peers)
+                  and not exists (select 1 from stale)
+                  %1$s
+                returning peer_id
+            ),
+            matched as (
+                %2$s
+            ),
+            updated_created as (
+                update room_media_sessions
+                    set created_at = least(created_at, cast(:now as timestamptz)),
+                        first_offer_at = cast(:now as timestamptz),
+                        state = 'FIRST_OFFER_RECEIVED',
+                        room_session_id = :room_session_id,
+                        version = version + 1
+                where room_id = :room_id
+                  and room_session_id = 'rms_unknown'
+                  and state = 'CREATED'
+                  and peer_id in (select peer_id from peers)
+                  and peer_id not in (select peer_id from matched)
+                  and not exists (select 1 from stale)
+                returning peer_id
+            ),
+            inserted as (
+                insert into room_media_sessions (
+                    peer_id, room_session_id, room_id, created_at, first_offer_at, state
+                )
+                select peer_id, :room_session_id, :room_id, cast(:now as timestamptz), cast(:now as timestamptz),
+                       cast('FIRST_OFFER_RECEIVED' as room_media_session_state)
+                from peers
+                where not exists (select 1 from stale)
+                  and peer_id not in (select peer_id from matched)
+                  and peer_id not in (select peer_id from updated_created)
+                on conflict on constraint pk_room_media_sessions_id do nothing
+                returning peer_id
+            ),
+            upserted as (
+                select peer_id from matched
+                union all select peer_id from updated_created
+                union all select peer_id from inserted
+            ),
+            room_updated as (
+                update rooms
+                    set current_room_session_id = :room_session_id
+                        %3$s
+                where room_id = :room_id
+                  and exists (select 1 from upserted)
+                  %4$s
+                returning 1
+            )
+            select peer_id,
+                   exists (select 1 from stale) as stale,
+                   peer_id in (select peer_id from upserted) as upserted,
+                   (select count(*) from matched) as matched,
+                   (select count(*) from updated) as updated,
+                   exists (select 1 from room_updated) as room_updated
+            from peers
+            """;
+    private static final String UPSERT_FIRST_OFFERS_SQL = String.format(UPSERT_FIRST_OFFERS_TEMPLATE,
+            "",
+            "select peer_id from updated",
+            ", " + BUMP_ROOM_VERSION,
+            ""
+    );
+    /**
+     * UPSERT_FIRST_OFFERS_SQL that leaves the rows of the room session alone unless the offer moves a timestamp back
+     * or changes the state, as the repeated offers of a renegotiation to CONNECTED peers never do. Those rows still
+     * count as upserted. The rooms row is only written when the room session changes.
+     */
+    private static final String UPSERT_FIRST_OFFERS_IF_CHANGED_SQL = String.format(UPSERT_FIRST_OFFERS_TEMPLATE,
+            """
+            and (
+                          cast(:now as timestamptz) < created_at
+                          or cast(:now as timestamptz) < coalesce(first_offer_at, 'infinity')
+                          or state in ('CREATED', 'ARCHIVED')
+                      )""",
+            """
+            select peer_id from room_media_sessions
+                            where room_id = :room_id
+                              and room_session_id = :room_session_id
+                              and peer_id in (select peer_id from peers)
+                              and not exists (select 1 from stale)""",
+            ", version = version + 1",
+            "and current_room_session_id is distinct from :room_session_id"
+    );
+    /**
+     * Batchable form of {@link #UPSERT_IN_SINGLE_STATEMENT}: the update count is 1 only if the media session
+     * was upserted, stale room sessions and lost races both report 0.
+     */
+    @Language("SQL")
+    public static final String UPSERT_IN_SINGLE_STATEMENT_BATCHED = UPSERT_CTE + """
+            update rooms
+                set current_room_session_id = :room_session_id,
+                    """ + BUMP_ROOM_VERSION + """
+            where room_id = :room_id
+              and exists (select 1 from upserted)
+            """;
+
+    /**
+     * Two statements in one string: the driver sends both before waiting for the result of the first.
+     */
+    @Language("SQL")
+    public static final String UPDATE_BY_ROOM_SESSION_ID_AND_SET_LATEST = UPDATE_BY_ROOM_SESSION_ID + """
+            ;
+            update rooms
+                set current_room_session_id = :room_session_id,
+                    """ + BUMP_ROOM_VERSION + """
+            where room_id = :room_id
+            """;
+    /**
+     * UPDATE_BY_ROOM_SESSION_ID that writes the row only if a timestamp or the state would change, a rewrite
+     * with the same values would still leave a dead tuple and WAL behind.
+     * matched is the row count the update would have had: a transition that finds its row as it would leave
+     * it is done, the cascade of SampleService must not go on to the insert.
+     */
+    @Language("SQL")
+    public static final String UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED = "with updated as (" + UPDATE_BY_ROOM_SESSION_ID
+            + """
+                and (
+                    cast(:created_at as timestamptz) < created_at
+                    or cast(:first_offer_at as timestamptz) < coalesce(first_offer_at, 'infinity')
+                    or cast(:connected_at as timestamptz) < coalesce(connected_at, 'infinity')
+                    or cast(:disconnected_at as timestamptz) < coalesce(disconnected_at, 'infinity')
+                    or (cast(state as text) in (:updated_states) and cast(state as text) <> :state)
+                )
+                returning 1
+            )
+            select (select count(*) from updated) as updated,
+                   (select count(*) from room_media_sessions
+                    where peer_id = :peer_id
+                      and room_id = :room_id
+                      and room_session_id = :room_session_id) as matched
+            """;
+    @Language("SQL")
+    private static final String SET_LATEST_IF_CHANGED = """
+            update rooms
+                set current_room_session_id = :room_session_id,
+                    version = version + 1
+            where room_id = :room_id
+              and current_room_session_id is distinct from :room_session_id
+            """;
+    @Language("SQL")
+    public static final String UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_AND_SET_LATEST =
+            UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED + ";\n" + SET_LATEST_IF_CHANGED;
+    static final UpsertStatement UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT =
+            UpsertStatement.compile(UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED);
+    /**
+     * KNOWN_ROOM_SESSION bound by position: room_id, room_session_id, room_id, room_session_id.
+     */
+    private static final String KNOWN_ROOM_SESSION_POSITIONAL = "select " + KNOWN_ROOM_SESSION
+            .replace(":room_id", "?")
+            .replace(":room_session_id", "?");
+    @Language("SQL")
+    private static final String ROOM_SESSION_SNAPSHOT_BASE = """
+            select
+                (select current_room_session_id from rooms where room_id = :room_id) as current_room_session_id,
+                not
+            """ + KNOWN_ROOM_SESSION + " as brand_new\n";
+    @Language("SQL")
+    private static final String ROOM_SESSION_SNAPSHOT = ROOM_SESSION_SNAPSHOT_BASE + """
+                , array[]::text[] as other_active_room_sessions
+            """;
+    @Language("SQL")
+    private static final String ROOM_SESSION_SNAPSHOT_WITH_OTHERS = ROOM_SESSION_SNAPSHOT_BASE + """
+                , array(
+                    select distinct room_session_id
+                    from room_media_sessions
+                    where room_id = :room_id
+                      and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                      and disconnected_at is null
+                      and room_session_id <> :room_session_id
+                ) as other_active_room_sessions
+            """;
+
+    @Language("SQL")
+    static final String DISCONNECT_LOCKED_SQL = """
+            -- selecting media sessions that need to be disconnected right now
+            -- because they have wrong room_media_session_id
+            with to_disconnect as (
+                select CTID as the_ctid --changes only on vacuum full which locks table exclusively
+                            --and won't give this lock
+                from room_media_sessions
+                where room_id = :room_id
+                  and room_session_id in (:room_session_id_to_disconnect)
+                  and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                  and disconnected_at is null
+                --this order by is needed to prevent deadlocks
+                order by room_session_id, peer_id
+                for update
+            ),
+            being_disconnected as (
+                update room_media_sessions
+                set disconnected_at = :now,
+                    state = 'DISCONNECTED',
+                    version = version + 1
+                --ctids repeat across the partitions of a partitioned table, room_id picks the partition
+                where room_id = :room_id
+                  and CTID in (select the_ctid from to_disconnect)
+                returning peer_id, room_id
+            )
+            """;
+    /**
+     * Same as {@link #DISCONNECT_LOCKED_SQL} without the ordered row locking. Only the owner of the room
+     * writes to it, so there's no other transaction to deadlock with.
+     */
+    @Language("SQL")
+    static final String DISCONNECT_UNLOCKED_SQL = """
+            with being_disconnected as (
+                update room_media_sessions
+                set disconnected_at = :now,
+                    state = 'DISCONNECTED',
+                    version = version + 1
+                where room_id = :room_id
+                  and room_session_id in (:room_session_id_to_disconnect)
+                  and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                  and disconnected_at is null
+                returning peer_id, room_id
+            )
+            """;
+    @Language("SQL")
+    static final String RECREATE_DISCONNECTED_SQL = """
+            -- inserting 'CREATED' counterparts that indicate that the reconnect signal
+            -- is issued to media sessions in question
+            insert into room_media_sessions (
+                peer_id,
+                room_session_id,
+                room_id,
+                created_at,
+                state
+                )
+            -- double check that we're not issuing a reconnect signal
+            -- to sessions that are have already started connecting to the correct room_session_id
+            select distinct
+                peer_id,
+                :unknown_rms_id_constant,
+                room_id,
+                :now::timestamptz,
+                'CREATED'::room_media_session_state
+            from being_disconnected as bd where not exists (
+                select 1 from room_media_sessions as rms
+                where ((rms.room_session_id = :new_room_session_id
+                            and rms.state in ('FIRST_OFFER_RECEIVED', 'CONNECTED', 'DISCONNECTED'))
+                    or (rms.room_session_id = :unknown_rms_id_constant and rms.state in ('CREATED'))
+                )
+                and rms.peer_id = bd.peer_id
+                and rms.room_id = bd.room_id
+            )
+            --if some other query initiated the session before us
+            on conflict on constraint pk_room_media_sessions_id do nothing
+            returning *
+            """;
+
+    /**
+     * Expired CREATED rows are deleted rather than archived: an ARCHIVED row would keep the rms_unknown key
+     * of the peer and swallow every reconnect signal after it.
+     */
+    @Language("SQL")
+    private static final String REAP_STALLED_SQL = """
+            with stalled as (
+                select rms.room_id, rms.room_session_id, rms.peer_id, rms.state, r.current_room_session_id
+                from room_media_sessions rms
+                join rooms r on r.room_id = rms.room_id
+                --the predicate of idx_room_media_sessions_active_sessions
+                where rms.disconnected_at is null
+                  and rms.state in ('CREATED', 'FIRST_OFFER_RECEIVED', 'CONNECTED')
+                  and ((rms.state = 'CREATED' and rms.created_at < :created_before)
+                      or (rms.state = 'FIRST_OFFER_RECEIVED' and rms.first_offer_at < :offered_before)
+                      or (rms.state <> 'CREATED' and rms.room_session_id <> r.current_room_session_id))
+                limit :batch_size
+                for update of rms skip locked
+            ),
+            expired as (
+                delete from room_media_sessions rms
+                using stalled s
+                where s.state = 'CREATED'
+                  and rms.room_id = s.room_id
+                  and rms.room_session_id = s.room_session_id
+                  and rms.peer_id = s.peer_id
+                returning 1
+            ),
+            disconnected as (
+                update room_media_sessions rms
+                set disconnected_at = :now,
+                    state = 'DISCONNECTED',
+                    version = rms.version + 1
+                from stalled s
+                where s.state <> 'CREATED'
+                  and rms.room_id = s.room_id
+                  and rms.room_session_id = s.room_session_id
+                  and rms.peer_id = s.peer_id
+                returning rms.peer_id, rms.room_id, rms.room_session_id, s.current_room_session_id
+            ),
+            --same reconnect signal as RECREATE_DISCONNECTED_SQL, to the current room session of each room
+            recreated as (
+                insert into room_media_sessions (peer_id, room_session_id, room_id, created_at, state)
+                select distinct d.peer_id, :unknown_rms_id_constant, d.room_id, :now::timestamptz,
+                    'CREATED'::room_media_session_state
+                from disconnected d
+                where d.room_session_id <> d.current_room_session_id
+                  and not exists (
+                      select 1 from room_media_sessions as rms
+                      where ((rms.room_session_id = d.current_room_session_id
+                                  and rms.state in ('FIRST_OFFER_RECEIVED', 'CONNECTED', 'DISCONNECTED'))
+                              or (rms.room_session_id = :unknown_rms_id_constant and rms.state in ('CREATED')))
+                        and rms.peer_id = d.peer_id
+                        and rms.room_id = d.room_id
+                  )
+                on conflict on constraint pk_room_media_sessions_id do nothing
+                returning 1
+            )
+            select (select count(*) from disconnected) as disconnected,
+                   (select count(*) from expired) as expired,
+                   (select count(*) from recreated) as recreated
+            """;
+
+    /**
+     * Arguments of the rms_upsert and rms_offer_received functions of migration.sql.
+     */
+    @Language("SQL")
+    private static final String UPSERT_FUNCTION_ARGS = """
+            (:room_id, :room_session_id, :peer_id,
+                cast(:created_at as timestamptz), cast(:first_offer_at as timestamptz),
+                cast(:connected_at as timestamptz), cast(:disconnected_at as timestamptz),
+                cast(:state as room_media_session_state),
+                cast(array[:updated_states] as room_media_session_state[]))
+            """;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    @Autowired(required = false)
+    MeterRegistry meterRegistry;
+
+    /**
+     * Skip the updates that would rewrite a row with the values it already has.
+     */
+    @Value("${dao.write.avoidance:false}")
+    boolean writeAvoidance;
+
+    private Counter skippedMediaSessionWrites;
+    private Counter skippedRoomWrites;
+
+    @PostConstruct
+    protected void registerMeters() {
+        if (meterRegistry == null) {
+            return;
+        }
+        skippedMediaSessionWrites = meterRegistry.counter("dao.writes.skipped", "table", "room_media_sessions");
+        skippedRoomWrites = meterRegistry.counter("dao.writes.skipped", "table", "rooms");
+    }
+
+    private static void skipped(@Nullable Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    private static String boundColumns(List<String> columns) {
+        return columns.stream().map(c -> ":" + c).collect(Collectors.joining(","));
+    }
+
+
+    @Override
+    @Nullable
+    public RoomMediaSessionDto findByPrimaryKey(String roomId, @Nullable String roomSessionId, String peer_id) {
+        return jdbcTemplate.query("""
+                        select * from room_media_sessions
+                        where room_session_id = ?
+                          and peer_id = ?
+                          and room_id = ?
+                        """,
+                ps -> {
+                    ps.setString(1, ObjectUtils.defaultIfNull(roomSessionId, UNKNOWN_ROOM_SESSION_ID));
+                    ps.setString(2, peer_id);
+                    ps.setString(3, roomId);
+                },
+                rs -> rs.next() ? parseRow(rs) : null
+        );
+    }
+
+    @Override
+    @Nullable
+    public String getLatestRoomSessionId(String roomId) {
+        return jdbcTemplate.query("""
+                        select current_room_session_id
+                        from rooms
+                        where
+                            room_id = ?
+                        """,
+                ps -> ps.setString(1, roomId),
+                rs -> {
+                    if (!rs.next()) {
+                        throw new EmptyResultDataAccessException(1);
+                    }
+                    return rs.getString(1);
+                }
+        );
+    }
+
+    @Override
+    public void setLatestRoomSessionId(@Nonnull String roomId, @Nonnull String roomSessionId) {
+        if (writeAvoidance) {
+            int updated = namedJdbcTemplate.update(SET_LATEST_IF_CHANGED, Map.of(
+                    COL_ROOM_ID, roomId,
+                    COL_ROOM_SESSION_ID, roomSessionId
+            ));
+            if (updated == 0) {
+                skipped(skippedRoomWrites);
+            }
+            return;
+        }
+        jdbcTemplate.update("""
+                                update rooms
+                                    set current_room_session_id = ?,
+                                        version = version + case when current_room_session_id = ? then 0 else 1 end
+                                where room_id = ?
+                        """,
+                ps -> {
+                    ps.setString(1, roomSessionId);
+                    ps.setString(2, roomSessionId);
+                    ps.setString(3, roomId);
+                }
+        );
+    }
+
+    @Override
+    public boolean isBrandNewRoomSession(String roomId, String roomSessionId) {
+        Boolean known = jdbcTemplate.query(KNOWN_ROOM_SESSION_POSITIONAL,
+                ps -> {
+                    ps.setString(1, roomId);
+                    ps.setString(2, roomSessionId);
+                    ps.setString(3, roomId);
+                    ps.setString(4, roomSessionId);
+                },
+                rs -> rs.next() && rs.getBoolean(1)
+        );
+        return !Boolean.TRUE.equals(known);
+    }
+
+    @Override
+    public RoomSessionSnapshot readRoomSessionSnapshot(String roomId, String roomSessionId,
+                                                       boolean withOtherActiveRoomSessions) {
+        return namedJdbcTemplate.queryForObject(
+                withOtherActiveRoomSessions ? ROOM_SESSION_SNAPSHOT_WITH_OTHERS : ROOM_SESSION_SNAPSHOT,
+                Map.of(COL_ROOM_ID, roomId, COL_ROOM_SESSION_ID, roomSessionId),
+                (rs, rn) -> new RoomSessionSnapshot(
+                        rs.getString("current_room_session_id"),
+                        rs.getBoolean("brand_new"),
+                        List.of((String[]) rs.getArray("other_active_room_sessions").getArray())
+                )
+        );
+    }
+
+    @Override
+    public void createRoom(String roomId) {
+        jdbcTemplate.update("insert into rooms (room_id) values (?)", roomId);
+    }
+
+    @Override
+    public void created(String roomId, String peerId) {
+        jdbcTemplate.update(CREATED_SQL, ps -> {
+            ps.setString(1, roomId);
+            ps.setString(2, peerId);
+            ps.setTimestamp(3, new Timestamp(System.currentTimeMillis()));
+        });
+    }
+
+    @Override
+    public void created(String roomId, Collection<String> peerIds) {
+        jdbcTemplate.update(CREATED_ALL_SQL, ps -> {
+            ps.setString(1, roomId);
+            ps.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+            ps.setArray(3, ps.getConnection().createArrayOf("text", peerIds.toArray()));
+        });
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreate(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        return disconnectAndRecreate(DISCONNECT_LOCKED_SQL, roomId, roomSessionIdsToDisconnect, newRoomSessionId);
+    }
+
+    @Override
+    public Collection<RoomMediaSessionDto> disconnectAllInRoomAndRecreateWithoutLocking(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        return disconnectAndRecreate(DISCONNECT_UNLOCKED_SQL, roomId, roomSessionIdsToDisconnect, newRoomSessionId);
+    }
+
+    private Collection<RoomMediaSessionDto> disconnectAndRecreate(
+            String disconnectSql,
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId) {
+        if (roomSessionIdsToDisconnect.size() == 0) {
+            return Collections.emptyList();
+        }
+
+        Map<String, Object> params = Map.of(
+                COL_ROOM_ID, roomId,
+                "room_session_id_to_disconnect", roomSessionIdsToDisconnect,
+                "new_room_session_id", newRoomSessionId,
+                "now", new Timestamp(System.currentTimeMillis()),
+                "unknown_rms_id_constant", UNKNOWN_ROOM_SESSION_ID
+        );
+        return namedJdbcTemplate.query(
+                disconnectSql + RECREATE_DISCONNECTED_SQL,
+                params,
+                (rs, rn) -> parseRow(rs)
+        );
+    }
+
+    @Override
+    public RoomMediaSessionDto insert(RoomMediaSessionDto roomMediaSessionDto) {
+        String roomSessionId = ObjectUtils.defaultIfNull(
+                roomMediaSessionDto.getRoomSessionId(),
+                UNKNOWN_ROOM_SESSION_ID
+        );
+        Map<String, Object> paramsMap = new HashMap<>();
+        paramsMap.put(COL_ROOM_ID, roomMediaSessionDto.getRoomId());
+        paramsMap.put(COL_ROOM_SESSION_ID, roomSessionId);
+        paramsMap.put(COL_PEER_ID, roomMediaSessionDto.getMediaSessionId());
+        paramsMap.put(COL_CREATED_AT, tmstmp(roomMediaSessionDto.getCreatedAt()));
+        paramsMap.put(COL_FIRST_OFFER_AT, tmstmp(roomMediaSessionDto.getFirstOfferAt()));
+        paramsMap.put(COL_CONNECTED_AT, tmstmp(roomMediaSessionDto.getConnectedAt()));
+        paramsMap.put(COL_DISCONNECTED_AT, tmstmp(roomMediaSessionDto.getDisconnectedAt()));
+        paramsMap.put(COL_STATE, roomMediaSessionDto.getState());
+
+        return jdbcTemplate.queryForObject(String.format("""
+                        insert into room_media_sessions (%s)
+                        values (%s)
+                        returning *
+                        """, COLUMNS_STR, COLUMNS_BOUND_STR),
+                (rs, num) -> parseRow(rs),
+                paramsMap
+        );
+    }
+
+    private Timestamp tmstmp(Instant instant) {
+        if(instant == null) {
+            return null;
+        }
+        return new Timestamp(instant.getMillis());
+    }
+
+    @Override
+    public Collection<String> findOtherActiveRoomSessions(@Nonnull String roomId, @Nonnull String roomSessionId) {
+        return jdbcTemplate.queryForList("""
+                        select distinct room_session_id
+                        from room_media_sessions
+                        where room_id = ?
+                          and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                          and disconnected_at is null
+                          and room_session_id <> ?
+                        """,
+                String.class,
+                roomId,
+                roomSessionId
+        );
+    }
+
+    RoomMediaSessionDto parseRow(ResultSet rs) {
+        try {
+            String roomSessionId = rs.getString(COL_ROOM_SESSION_ID);
+            if (UNKNOWN_ROOM_SESSION_ID.equals(roomSessionId)) {
+                roomSessionId = null;
+            }
+            return new RoomMediaSessionDto(
+                    rs.getString(COL_ROOM_ID),
+                    rs.getString(COL_PEER_ID),
+                    roomSessionId,
+                    instant(rs.getTimestamp(COL_CREATED_AT)),
+                    instant(rs.getTimestamp(COL_FIRST_OFFER_AT)),
+                    instant(rs.getTimestamp(COL_CONNECTED_AT)),
+                    instant(rs.getTimestamp(COL_DISCONNECTED_AT)),
+                    RoomMediaSessionState.valueOf(rs.getString(COL_STATE)),
+                    rs.getLong(COL_VERSION)
+            );
+        } catch (SQLException e) {
+            throw new RuntimeException("Failed to load bridge media session", e);
+        }
+    }
+
+    @Nullable
+    private static Instant instant(@Nullable Timestamp timestamp) {
+        return timestamp == null ? null : new Instant(timestamp.getTime());
+    }
+
+    @Override
+    public boolean isConnected(String mediaSessionId) {
+        Boolean result = jdbcTemplate.queryForObject("""
+                        select count(1) > 0
+                        from room_media_sessions
+                        where peer_id = ?
+                          and state = 'CONNECTED'
+                        """,
+                Boolean.class,
+                mediaSessionId
+        );
+        Assert.notNull(result, "impossible");
+        return result;
+    }
+
+    @Override
+    public void selectRoomIdForUpdate(String roomId) {
+        jdbcTemplate.queryForObject("""
+                select room_id from rooms where room_id = ? for update
+                """,
+                String.class,
+                roomId
+        );
+    }
+
+    @Override
+    public void advisoryLockRoom(String roomId, int namespace, int keySpace, long timeoutMillis) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue(COL_ROOM_ID, roomId)
+                .addValue("namespace", namespace)
+                .addValue("key_space", keySpace);
+        Boolean locked = namedJdbcTemplate.queryForObject(
+                "select pg_try_advisory_xact_lock(:namespace, " + ADVISORY_LOCK_KEY + ")",
+                params,
+                Boolean.class
+        );
+        if (Boolean.TRUE.equals(locked)) {
+            return;
+        }
+        if (timeoutMillis <= 0) {
+            namedJdbcTemplate.queryForObject(
+                    "select 1 from (select pg_advisory_xact_lock(:namespace, " + ADVISORY_LOCK_KEY + ")) l",
+                    params,
+                    Integer.class
+            );
+            return;
+        }
+        namedJdbcTemplate.queryForObject(
+                ADVISORY_LOCK_WITH_TIMEOUT,
+                params.addValue("lock_timeout", timeoutMillis + "ms"),
+                String.class
+        );
+    }
+
+    @Override
+    public VersionedRoom readVersionedRoom(String roomId) {
+        return jdbcTemplate.queryForObject("""
+                        select current_room_session_id, version
+                        from rooms
+                        where room_id = ?
+                        """,
+                (rs, rn) -> new VersionedRoom(rs.getString(1), rs.getLong(2)),
+                roomId
+        );
+    }
+
+    @Override
+    public int compareAndSetLatestRoomSessionId(String roomId, String roomSessionId, long expectedVersion) {
+        return jdbcTemplate.update("""
+                        update rooms
+                            set current_room_session_id = ?,
+                                version = version + 1
+                        where room_id = ?
+                          and version = ?
+                        """,
+                roomSessionId,
+                roomId,
+                expectedVersion
+        );
+    }
+
+    @Override
+    public int compareAndSetRoomMediaSession(UpsertRMSRequest upsertRMSRequest, String expectedRoomSessionId,
+                                             long expectedVersion, long expectedRoomVersion) {
+        try {
+            UpsertStatement statement = COMPARE_AND_SET_ROOM_MEDIA_SESSION_STATEMENT;
+            return jdbcTemplate.update(statement.sql(upsertRMSRequest), ps -> {
+                statement.bind(ps, upsertRMSRequest);
+                for (int position : EXPECTED_ROOM_SESSION_ID) {
+                    ps.setString(position, expectedRoomSessionId);
+                }
+                for (int position : EXPECTED_VERSION) {
+                    ps.setLong(position, expectedVersion);
+                }
+                for (int position : EXPECTED_ROOM_VERSION) {
+                    ps.setLong(position, expectedRoomVersion);
+                }
+            });
+        } catch (DataIntegrityViolationException e) {
+            //the CREATED row can't move to a room session the peer already has a row in
+            log.debug("failed to compare and set RMS with update request {}", upsertRMSRequest, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public int updateByRoomSessionId(UpsertRMSRequest upsertRMSRequest) {
+        if (writeAvoidance) {
+            UpsertStatement statement = UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT;
+            Integer matched = jdbcTemplate.query(
+                    statement.sql(upsertRMSRequest),
+                    ps -> statement.bind(ps, upsertRMSRequest),
+                    rs -> {
+                        rs.next();
+                        return matched(rs);
+                    }
+            );
+            return matched == null ? 0 : matched;
+        }
+        return update(UPDATE_BY_ROOM_SESSION_ID_STATEMENT, upsertRMSRequest);
+    }
+
+    /**
+     * The matched count of UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED, counting the rows left as they were.
+     */
+    private int matched(ResultSet rs) throws SQLException {
+        int matched = rs.getInt("matched");
+        if (matched > rs.getInt("updated")) {
+            skipped(skippedMediaSessionWrites);
+        }
+        return matched;
+    }
+
+    @Override
+    public int updateByRoomSessionIdAndSetLatest(UpsertRMSRequest upsertRMSRequest) {
+        if (writeAvoidance) {
+            Integer matched = namedJdbcTemplate.execute(
+                    UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_AND_SET_LATEST,
+                    fromUpsertRMSRequest(upsertRMSRequest),
+                    ps -> {
+                        ps.execute();
+                        int count;
+                        try (ResultSet rs = ps.getResultSet()) {
+                            rs.next();
+                            count = matched(rs);
+                        }
+                        //the rooms update
+                        ps.getMoreResults();
+                        if (ps.getUpdateCount() == 0) {
+                            skipped(skippedRoomWrites);
+                        }
+                        return count;
+                    }
+            );
+            return matched == null ? 0 : matched;
+        }
+        Integer updated = namedJdbcTemplate.execute(
+                UPDATE_BY_ROOM_SESSION_ID_AND_SET_LATEST,
+                fromUpsertRMSRequest(upsertRMSRequest),
+                ps -> {
+                    ps.execute();
+                    int count = ps.getUpdateCount();
+                    //the rooms update
+                    ps.getMoreResults();
+                    return count;
+                }
+        );
+        return updated == null ? 0 : updated;
+    }
+
+    @Override
+    public int updateCreatedRoomSession(UpsertRMSRequest upsertRMSRequest) {
+        try {
+            return update(UPDATE_CREATED_ROOM_SESSION_STATEMENT, upsertRMSRequest);
+        } catch (DataIntegrityViolationException e) {
+            log.info("failed to update created RMS with update request {}. probably someone else already updated it",
+                    upsertRMSRequest,
+                    e
+            );
+            return 0;
+        }
+    }
+
+    @Override
+    public int insertOrDoNothing(UpsertRMSRequest upsertRMSRequest) {
+        return update(INSERT_OR_DO_NOTHING_STATEMENT, upsertRMSRequest);
+    }
+
+    @Override
+    public int compareAndInsertRoomMediaSession(UpsertRMSRequest upsertRMSRequest, long expectedRoomVersion) {
+        UpsertStatement statement = COMPARE_AND_INSERT_ROOM_MEDIA_SESSION_STATEMENT;
+        return jdbcTemplate.update(statement.sql(upsertRMSRequest), ps -> {
+            statement.bind(ps, upsertRMSRequest);
+            for (int position : INSERT_EXPECTED_ROOM_VERSION) {
+                ps.setLong(position, expectedRoomVersion);
+            }
+        });
+    }
+
+    private int update(UpsertStatement statement, UpsertRMSRequest upsertRMSRequest) {
+        return jdbcTemplate.update(statement.sql(upsertRMSRequest), ps -> statement.bind(ps, upsertRMSRequest));
+    }
+
+    @Override
+    public UpsertOutcome upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        try {
+            return namedJdbcTemplate.queryForObject(
+                    UPSERT_IN_SINGLE_STATEMENT,
+                    fromUpsertRMSRequest(upsertRMSRequest),
+                    (rs, rn) -> {
+                        if (rs.getBoolean("stale")) {
+                            return UpsertOutcome.STALE;
+                        }
+                        return rs.getInt("upserted") > 0 ? UpsertOutcome.ACCEPTED : UpsertOutcome.NOT_UPDATED;
+                    }
+            );
+        } catch (DataIntegrityViolationException e) {
+            log.info("failed to upsert RMS with update request {}. probably someone else already updated it",
+                    upsertRMSRequest,
+                    e
+            );
+            return UpsertOutcome.NOT_UPDATED;
+        }
+    }
+
+    @Override
+    public int[] upsertInBatch(List<UpsertRMSRequest> upsertRMSRequests) {
+        MapSqlParameterSource[] params = upsertRMSRequests.stream()
+                .map(this::fromUpsertRMSRequest)
+                .toArray(MapSqlParameterSource[]::new);
+        return namedJdbcTemplate.batchUpdate(UPSERT_IN_SINGLE_STATEMENT_BATCHED, params);
+    }
+
+    @Override
+    public Map<String, UpsertOutcome> upsertFirstOffers(String roomId, String roomSessionId,
+                                                        Collection<String> peerIds) {
+        MapSqlParameterSource params = new MapSqlParameterSource()
+                .addValue(COL_ROOM_ID, roomId)
+                .addValue(COL_ROOM_SESSION_ID, roomSessionId)
+                .addValue("peer_ids", new AbstractSqlTypeValue() {
+                    @Override
+                    protected Object createTypeValue(Connection con, int sqlType, String typeName)
+                            throws SQLException {
+                        return con.createArrayOf("text", peerIds.toArray());
+                    }
+                }, Types.ARRAY)
+                .addValue("now", new Timestamp(System.currentTimeMillis()));
+        Map<String, UpsertOutcome> outcomes = new LinkedHashMap<>();
+        peerIds.forEach(peerId -> outcomes.put(peerId, UpsertOutcome.NOT_UPDATED));
+        //matched and updated rows of the room session, whether the rooms row was written. the same on every row
+        int[] counts = new int[3];
+        try {
+            namedJdbcTemplate.query(writeAvoidance ? UPSERT_FIRST_OFFERS_IF_CHANGED_SQL : UPSERT_FIRST_OFFERS_SQL,
+                    params, rs -> {
+                        UpsertOutcome outcome;
+                        if (rs.getBoolean("stale")) {
+                            outcome = UpsertOutcome.STALE;
+                        } else {
+                            outcome = rs.getBoolean("upserted") ? UpsertOutcome.ACCEPTED : UpsertOutcome.NOT_UPDATED;
+                        }
+                        outcomes.put(rs.getString(COL_PEER_ID), outcome);
+                        counts[0] = rs.getInt("matched");
+                        counts[1] = rs.getInt("updated");
+                        counts[2] = rs.getBoolean("room_updated") ? 1 : 0;
+                    });
+            if (writeAvoidance) {
+                for (int i = counts[1]; i < counts[0]; i++) {
+                    skipped(skippedMediaSessionWrites);
+                }
+                if (counts[2] == 0 && outcomes.containsValue(UpsertOutcome.ACCEPTED)) {
+                    skipped(skippedRoomWrites);
+                }
+            }
+        } catch (DataIntegrityViolationException e) {
+            //a CREATED row moved onto a media session inserted concurrently, nothing of the statement is left
+            log.info("failed to upsert first offers of room {}, room session {}. probably someone else already "
+                     + "updated them", roomId, roomSessionId, e);
+        }
+        return outcomes;
+    }
+
+    @Override
+    public boolean offerReceivedServerSide(UpsertRMSRequest firstOfferRequest) {
+        Boolean accepted = namedJdbcTemplate.queryForObject(
+                "select rms_offer_received" + UPSERT_FUNCTION_ARGS,
+                fromUpsertRMSRequest(firstOfferRequest),
+                Boolean.class
+        );
+        return Boolean.TRUE.equals(accepted);
+    }
+
+    @Override
+    public boolean upsertServerSide(UpsertRMSRequest upsertRMSRequest) {
+        Boolean accepted = namedJdbcTemplate.queryForObject(
+                "select rms_upsert" + UPSERT_FUNCTION_ARGS,
+                fromUpsertRMSRequest(upsertRMSRequest),
+                Boolean.class
+        );
+        return Boolean.TRUE.equals(accepted);
+    }
+
+    @Override
+    public ReapedSessions reapStalledSessions(int batchSize, long createdBeforeMillis, long offeredBeforeMillis) {
+        Map<String, Object> params = Map.of(
+                "batch_size", batchSize,
+                "created_before", new Timestamp(createdBeforeMillis),
+                "offered_before", new Timestamp(offeredBeforeMillis),
+                "now", new Timestamp(System.currentTimeMillis()),
+                "unknown_rms_id_constant", UNKNOWN_ROOM_SESSION_ID
+        );
+        return namedJdbcTemplate.queryForObject(
+                REAP_STALLED_SQL,
+                params,
+                (rs, rn) -> new ReapedSessions(
+                        rs.getInt("disconnected"),
+                        rs.getInt("expired"),
+                        rs.getInt("recreated")
+                )
+        );
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByMediaSessionId(String peerId) {
+        @Language("SQL")
+        final String query = """
+            update room_media_sessions
+            set state = 'DISCONNECTED', disconnected_at = :disconnected_at, version = version + 1
+            where (room_session_id, peer_id) in (
+                select room_session_id, peer_id
+                from room_media_sessions
+                where peer_id = :peer_id and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                order by room_session_id, peer_id
+                for update
+            )
+            """;
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("peer_id", peerId);
+        params.put("disconnected_at", tmstmp(Instant.now()));
+        return namedJdbcTemplate.update(query, new MapSqlParameterSource(params));
+    }
+
+    @Override
+    public int disconnectRoomMediaSessionsByPeerId(String peerId) {
+
+        @Language("SQL")
+        final String query = """
+            update room_media_sessions
+            set state = 'DISCONNECTED', disconnected_at = :disconnected_at, version = version + 1
+            where peer_id in (
+                select peer_id from room_media_sessions
+                where peer_id = :peer_id
+                order by room_session_id, peer_id
+                for update
+            )
+            """;
+
+        Map<String, Object> params = new HashMap<>();
+        params.put("disconnected_at", tmstmp(Instant.now()));
+        params.put("peer_id", peerId);
+        return jdbcTemplate.update(query, params);
+    }
+
+    MapSqlParameterSource fromUpsertRMSRequest(UpsertRMSRequest upsertRMSRequest) {
+        Map<String, Object> result = new HashMap<>();
+
+        result.put(COL_ROOM_ID, upsertRMSRequest.getRoomId());
+        result.put(COL_ROOM_SESSION_ID, upsertRMSRequest.getRoomSessionId());
+        result.put(COL_PEER_ID, upsertRMSRequest.getPeerId());
+        result.put(COL_CREATED_AT, tmstmp(upsertRMSRequest.getNewCreatedAt()));
+        result.put(COL_FIRST_OFFER_AT, tmstmp(upsertRMSRequest.getNewFirstOfferAt()));
+        result.put(COL_CONNECTED_AT, tmstmp(upsertRMSRequest.getNewConnectedAt()));
+        result.put(COL_DISCONNECTED_AT, tmstmp(upsertRMSRequest.getNewDisconnectedAt()));
+        result.put(COL_STATE, upsertRMSRequest.getNewState().toString());
+        result.put("updated_states", upsertRMSRequest.getUpdatedStates().stream().map(Object::toString).toList());
+
+        return new MapSqlParameterSource(result);
+    }
+
+
+
+
+}
@@ -0,0 +1,44 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Shape of the round trip latency injected by {@link LatencyInjector}.
+ */
+public enum LatencyDistribution {
+    /**
+     * Always the mean, what tc netem delay without jitter does.
+     */
+    FIXED {
+        @Override
+        double sampleMillis(double meanMillis, double jitterMillis) {
+            return meanMillis;
+        }
+    },
+    /**
+     * Normally distributed around the mean with jitter as the standard deviation, cut at zero.
+     */
+    NORMAL {
+        @Override
+        double sampleMillis(double meanMillis, double jitterMillis) {
+            return Math.max(0, meanMillis + jitterMillis * ThreadLocalRandom.current().nextGaussian());
+        }
+    },
+    /**
+     * Log-normal with the given mean and standard deviation: most round trips are a bit faster than the mean,
+     * a few are many times slower.
+     */
+    LONG_TAIL {
+        @Override
+        double sampleMillis(double meanMillis, double jitterMillis) {
+            if (meanMillis <= 0) {
+                return 0;
+            }
+            double sigma = Math.sqrt(Math.log1p((jitterMillis * jitterMillis) / (meanMillis * meanMillis)));
+            double mu = Math.log(meanMillis) - sigma * sigma / 2;
+            return Math.exp(mu + sigma * ThreadLocalRandom.current().nextGaussian());
+        }
+    };
+
+    abstract double sampleMillis(double meanMillis, double jitterMillis);
+}
@@ -0,0 +1,114 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.stereotype.Component;
+
+/**
+ * Hands out connections that wait for {@link LatencyInjector#roundTrip()} before every statement execution,
+ * commit and rollback, so the pg ping experiments run against any Postgres without tc netem.
+ * The pool underneath is not delayed: connection validation and setup aren't round trips of the transitions.
+ * Round trips and the wait for a pool connection are also counted into the {@link CallTrace} of the thread.
+ */
+public class LatencyInjectingDataSource extends DelegatingDataSource {
+
+    private final Supplier<LatencyInjector> latencyInjector;
+
+    public LatencyInjectingDataSource(DataSource targetDataSource, Supplier<LatencyInjector> latencyInjector) {
+        super(targetDataSource);
+        this.latencyInjector = latencyInjector;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = super.getConnection();
+        CallTrace.connectionAcquired(System.nanoTime() - start);
+        return wrap(connection);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        long start = System.nanoTime();
+        Connection connection = super.getConnection(username, password);
+        CallTrace.connectionAcquired(System.nanoTime() - start);
+        return wrap(connection);
+    }
+
+    private Connection wrap(Connection connection) {
+        return (Connection) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{Connection.class},
+                (proxy, method, args) -> switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "commit", "rollback" -> {
+                        CallTrace.roundTrip();
+                        latencyInjector.get().roundTrip();
+                        yield invoke(connection, method, args);
+                    }
+                    case "createStatement" -> wrap((Statement) invoke(connection, method, args), Statement.class);
+                    case "prepareStatement" ->
+                            wrap((Statement) invoke(connection, method, args), PreparedStatement.class);
+                    case "prepareCall" -> wrap((Statement) invoke(connection, method, args), CallableStatement.class);
+                    default -> invoke(connection, method, args);
+                }
+        );
+    }
+
+    private Statement wrap(Statement statement, Class<? extends Statement> type) {
+        return (Statement) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    if (method.getName().startsWith("execute")) {
+                        CallTrace.roundTrip();
+                        latencyInjector.get().roundTrip();
+                    }
+                    return invoke(statement, method, args);
+                }
+        );
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Wraps every DataSource of the context.
+     */
+    @Component
+    static class PostProcessor implements BeanPostProcessor {
+
+        private final ObjectProvider<LatencyInjector> latencyInjector;
+
+        PostProcessor(ObjectProvider<LatencyInjector> latencyInjector) {
+            this.latencyInjector = latencyInjector;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (bean instanceof DataSource dataSource && !(bean instanceof LatencyInjectingDataSource)) {
+                return new LatencyInjectingDataSource(dataSource, latencyInjector::getObject);
+            }
+            return bean;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.Setter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Network latency emulated inside the JVM. {@link LatencyInjectingDataSource} calls {@link #roundTrip()}
+ * once per statement execution, commit and rollback.
+ * <p>
+ * Every round trip takes latency.millis on average, spread by latency.jitter.millis according to
+ * latency.distribution. Every latency.burst.period.millis the first latency.burst.duration.millis
+ * add latency.burst.extra.millis on top, which is how a congested link or a noisy neighbour looks like.
+ */
+@Service
+public class LatencyInjector {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Setter
+    @Value("${latency.millis:0}")
+    private volatile double meanMillis;
+
+    @Setter
+    @Value("${latency.jitter.millis:0}")
+    private volatile double jitterMillis;
+
+    @Setter
+    @Value("${latency.distribution:FIXED}")
+    private volatile LatencyDistribution distribution = LatencyDistribution.FIXED;
+
+    @Setter
+    @Value("${latency.burst.period.millis:0}")
+    private volatile long burstPeriodMillis;
+
+    @Setter
+    @Value("${latency.burst.duration.millis:0}")
+    private volatile long burstDurationMillis;
+
+    @Setter
+    @Value("${latency.burst.extra.millis:0}")
+    private volatile double burstExtraMillis;
+
+    private Timer injectedTimer;
+
+    @PostConstruct
+    protected void registerMeters() {
+        injectedTimer = Timer.builder("latency.injected")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+
+    public void roundTrip() {
+        double millis = distribution.sampleMillis(meanMillis, jitterMillis);
+        if (burstPeriodMillis > 0 && System.currentTimeMillis() % burstPeriodMillis < burstDurationMillis) {
+            millis += burstExtraMillis;
+        }
+
+        long nanos = (long) (millis * 1_000_000);
+        if (nanos <= 0) {
+            return;
+        }
+        long deadline = System.nanoTime() + nanos;
+        long left = nanos;
+        while (left > 0) {
+            LockSupport.parkNanos(left);
+            left = deadline - System.nanoTime();
+        }
+        injectedTimer.record(nanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,199 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.apache.commons.io.FileUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import static com.sparkdan.tmost_state_machine_bench.TransitionType.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.TransitionType.CREATE_SESSION;
+import static com.sparkdan.tmost_state_machine_bench.TransitionType.DISCONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.TransitionType.OFFER_RECEIVED;
+
+/**
+ * Open-loop counterpart of {@link RunTests#launchCycles()}: rooms arrive at openloop.rooms.per.second
+ * no matter how long the previous ones take, and every peer event is due at a fixed offset from the arrival
+ * of its room.
+ * <p>
+ * A room goes through the same phases as RunTests.mainOneCycle: every peer joins the first room session,
+ * the first peer moves the room to a second room session, the rest follow and everyone disconnects.
+ * Peers start openloop.peer.spacing.millis apart, consecutive events of a peer are openloop.step.millis apart.
+ * <p>
+ * Latency is measured from the time an event was due, not from the time it got a thread,
+ * so time spent behind a slow predecessor counts (no coordinated omission).
+ * Histograms are per {@link TransitionType}, in microseconds.
+ */
+@Service
+@Slf4j
+public class OpenLoopLoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(10);
+
+    @Autowired
+    protected SampleService sampleService;
+
+    @Autowired
+    protected RoomMediaSessionDao dao;
+
+    @Value("${num.peers}")
+    private int numPeers;
+
+    @Value("${test.duration.millis}")
+    private long testDurationMillis;
+
+    @Value("${openloop.rooms.per.second:1}")
+    private double roomsPerSecond;
+
+    @Value("${openloop.arrival:POISSON}")
+    private ArrivalProcess arrivalProcess;
+
+    @Value("${openloop.peer.spacing.millis:10}")
+    private long peerSpacingMillis;
+
+    @Value("${openloop.step.millis:100}")
+    private long stepMillis;
+
+    @Value("${threads.virtual:false}")
+    private boolean virtualThreads;
+
+    private ExecutorService executor;
+
+    private final Map<TransitionType, Recorder> recorders = new EnumMap<>(TransitionType.class);
+
+    private final AtomicLong failures = new AtomicLong();
+
+    @PostConstruct
+    protected void start() {
+        executor = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+        for (TransitionType type : TransitionType.values()) {
+            recorders.put(type, new Recorder(HIGHEST_TRACKABLE_MICROS, 3));
+        }
+    }
+
+    @PreDestroy
+    protected void stop() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Runs rooms for test.duration.millis, waits for the last of them and writes
+     * ipnb/hdr_{resultLabel}_{transition}.hgrm.
+     */
+    public void run(String resultLabel) throws IOException {
+        recorders.values().forEach(Recorder::reset);
+        failures.set(0);
+
+        List<CompletableFuture<Void>> rooms = new ArrayList<>();
+        long start = System.nanoTime();
+        long durationNanos = TimeUnit.MILLISECONDS.toNanos(testDurationMillis);
+        for (long arrival = start; arrival - start < durationNanos;
+             arrival += arrivalProcess.nextIntervalNanos(roomsPerSecond)) {
+            sleepUntil(arrival);
+            long roomArrival = arrival;
+            rooms.add(CompletableFuture.runAsync(() -> runRoom(roomArrival), executor));
+        }
+        CompletableFuture.allOf(rooms.toArray(new CompletableFuture[0])).join();
+
+        log.info("Open loop run {} finished: {} rooms, {} failed transitions", resultLabel, rooms.size(), failures.get());
+        for (TransitionType type : TransitionType.values()) {
+            Histogram histogram = recorders.get(type).getIntervalHistogram();
+            log.info("{} {}: count={} p50={}us p99={}us p99.9={}us max={}us",
+                    resultLabel,
+                    type.getLabel(),
+                    histogram.getTotalCount(),
+                    histogram.getValueAtPercentile(50),
+                    histogram.getValueAtPercentile(99),
+                    histogram.getValueAtPercentile(99.9),
+                    histogram.getMaxValue()
+            );
+            writeHistogram(histogram, String.format("ipnb/hdr_%s_%s.hgrm", resultLabel, type.getLabel()));
+        }
+    }
+
+    private void writeHistogram(Histogram histogram, String path) throws IOException {
+        File file = new File(path);
+        FileUtils.forceMkdirParent(file);
+        try (PrintStream out = new PrintStream(file, StandardCharsets.UTF_8)) {
+            //values are in microseconds, the distribution is printed in milliseconds
+            histogram.outputPercentileDistribution(out, 1000.0);
+        }
+    }
+
+    private void runRoom(long arrival) {
+        String roomId = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+
+        long stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMillis);
+        long spacingNanos = TimeUnit.MILLISECONDS.toNanos(peerSpacingMillis);
+        //the room moves to the second room session once the last peer has joined the first one
+        long switchAt = arrival + numPeers * spacingNanos + 3 * stepNanos;
+
+        List<CompletableFuture<Void>> peers = new ArrayList<>();
+        for (int i = 0; i < numPeers; i++) {
+            String peerId = UUID.randomUUID().toString();
+            long peerStart = arrival + i * spacingNanos;
+            long rejoin = switchAt + (i == 0 ? 0 : stepNanos * 2 + i * spacingNanos);
+            peers.add(CompletableFuture.runAsync(() -> {
+                at(peerStart, CREATE_SESSION, () -> sampleService.createSession(roomId, peerId));
+                at(peerStart + stepNanos, OFFER_RECEIVED,
+                        () -> sampleService.offerReceived(roomId, peerId, roomSession1));
+                at(peerStart + 2 * stepNanos, CONNECTED,
+                        () -> sampleService.connected(roomId, peerId, roomSession1));
+                at(rejoin, OFFER_RECEIVED, () -> sampleService.offerReceived(roomId, peerId, roomSession2));
+                at(rejoin + stepNanos, CONNECTED, () -> sampleService.connected(roomId, peerId, roomSession2));
+                at(rejoin + 2 * stepNanos, DISCONNECTED,
+                        () -> sampleService.disconnected(roomId, peerId, roomSession2));
+            }, executor));
+        }
+        CompletableFuture.allOf(peers.toArray(new CompletableFuture[0])).join();
+    }
+
+    /**
+     * Runs the transition once it's due and records how late it finished relative to when it was due.
+     */
+    private void at(long dueNanos, TransitionType type, Runnable transition) {
+        sleepUntil(dueNanos);
+        try {
+            transition.run();
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.error("Failed {}", type.getLabel(), e);
+            return;
+        }
+        long latencyMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - dueNanos);
+        recorders.get(type).recordValue(Math.min(latencyMicros, HIGHEST_TRACKABLE_MICROS));
+    }
+
+    private static void sleepUntil(long deadlineNanos) {
+        long left = deadlineNanos - System.nanoTime();
+        while (left > 0) {
+            LockSupport.parkNanos(left);
+            left = deadlineNanos - System.nanoTime();
+        }
+    }
+}
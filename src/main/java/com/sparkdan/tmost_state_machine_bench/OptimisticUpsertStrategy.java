@@ -0,0 +1,153 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionDao.UNKNOWN_ROOM_SESSION_ID;
+
+/**
+ * No locks are taken up front. A transition reads the room and the row with their versions and writes the row
+ * only if neither version has moved. A transition that switches the room session first moves the room on from
+ * the version it read. Everything is one short transaction, a conflict rolls it back and the transition is repeated
+ * from the reads after a jittered exponential backoff, at most optimistic.max.attempts times.
+ * <p>
+ * Transitions of a room that don't switch its room session never write the rooms row, they only share its lock
+ * from the row write on, so in large rooms they only collide on the rows of the same peer. A switch that commits
+ * before the row write is a conflict, a later one waits for the transition to commit, just like with LOCKS
+ * no transition lands in a room session that's no longer current.
+ * Conflicts, serialization failures and deadlocks are counted in optimistic.conflicts,
+ * retries per transition in optimistic.retries.
+ */
+@Service
+@Slf4j
+public class OptimisticUpsertStrategy implements UpsertStrategy {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    RoomMediaSessionDao roomMediaSessionDao;
+
+    @Autowired
+    TransactionTemplate transactionTemplate;
+
+    @Value("${optimistic.max.attempts:8}")
+    int maxAttempts = 8;
+
+    /**
+     * Backoff before the first retry, doubled with every next one. The actual sleep is uniformly random
+     * below it, so the conflicting transitions don't collide again.
+     */
+    @Value("${optimistic.backoff.micros:500}")
+    long backoffMicros = 500;
+
+    private Counter roomConflicts;
+    private Counter rowConflicts;
+    private Counter concurrencyFailures;
+    private Counter exhausted;
+    private DistributionSummary retries;
+
+    @PostConstruct
+    protected void registerMeters() {
+        roomConflicts = meterRegistry.counter("optimistic.conflicts", "on", "rooms");
+        rowConflicts = meterRegistry.counter("optimistic.conflicts", "on", "room_media_sessions");
+        concurrencyFailures = meterRegistry.counter("optimistic.conflicts", "on", "database");
+        exhausted = meterRegistry.counter("optimistic.exhausted");
+        retries = DistributionSummary.builder("optimistic.retries")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .register(meterRegistry);
+    }
+
+    @Override
+    public boolean upsert(UpsertRMSRequest upsertRMSRequest) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                Boolean accepted = transactionTemplate.execute(status -> tryUpsert(upsertRMSRequest));
+                retries.record(attempt - 1);
+                return Boolean.TRUE.equals(accepted);
+            } catch (ConcurrencyFailureException e) {
+                if (e instanceof Conflict conflict) {
+                    (conflict.onRoom ? roomConflicts : rowConflicts).increment();
+                } else {
+                    //serialization failures and deadlocks
+                    concurrencyFailures.increment();
+                }
+                if (attempt >= maxAttempts) {
+                    exhausted.increment();
+                    retries.record(attempt - 1);
+                    throw e;
+                }
+                log.trace("Conflict on attempt {} of {}", attempt, upsertRMSRequest, e);
+                backoff(attempt);
+            }
+        }
+    }
+
+    private boolean tryUpsert(UpsertRMSRequest upsertRMSRequest) {
+        String roomId = upsertRMSRequest.getRoomId();
+        String peerId = upsertRMSRequest.getPeerId();
+        String roomSessionId = upsertRMSRequest.getRoomSessionId();
+
+        VersionedRoom room = roomMediaSessionDao.readVersionedRoom(roomId);
+        boolean switching = !roomSessionId.equals(room.currentRoomSessionId());
+        if (switching && room.currentRoomSessionId() != null
+            && !roomMediaSessionDao.isBrandNewRoomSession(roomId, roomSessionId)) {
+            return false;
+        }
+
+        //the switch goes first: the rooms row it locks is the one the row write shares
+        long roomVersion = room.version();
+        if (switching) {
+            if (roomMediaSessionDao.compareAndSetLatestRoomSessionId(roomId, roomSessionId, roomVersion) == 0) {
+                throw new Conflict(true, upsertRMSRequest);
+            }
+            roomVersion++;
+        }
+
+        int updated;
+        RoomMediaSessionDto row = roomMediaSessionDao.findByPrimaryKey(roomId, roomSessionId, peerId);
+        if (row != null) {
+            updated = roomMediaSessionDao.compareAndSetRoomMediaSession(upsertRMSRequest, roomSessionId,
+                    row.getVersion(), roomVersion);
+        } else {
+            RoomMediaSessionDto created = roomMediaSessionDao.findByPrimaryKey(roomId, null, peerId);
+            updated = created != null && created.getState() == RoomMediaSessionState.CREATED
+                    ? roomMediaSessionDao.compareAndSetRoomMediaSession(upsertRMSRequest, UNKNOWN_ROOM_SESSION_ID,
+                            created.getVersion(), roomVersion)
+                    : roomMediaSessionDao.compareAndInsertRoomMediaSession(upsertRMSRequest, roomVersion);
+        }
+        if (updated == 0) {
+            //one more read on the conflict path only, to tell which of the two versions moved
+            throw new Conflict(roomMediaSessionDao.readVersionedRoom(roomId).version() != roomVersion,
+                    upsertRMSRequest);
+        }
+        return true;
+    }
+
+    private void backoff(int attempt) {
+        long boundNanos = TimeUnit.MICROSECONDS.toNanos(backoffMicros) << Math.min(attempt - 1, 16);
+        LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(boundNanos + 1));
+    }
+
+    private static class Conflict extends OptimisticLockingFailureException {
+        private final boolean onRoom;
+
+        private Conflict(boolean onRoom, UpsertRMSRequest upsertRMSRequest) {
+            super((onRoom ? "rooms" : "room_media_sessions") + " version changed under " + upsertRMSRequest);
+            this.onRoom = onRoom;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.springframework.stereotype.Service;
+
+/**
+ * Polls Postgres while a suite runs: lock waits, wait events of the other backends, tuple and HOT update
+ * counters of rooms and room_media_sessions, deadlocks and pg_stat_statements, so the strategies can be
+ * compared by the contention they cause and not only by throughput.
+ * The sizes of room_media_sessions and of its history show what {@link SessionArchiver} keeps up with.
+ * <p>
+ * Uses a connection of its own, outside of the pool and of the injected latency.
+ * The pg_stat_user_tables and pg_stat_database counters are cumulative and Postgres flushes them about once
+ * a second, the lock and wait columns are instant.
+ */
+@Service
+@Slf4j
+public class PgTelemetrySampler {
+
+    private static final String SAMPLE_SQL = """
+            select
+                (select count(*) from pg_locks where not granted and locktype = 'tuple') as tuple_lock_waits,
+                (select count(*) from pg_locks where not granted and locktype = 'transactionid')
+                    as transaction_lock_waits,
+                a.active,
+                a.rooms_lock_waits,
+                a.rms_lock_waits,
+                a.lock_waits,
+                a.lwlock_waits,
+                a.io_waits,
+                d.deadlocks,
+                d.xact_rollback,
+                r.n_tup_upd as rooms_upd,
+                r.n_tup_hot_upd as rooms_hot_upd,
+                r.n_dead_tup as rooms_dead_tup,
+                m.n_tup_ins as rms_ins,
+                m.n_tup_upd as rms_upd,
+                m.n_tup_hot_upd as rms_hot_upd,
+                m.n_dead_tup as rms_dead_tup,
+                m.table_bytes as rms_table_bytes,
+                m.index_bytes as rms_index_bytes,
+                (select n_tup_ins from pg_stat_user_tables where relname = 'room_media_sessions_history')
+                    as history_ins,
+                pg_total_relation_size(to_regclass('room_media_sessions_history')) as history_bytes
+            from (
+                select count(*) filter (where state = 'active') as active,
+                       count(*) filter (where wait_event_type = 'Lock' and query ~* '\\mrooms\\M') as rooms_lock_waits,
+                       count(*) filter (where wait_event_type = 'Lock' and query ~* '\\mroom_media_sessions\\M')
+                           as rms_lock_waits,
+                       count(*) filter (where wait_event_type = 'Lock') as lock_waits,
+                       count(*) filter (where wait_event_type = 'LWLock') as lwlock_waits,
+                       count(*) filter (where wait_event_type = 'IO') as io_waits
+                from pg_stat_activity
+                where datname = current_database() and pid <> pg_backend_pid()
+            ) a,
+                 pg_stat_database d,
+                 pg_stat_user_tables r,
+                 (
+                     --the partitions of a partitioned room_media_sessions have the counters, not the parent
+                     select sum(n_tup_ins) as n_tup_ins,
+                            sum(n_tup_upd) as n_tup_upd,
+                            sum(n_tup_hot_upd) as n_tup_hot_upd,
+                            sum(n_dead_tup) as n_dead_tup,
+                            sum(pg_table_size(relid)) as table_bytes,
+                            sum(pg_indexes_size(relid)) as index_bytes
+                     from pg_stat_user_tables
+                     where relname = 'room_media_sessions'
+                        or relid in (select inhrelid from pg_inherits
+                                     where inhparent = 'room_media_sessions'::regclass)
+                 ) m
+            where d.datname = current_database()
+              and r.relname = 'rooms'
+            """;
+
+    private static final String STATEMENTS_TOTAL_SQL = """
+            select coalesce(sum(calls), 0) as stmt_calls,
+                   coalesce(sum(total_exec_time), 0) as stmt_exec_ms,
+                   coalesce(sum(rows), 0) as stmt_rows
+            from pg_stat_statements
+            where dbid = (select oid from pg_database where datname = current_database())
+              and query ~* '\\m(rooms|room_media_sessions)\\M'
+            """;
+
+    private static final String STATEMENTS_SQL = """
+            select calls,
+                   round(total_exec_time::numeric, 3) as total_exec_ms,
+                   round(mean_exec_time::numeric, 3) as mean_exec_ms,
+                   rows,
+                   shared_blks_hit,
+                   shared_blks_read,
+                   regexp_replace(query, '\\s+', ' ', 'g') as query
+            from pg_stat_statements
+            where dbid = (select oid from pg_database where datname = current_database())
+              and query ~* '\\m(rooms|room_media_sessions)\\M'
+            order by total_exec_time desc
+            """;
+
+    @Autowired(required = false)
+    DataSourceProperties dataSourceProperties;
+
+    @Value("${pg.telemetry.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${pg.telemetry.interval.millis:250}")
+    private long intervalMillis = 250;
+
+    private SingleConnectionDataSource dataSource;
+    private JdbcTemplate jdbcTemplate;
+    private boolean statementsAvailable;
+
+    private ScheduledExecutorService sampler;
+    private final List<String> columns = new ArrayList<>();
+    private final List<List<Object>> samples = new ArrayList<>();
+
+    public synchronized void start() {
+        samples.clear();
+        columns.clear();
+        if (!enabled || dataSourceProperties == null) {
+            return;
+        }
+        try {
+            connect();
+        } catch (Exception e) {
+            log.warn("Postgres telemetry is not available for this suite", e);
+            return;
+        }
+        if (statementsAvailable) {
+            try {
+                jdbcTemplate.execute("select pg_stat_statements_reset()");
+            } catch (Exception e) {
+                log.warn("Failed to reset pg_stat_statements, statement columns are left out", e);
+                statementsAvailable = false;
+            }
+        }
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "pg-telemetry-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        if (sampler != null) {
+            sampler.shutdown();
+            sampler.awaitTermination(5, TimeUnit.SECONDS);
+            sampler = null;
+        }
+    }
+
+    @PreDestroy
+    protected void close() {
+        if (dataSource != null) {
+            dataSource.destroy();
+        }
+    }
+
+    private void connect() {
+        if (jdbcTemplate != null) {
+            return;
+        }
+        dataSource = new SingleConnectionDataSource(
+                dataSourceProperties.determineUrl(),
+                dataSourceProperties.determineUsername(),
+                dataSourceProperties.determinePassword(),
+                true
+        );
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        statementsAvailable = statementsReadable();
+    }
+
+    /**
+     * migration.sql always creates the extension, but the view can only be read with pg_stat_statements in
+     * shared_preload_libraries, which a stock Postgres doesn't have.
+     */
+    private boolean statementsReadable() {
+        try {
+            jdbcTemplate.queryForList("select 1 from pg_stat_statements limit 1");
+            return true;
+        } catch (Exception e) {
+            log.info("pg_stat_statements is not readable, statement columns are left out: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void sample() {
+        try {
+            long time = System.currentTimeMillis();
+            Map<String, Object> row = jdbcTemplate.queryForMap(SAMPLE_SQL);
+            if (statementsAvailable) {
+                row.putAll(jdbcTemplate.queryForMap(STATEMENTS_TOTAL_SQL));
+            }
+            synchronized (samples) {
+                if (columns.isEmpty()) {
+                    columns.addAll(row.keySet());
+                }
+                List<Object> sample = new ArrayList<>(columns.size() + 1);
+                sample.add(time);
+                for (String column : columns) {
+                    sample.add(row.get(column));
+                }
+                samples.add(sample);
+            }
+        } catch (Exception e) {
+            //keep sampling, a single missed sample is a gap in the series
+            log.warn("Failed to sample Postgres telemetry", e);
+        }
+    }
+
+    /**
+     * Writes ipnb/pg_{suffix}.csv with a row per sample and, when pg_stat_statements is installed,
+     * ipnb/pgstatements_{suffix}.csv with the statements of the suite on the two tables.
+     */
+    public synchronized void writeResults(String suffix) throws IOException {
+        if (jdbcTemplate == null) {
+            return;
+        }
+        StringBuilder csv = new StringBuilder();
+        synchronized (samples) {
+            csv.append("time,").append(String.join(",", columns)).append("\n");
+            for (List<Object> sample : samples) {
+                csv.append(StringUtils.join(sample, ',')).append("\n");
+            }
+        }
+        FileUtils.writeStringToFile(new File("ipnb/pg_" + suffix + ".csv"), csv.toString(), StandardCharsets.UTF_8);
+
+        if (statementsAvailable) {
+            StringBuilder statements = new StringBuilder(
+                    "calls,total_exec_ms,mean_exec_ms,rows,shared_blks_hit,shared_blks_read,query\n");
+            for (Map<String, Object> row : jdbcTemplate.queryForList(STATEMENTS_SQL)) {
+                statements.append(row.get("calls")).append(",")
+                        .append(row.get("total_exec_ms")).append(",")
+                        .append(row.get("mean_exec_ms")).append(",")
+                        .append(row.get("rows")).append(",")
+                        .append(row.get("shared_blks_hit")).append(",")
+                        .append(row.get("shared_blks_read")).append(",")
+                        .append('"').append(StringUtils.replace((String) row.get("query"), "\"", "\"\""))
+                        .append('"').append("\n");
+            }
+            FileUtils.writeStringToFile(new File("ipnb/pgstatements_" + suffix + ".csv"), statements.toString(),
+                    StandardCharsets.UTF_8);
+        }
+    }
+}
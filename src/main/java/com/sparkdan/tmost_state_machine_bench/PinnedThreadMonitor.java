@@ -0,0 +1,102 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Counts virtual threads pinned to their carrier while blocking, e.g. on a monitor held inside the driver
+ * or the pool, using the jdk.VirtualThreadPinned JFR event.
+ * Pins longer than threads.pinned.threshold.millis are exported as threads.virtual.pinned and every
+ * distinct pinning site is logged once.
+ */
+@Service
+@Slf4j
+public class PinnedThreadMonitor {
+
+    private static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${threads.virtual:false}")
+    private boolean virtualThreads;
+
+    @Value("${threads.pinned.threshold.millis:1}")
+    private long thresholdMillis;
+
+    private final Set<String> reportedSites = ConcurrentHashMap.newKeySet();
+
+    private Counter pinnedCounter;
+    private Timer pinnedTimer;
+
+    private RecordingStream recording;
+
+    @PostConstruct
+    protected void start() {
+        if (!virtualThreads) {
+            return;
+        }
+
+        pinnedCounter = meterRegistry.counter("threads.virtual.pinned");
+        pinnedTimer = Timer.builder("threads.virtual.pinned.duration")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+
+        recording = new RecordingStream();
+        recording.enable(PINNED_EVENT)
+                .withThreshold(Duration.ofMillis(thresholdMillis))
+                .withStackTrace();
+        recording.onEvent(PINNED_EVENT, this::onPinned);
+        recording.startAsync();
+    }
+
+    @PreDestroy
+    protected void stop() {
+        if (recording != null) {
+            recording.close();
+        }
+    }
+
+    private void onPinned(RecordedEvent event) {
+        pinnedCounter.increment();
+        pinnedTimer.record(event.getDuration());
+
+        String site = pinningSite(event.getStackTrace());
+        if (reportedSites.add(site)) {
+            log.warn("Virtual thread pinned for {} ms at {}", event.getDuration().toMillis(), site);
+        }
+    }
+
+    /**
+     * The first frame outside of the JDK, that's where the monitor is held.
+     */
+    private static String pinningSite(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "unknown";
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String type = frame.getMethod().getType().getName();
+            if (type.startsWith("java.") || type.startsWith("jdk.") || type.startsWith("sun.")) {
+                continue;
+            }
+            return type + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+        }
+        return "unknown";
+    }
+}
@@ -0,0 +1,266 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.Readable;
+import lombok.extern.slf4j.Slf4j;
+import org.intellij.lang.annotations.Language;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.Instant;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.connection.R2dbcTransactionManager;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.r2dbc.core.DatabaseClient.GenericExecuteSpec;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+import reactor.core.publisher.Mono;
+
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.BUMP_ROOM_VERSION;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CREATED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_DISCONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_FIRST_OFFER_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_PEER_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_STATE;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.DISCONNECT_LOCKED_SQL;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.DISCONNECT_UNLOCKED_SQL;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.INSERT_OR_DO_NOTHING;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.KNOWN_ROOM_SESSION;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.RECREATE_DISCONNECTED_SQL;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_BY_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_CREATED_ROOM_SESSION;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPSERT_IN_SINGLE_STATEMENT;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionDao.UNKNOWN_ROOM_SESSION_ID;
+
+/**
+ * Non-blocking counterpart of {@link JdbcRoomMediaSessionDao} over R2DBC, used by {@link ReactiveSampleService}.
+ * Runs the same SQL, only the operations the transitions need are here.
+ * A room without a current room session comes back as an empty Mono.
+ */
+@Service
+@ConditionalOnProperty(name = "reactive.enabled", havingValue = "true")
+@Slf4j
+public class R2dbcRoomMediaSessionDao {
+
+    /**
+     * The driver has no codec for room_media_session_state, so the rows inserted by RECREATE_DISCONNECTED_SQL
+     * are read back with the state as text.
+     */
+    @Language("SQL")
+    private static final String RECREATED_AS_TEXT = """
+            )
+            select peer_id, room_session_id, room_id, created_at, first_offer_at, connected_at, disconnected_at,
+                   cast(state as text) as state
+            from recreated
+            """;
+
+    private final DatabaseClient databaseClient;
+    private final TransactionalOperator transactionalOperator;
+
+    public R2dbcRoomMediaSessionDao(ConnectionFactory connectionFactory) {
+        databaseClient = DatabaseClient.create(connectionFactory);
+        transactionalOperator = TransactionalOperator.create(new R2dbcTransactionManager(connectionFactory));
+    }
+
+    public <T> Mono<T> inTransaction(Mono<T> mono) {
+        return transactionalOperator.transactional(mono);
+    }
+
+    public Mono<String> getLatestRoomSessionId(String roomId) {
+        return databaseClient.sql("""
+                        select current_room_session_id
+                        from rooms
+                        where
+                            room_id = :room_id
+                        """)
+                .bind(COL_ROOM_ID, roomId)
+                .map(row -> Optional.ofNullable(row.get("current_room_session_id", String.class)))
+                .one()
+                .flatMap(Mono::justOrEmpty);
+    }
+
+    public Mono<Void> setLatestRoomSessionId(String roomId, String roomSessionId) {
+        return databaseClient.sql("""
+                                update rooms
+                                    set current_room_session_id = :room_session_id,
+                                        """ + BUMP_ROOM_VERSION + """
+                                where room_id = :room_id
+                        """)
+                .bind(COL_ROOM_SESSION_ID, roomSessionId)
+                .bind(COL_ROOM_ID, roomId)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Boolean> isBrandNewRoomSession(String roomId, String roomSessionId) {
+        return databaseClient.sql("select " + KNOWN_ROOM_SESSION)
+                .bind(COL_ROOM_ID, roomId)
+                .bind(COL_ROOM_SESSION_ID, roomSessionId)
+                .map(row -> row.get(0, Boolean.class))
+                .one()
+                .map(known -> !known)
+                .defaultIfEmpty(true);
+    }
+
+    public Mono<Void> created(String roomId, String peerId) {
+        return databaseClient.sql("""
+                        insert into room_media_sessions (state, room_id, room_session_id, peer_id, created_at)
+                        values (:state, :room_id, :room_session_id, :peer_id, :created_at)
+                        on conflict on constraint pk_room_media_sessions_id do nothing
+                        """)
+                .bind(COL_STATE, RoomMediaSessionState.CREATED.toString())
+                .bind(COL_ROOM_ID, roomId)
+                .bind(COL_ROOM_SESSION_ID, UNKNOWN_ROOM_SESSION_ID)
+                .bind(COL_PEER_ID, peerId)
+                .bind(COL_CREATED_AT, java.time.Instant.now())
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<List<String>> findOtherActiveRoomSessions(String roomId, String roomSessionId) {
+        return databaseClient.sql("""
+                        select distinct room_session_id
+                        from room_media_sessions
+                        where room_id = :room_id
+                          and state in ('FIRST_OFFER_RECEIVED', 'CONNECTED')
+                          and disconnected_at is null
+                          and room_session_id <> :room_session_id
+                        """)
+                .bind(COL_ROOM_ID, roomId)
+                .bind(COL_ROOM_SESSION_ID, roomSessionId)
+                .map(row -> row.get(COL_ROOM_SESSION_ID, String.class))
+                .all()
+                .collectList();
+    }
+
+    /**
+     * @see RoomMediaSessionDao#disconnectAllInRoomAndRecreate(String, Collection, String)
+     * @see RoomMediaSessionDao#disconnectAllInRoomAndRecreateWithoutLocking(String, Collection, String)
+     */
+    public Mono<List<RoomMediaSessionDto>> disconnectAllInRoomAndRecreate(
+            String roomId,
+            Collection<String> roomSessionIdsToDisconnect,
+            String newRoomSessionId,
+            boolean lockRows) {
+        if (roomSessionIdsToDisconnect.isEmpty()) {
+            return Mono.just(List.of());
+        }
+
+        return databaseClient.sql((lockRows ? DISCONNECT_LOCKED_SQL : DISCONNECT_UNLOCKED_SQL)
+                        + ", recreated as (" + RECREATE_DISCONNECTED_SQL + RECREATED_AS_TEXT)
+                .bind(COL_ROOM_ID, roomId)
+                .bind("room_session_id_to_disconnect", roomSessionIdsToDisconnect)
+                .bind("new_room_session_id", newRoomSessionId)
+                .bind("now", java.time.Instant.now())
+                .bind("unknown_rms_id_constant", UNKNOWN_ROOM_SESSION_ID)
+                .map(R2dbcRoomMediaSessionDao::parseRow)
+                .all()
+                .collectList();
+    }
+
+    /**
+     * Serializes transitions within the room until the end of the surrounding {@link #inTransaction(Mono)}.
+     */
+    public Mono<Void> selectRoomIdForUpdate(String roomId) {
+        return databaseClient.sql("select room_id from rooms where room_id = :room_id for update")
+                .bind(COL_ROOM_ID, roomId)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    public Mono<Long> updateByRoomSessionId(UpsertRMSRequest upsertRMSRequest) {
+        return bindUpsert(databaseClient.sql(UPDATE_BY_ROOM_SESSION_ID), upsertRMSRequest)
+                .fetch()
+                .rowsUpdated();
+    }
+
+    public Mono<Long> updateCreatedRoomSession(UpsertRMSRequest upsertRMSRequest) {
+        return bindUpsert(databaseClient.sql(UPDATE_CREATED_ROOM_SESSION), upsertRMSRequest)
+                .fetch()
+                .rowsUpdated()
+                .onErrorResume(DataIntegrityViolationException.class, e -> {
+                    log.info("failed to update created RMS with update request {}. " +
+                             "probably someone else already updated it",
+                            upsertRMSRequest,
+                            e
+                    );
+                    return Mono.just(0L);
+                });
+    }
+
+    public Mono<Long> insertOrDoNothing(UpsertRMSRequest upsertRMSRequest) {
+        return bindUpsert(databaseClient.sql(INSERT_OR_DO_NOTHING), upsertRMSRequest)
+                .fetch()
+                .rowsUpdated();
+    }
+
+    public Mono<UpsertOutcome> upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        return bindUpsert(databaseClient.sql(UPSERT_IN_SINGLE_STATEMENT), upsertRMSRequest)
+                .map(row -> {
+                    if (Boolean.TRUE.equals(row.get("stale", Boolean.class))) {
+                        return UpsertOutcome.STALE;
+                    }
+                    Long upserted = row.get("upserted", Long.class);
+                    return upserted != null && upserted > 0 ? UpsertOutcome.ACCEPTED : UpsertOutcome.NOT_UPDATED;
+                })
+                .one()
+                .onErrorResume(DataIntegrityViolationException.class, e -> {
+                    log.info("failed to upsert RMS with update request {}. probably someone else already updated it",
+                            upsertRMSRequest,
+                            e
+                    );
+                    return Mono.just(UpsertOutcome.NOT_UPDATED);
+                });
+    }
+
+    private static GenericExecuteSpec bindUpsert(GenericExecuteSpec spec, UpsertRMSRequest upsertRMSRequest) {
+        spec = spec.bind(COL_ROOM_ID, upsertRMSRequest.getRoomId())
+                .bind(COL_ROOM_SESSION_ID, upsertRMSRequest.getRoomSessionId())
+                .bind(COL_PEER_ID, upsertRMSRequest.getPeerId())
+                .bind(COL_STATE, upsertRMSRequest.getNewState().toString())
+                .bind("updated_states", upsertRMSRequest.getUpdatedStates().stream().map(Object::toString).toList());
+        spec = bindTimestamp(spec, COL_CREATED_AT, upsertRMSRequest.getNewCreatedAt());
+        spec = bindTimestamp(spec, COL_FIRST_OFFER_AT, upsertRMSRequest.getNewFirstOfferAt());
+        spec = bindTimestamp(spec, COL_CONNECTED_AT, upsertRMSRequest.getNewConnectedAt());
+        return bindTimestamp(spec, COL_DISCONNECTED_AT, upsertRMSRequest.getNewDisconnectedAt());
+    }
+
+    private static GenericExecuteSpec bindTimestamp(GenericExecuteSpec spec, String name, @Nullable Instant instant) {
+        if (instant == null) {
+            return spec.bindNull(name, java.time.Instant.class);
+        }
+        return spec.bind(name, java.time.Instant.ofEpochMilli(instant.getMillis()));
+    }
+
+    @Nullable
+    private static Instant instant(Readable row, String column) {
+        java.time.Instant instant = row.get(column, java.time.Instant.class);
+        return instant == null ? null : new Instant(instant.toEpochMilli());
+    }
+
+    private static RoomMediaSessionDto parseRow(Readable row) {
+        String roomSessionId = row.get(COL_ROOM_SESSION_ID, String.class);
+        if (UNKNOWN_ROOM_SESSION_ID.equals(roomSessionId)) {
+            roomSessionId = null;
+        }
+        return RoomMediaSessionDto.builder()
+                .roomId(row.get(COL_ROOM_ID, String.class))
+                .roomSessionId(roomSessionId)
+                .mediaSessionId(row.get(COL_PEER_ID, String.class))
+                .createdAt(instant(row, COL_CREATED_AT))
+                .firstOfferAt(instant(row, COL_FIRST_OFFER_AT))
+                .connectedAt(instant(row, COL_CONNECTED_AT))
+                .disconnectedAt(instant(row, COL_DISCONNECTED_AT))
+                .state(RoomMediaSessionState.valueOf(row.get(COL_STATE, String.class)))
+                .build();
+    }
+}
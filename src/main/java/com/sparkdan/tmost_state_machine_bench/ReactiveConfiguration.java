@@ -0,0 +1,48 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactory;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * The R2DBC pool of {@link R2dbcRoomMediaSessionDao}. R2dbcAutoConfiguration is excluded in
+ * application.properties, otherwise the mere r2dbc driver on the classpath would give the context a
+ * ConnectionFactory and turn the JDBC autoconfiguration off with reactive.enabled=false.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnProperty(name = "reactive.enabled", havingValue = "true")
+public class ReactiveConfiguration {
+
+    @Value("${spring.r2dbc.url}")
+    String url;
+
+    @Value("${spring.r2dbc.username:}")
+    String username;
+
+    @Value("${spring.r2dbc.password:}")
+    String password;
+
+    @Value("${spring.r2dbc.pool.max-size:10}")
+    int maxSize = 10;
+
+    @Bean(destroyMethod = "dispose")
+    public ConnectionPool connectionFactory() {
+        ConnectionFactoryOptions.Builder options = ConnectionFactoryOptions.parse(url).mutate();
+        if (!username.isEmpty()) {
+            options.option(ConnectionFactoryOptions.USER, username);
+        }
+        if (!password.isEmpty()) {
+            options.option(ConnectionFactoryOptions.PASSWORD, password);
+        }
+        ConnectionFactory connectionFactory = ConnectionFactories.get(options.build());
+        return new ConnectionPool(ConnectionPoolConfiguration.builder(connectionFactory)
+                .maxSize(maxSize)
+                .build());
+    }
+}
@@ -0,0 +1,226 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Mono;
+
+/**
+ * {@link SampleService} transitions on top of {@link R2dbcRoomMediaSessionDao}: nothing blocks a thread
+ * while a statement is in flight.
+ * Supports the upsert modes that don't need server side code or a JVM side stage.
+ * Publishes to the same meters as SampleService, so RunTests reads both the same way.
+ */
+@Service
+@ConditionalOnProperty(name = "reactive.enabled", havingValue = "true")
+@Slf4j
+public class ReactiveSampleService {
+
+    public static final Set<UpsertMode> SUPPORTED_MODES = EnumSet.of(
+            UpsertMode.NO_LOCKS,
+            UpsertMode.LOCKS,
+            UpsertMode.SINGLE_STATEMENT
+    );
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    R2dbcRoomMediaSessionDao roomMediaSessionDao;
+
+    @Autowired
+    TransitionRecorder transitionRecorder;
+
+    private Counter callsConnectedCounter;
+    private Counter upsertRequestsCounter;
+    private Timer upsertRequestsTimer;
+
+    @Getter
+    private UpsertMode upsertMode = UpsertMode.NO_LOCKS;
+
+    @PostConstruct
+    protected void registerMeters() {
+        callsConnectedCounter = meterRegistry.counter("sampleservice.callsConnected");
+        upsertRequestsCounter = meterRegistry.counter("sampleservice.upsertRequestsCounter");
+
+        upsertRequestsTimer = Timer.builder("sampleservice.upsertRequestTimer")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .publishPercentileHistogram()
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+
+    public void setUpsertMode(UpsertMode upsertMode) {
+        if (!SUPPORTED_MODES.contains(upsertMode)) {
+            throw new IllegalArgumentException("Upsert mode " + upsertMode + " is not supported by the reactive path");
+        }
+        this.upsertMode = upsertMode;
+    }
+
+    public Mono<Void> createSession(String roomId, String peerId) {
+        return recorded(TransitionType.CREATE_SESSION, roomMediaSessionDao.created(roomId, peerId).thenReturn(true))
+                .then();
+    }
+
+    public Mono<Boolean> offerReceived(String roomId, String peerId, String roomSessionId) {
+        Mono<Boolean> offer = isRoomSessionLive(roomId, roomSessionId)
+                .flatMap(live -> {
+                    if (!live) {
+                        return Mono.just(false);
+                    }
+                    return disconnectOtherSessions(roomId, roomSessionId)
+                            .then(upsertTransactionally(
+                                    UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, Instant.now())));
+                })
+                .doOnNext(accepted -> log.trace("Acknowledged offer from room_id={}, peer_id={}, " +
+                                                "bridge_session_id={}. Accepted: {}",
+                        roomId, peerId, roomSessionId, accepted
+                ));
+        return timed(TransitionType.OFFER_RECEIVED, offer);
+    }
+
+    public Mono<Boolean> connected(String roomId, String peerId, String roomSessionId) {
+        return timed(TransitionType.CONNECTED, Mono.defer(() -> upsertTransactionally(
+                        UpsertRMSRequest.connected(roomId, peerId, roomSessionId, Instant.now()))))
+                .doOnNext(result -> callsConnectedCounter.increment());
+    }
+
+    public Mono<Boolean> disconnected(String roomId, String peerId, String roomSessionId) {
+        return timed(TransitionType.DISCONNECTED, Mono.defer(() -> upsertTransactionally(
+                UpsertRMSRequest.disconnected(roomId, peerId, roomSessionId, Instant.now()))));
+    }
+
+    private Mono<Boolean> timed(TransitionType type, Mono<Boolean> transition) {
+        return recorded(type, Mono.defer(() -> {
+            long start = System.nanoTime();
+            return transition.doOnNext(result -> {
+                upsertRequestsTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                upsertRequestsCounter.increment();
+            });
+        }));
+    }
+
+    private Mono<Boolean> recorded(TransitionType type, Mono<Boolean> transition) {
+        return Mono.defer(() -> {
+            long start = System.nanoTime();
+            return transition
+                    .doOnNext(result -> transitionRecorder.record(type, start, System.nanoTime(),
+                            result ? TransitionOutcome.ACCEPTED : TransitionOutcome.REJECTED))
+                    .doOnError(e -> transitionRecorder.record(type, start, System.nanoTime(),
+                            TransitionOutcome.FAILED));
+        });
+    }
+
+    private Mono<Boolean> isRoomSessionLive(String roomId, String roomSessionId) {
+        return roomMediaSessionDao.getLatestRoomSessionId(roomId)
+                .flatMap(latestRoomSessionId -> {
+                    if (roomSessionId != null && !latestRoomSessionId.equals(roomSessionId)) {
+                        //same as SampleService: an offer for a never seen room session means the bridge session
+                        // was changed, allow connections only to the new one
+                        return roomMediaSessionDao.isBrandNewRoomSession(roomId, roomSessionId);
+                    }
+                    return Mono.just(true);
+                })
+                .defaultIfEmpty(true);
+    }
+
+    private Mono<Boolean> isStaleRoomSession(String roomId, String roomSessionId) {
+        return roomMediaSessionDao.getLatestRoomSessionId(roomId)
+                .flatMap(currentRoomSessionId -> {
+                    if (roomSessionId != null && !currentRoomSessionId.equals(roomSessionId)) {
+                        return roomMediaSessionDao.isBrandNewRoomSession(roomId, roomSessionId)
+                                .map(brandNew -> !brandNew);
+                    }
+                    return Mono.just(false);
+                })
+                .defaultIfEmpty(false);
+    }
+
+    private Mono<Void> disconnectOtherSessions(String roomId, String roomSessionIdToKeep) {
+        return roomMediaSessionDao.findOtherActiveRoomSessions(roomId, roomSessionIdToKeep)
+                .flatMap(stalledRoomSessions -> {
+                    log.trace("Disconnecting stalled room sessions {}", stalledRoomSessions);
+                    return roomMediaSessionDao.disconnectAllInRoomAndRecreate(
+                            roomId,
+                            stalledRoomSessions,
+                            roomSessionIdToKeep,
+                            true
+                    );
+                })
+                .then();
+    }
+
+    private Mono<Long> upsertCascade(UpsertRMSRequest upsertRMSRequest, boolean retryUpdate) {
+        return roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest)
+                .flatMap(updated -> updated != 0
+                        ? Mono.just(updated)
+                        : roomMediaSessionDao.updateCreatedRoomSession(upsertRMSRequest))
+                .flatMap(updated -> updated != 0
+                        ? Mono.just(updated)
+                        : roomMediaSessionDao.insertOrDoNothing(upsertRMSRequest))
+                .flatMap(updated -> updated != 0 || !retryUpdate
+                        ? Mono.just(updated)
+                        : roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest));
+    }
+
+    private Mono<Boolean> upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        return roomMediaSessionDao.upsertInSingleStatement(upsertRMSRequest)
+                .flatMap(outcome -> outcome == UpsertOutcome.NOT_UPDATED
+                        ? roomMediaSessionDao.upsertInSingleStatement(upsertRMSRequest)
+                        : Mono.just(outcome))
+                .flatMap(outcome -> {
+                    if (outcome == UpsertOutcome.NOT_UPDATED) {
+                        return Mono.error(notUpdated(upsertRMSRequest));
+                    }
+                    return Mono.just(outcome == UpsertOutcome.ACCEPTED);
+                });
+    }
+
+    private Mono<Boolean> upsertTransactionally(UpsertRMSRequest upsertRMSRequest) {
+        if (upsertMode == UpsertMode.SINGLE_STATEMENT) {
+            return upsertInSingleStatement(upsertRMSRequest);
+        }
+
+        String roomId = upsertRMSRequest.getRoomId();
+        String roomSessionId = upsertRMSRequest.getRoomSessionId();
+
+        Mono<Long> upsert = upsertMode == UpsertMode.LOCKS
+                ? roomMediaSessionDao.inTransaction(roomMediaSessionDao.selectRoomIdForUpdate(roomId)
+                        .then(upsertCascade(upsertRMSRequest, false)))
+                : upsertCascade(upsertRMSRequest, true);
+
+        return isStaleRoomSession(roomId, roomSessionId)
+                .flatMap(stale -> {
+                    if (stale) {
+                        return Mono.just(false);
+                    }
+                    return upsert.flatMap(updated -> {
+                        if (updated == 0) {
+                            return Mono.error(notUpdated(upsertRMSRequest));
+                        }
+                        //has to be done last not to hold a lock on a neighbour transaction
+                        return roomMediaSessionDao.setLatestRoomSessionId(roomId, roomSessionId)
+                                .thenReturn(true);
+                    });
+                });
+    }
+
+    private static RuntimeException notUpdated(UpsertRMSRequest upsertRMSRequest) {
+        return new RuntimeException(String.format(
+                "Failed to update info on room media sessions. 0 rows updated. request: %s",
+                upsertRMSRequest
+        ));
+    }
+}
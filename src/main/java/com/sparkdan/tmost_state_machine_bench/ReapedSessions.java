@@ -0,0 +1,18 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+/**
+ * What one {@link RoomMediaSessionDao#reapStalledSessions(int, long, long)} batch did.
+ *
+ * @param disconnected FIRST_OFFER_RECEIVED and CONNECTED media sessions disconnected
+ * @param expired      CREATED media sessions deleted, reconnect signals nobody answered
+ * @param recreated    reconnect signals issued to the peers of room sessions the room has moved on from
+ */
+public record ReapedSessions(int disconnected, int expired, int recreated) {
+
+    /**
+     * Rows the batch claimed, the reconnect signals it inserted aside.
+     */
+    public int claimed() {
+        return disconnected + expired;
+    }
+}
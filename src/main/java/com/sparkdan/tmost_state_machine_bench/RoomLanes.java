@@ -0,0 +1,113 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.SneakyThrows;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Serialized execution lanes for {@link UpsertMode#LANES}.
+ * Every room is hashed to one of lanes.count lanes and each lane runs its tasks one by one on its own thread,
+ * so transitions of a room never race each other inside the JVM.
+ * That only replaces database locking while this node is the only one writing to the room.
+ * Lane threads are platform daemon threads, with threads.virtual=true they are virtual.
+ */
+@Service
+public class RoomLanes {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Value("${lanes.count:64}")
+    private int laneCount = 64;
+
+    @Value("${threads.virtual:false}")
+    private boolean virtualThreads;
+
+    private ThreadPoolExecutor[] lanes;
+
+    private Timer waitTimer;
+
+    @PostConstruct
+    protected void start() {
+        lanes = new ThreadPoolExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            String name = "room-lane-" + i;
+            ThreadFactory threadFactory = virtualThreads
+                    ? Thread.ofVirtual().name(name).factory()
+                    : Thread.ofPlatform().name(name).daemon().factory();
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        }
+
+        Gauge.builder("lanes.queue.depth", this, RoomLanes::totalDepth)
+                .register(meterRegistry);
+        Gauge.builder("lanes.queue.depth.max", this, RoomLanes::maxDepth)
+                .register(meterRegistry);
+        waitTimer = Timer.builder("lanes.wait")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .publishPercentileHistogram()
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    protected void stop() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    private ThreadPoolExecutor lane(String roomId) {
+        int h = roomId.hashCode();
+        h ^= h >>> 16;
+        return lanes[Math.floorMod(h, lanes.length)];
+    }
+
+    /**
+     * Runs the task on the lane of the room and waits for its result.
+     * Must not be called from a lane: a task waiting for its own lane never finishes.
+     */
+    @SneakyThrows
+    public <T> T execute(String roomId, Callable<T> task) {
+        long enqueuedAt = System.nanoTime();
+        Future<T> result = lane(roomId).submit(() -> {
+            waitTimer.record(System.nanoTime() - enqueuedAt, TimeUnit.NANOSECONDS);
+            return task.call();
+        });
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private double totalDepth() {
+        long depth = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    private double maxDepth() {
+        int max = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            max = Math.max(max, lane.getQueue().size());
+        }
+        return max;
+    }
+}
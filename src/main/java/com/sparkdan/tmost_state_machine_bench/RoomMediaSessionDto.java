@@ -27,6 +27,11 @@ public class RoomMediaSessionDto {
 
     private RoomMediaSessionState state;
 
+    /**
+     * Bumped by every update of the row.
+     */
+    private long version;
+
     public boolean pastFirstOffer() {
         return firstOfferAt != null || pastConnected();
     }
@@ -0,0 +1,200 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.Setter;
+import org.apache.commons.lang3.StringUtils;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Cache of rooms.current_room_session_id in front of
+ * {@link RoomMediaSessionDao#getLatestRoomSessionId(String)} and {@link RoomMediaSessionDao#setLatestRoomSessionId(String, String)}.
+ * <p>
+ * Bounded LRU of room.session.cache.max.size rooms, every entry expires room.session.cache.ttl.millis after it
+ * was written, which also bounds how long a value written by another node can go unnoticed.
+ * Every entry carries a version taken from a monotonic clock at the time it was written. A value loaded from
+ * the database is only cached if no write to the room happened since the load started, so a slow read can't
+ * overwrite what this node has just written.
+ * Rooms don't contend with each other: entries live in a ConcurrentHashMap and the version check of a load runs
+ * under the lock of its own entry. The only global lock is taken by the writer that finds the cache over its size,
+ * it evicts the least recently read rooms down to 90% of the size while other writers keep going.
+ * When room.session.cache.enabled is false every call goes straight to the database.
+ */
+@Service
+public class RoomSessionCache {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Setter
+    @Value("${room.session.cache.enabled:false}")
+    private boolean enabled = false;
+
+    @Value("${room.session.cache.max.size:10000}")
+    int maxSize = 10000;
+
+    @Value("${room.session.cache.ttl.millis:5000}")
+    private long ttlMillis = 5000;
+
+    private static final class Entry {
+        @Nullable
+        private final String roomSessionId;
+        private final long version;
+        private final long expiresAtNanos;
+        private volatile long readAtNanos;
+
+        private Entry(@Nullable String roomSessionId, long version, long expiresAtNanos, long readAtNanos) {
+            this.roomSessionId = roomSessionId;
+            this.version = version;
+            this.expiresAtNanos = expiresAtNanos;
+            this.readAtNanos = readAtNanos;
+        }
+    }
+
+    private record Candidate(String roomId, Entry entry, long readAtNanos) {
+    }
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong versions = new AtomicLong();
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private Counter hits;
+    private Counter misses;
+    private Counter skippedWrites;
+
+    @PostConstruct
+    protected void registerMeters() {
+        hits = meterRegistry.counter("room.session.cache.hits");
+        misses = meterRegistry.counter("room.session.cache.misses");
+        skippedWrites = meterRegistry.counter("room.session.cache.skipped.writes");
+        Gauge.builder("room.session.cache.size", this, RoomSessionCache::size)
+                .register(meterRegistry);
+    }
+
+    @Nullable
+    public String getLatestRoomSessionId(String roomId, Function<String, String> loader) {
+        if (!enabled) {
+            return loader.apply(roomId);
+        }
+
+        Entry entry = live(roomId);
+        if (entry != null) {
+            hits.increment();
+            return entry.roomSessionId;
+        }
+
+        misses.increment();
+        long loadStartedAt = versions.get();
+        String roomSessionId = loader.apply(roomId);
+        entries.compute(roomId, (id, current) -> current == null || current.version <= loadStartedAt
+                ? newEntry(roomSessionId)
+                : current);
+        evictIfFull();
+        return roomSessionId;
+    }
+
+    /**
+     * Writes the room session id through to the database unless the cache already holds the same value.
+     */
+    public void setLatestRoomSessionId(String roomId, String roomSessionId, BiConsumer<String, String> writer) {
+        if (!enabled) {
+            writer.accept(roomId, roomSessionId);
+            return;
+        }
+
+        Entry entry = live(roomId);
+        if (entry != null && StringUtils.equals(entry.roomSessionId, roomSessionId)) {
+            skippedWrites.increment();
+            return;
+        }
+
+        writer.accept(roomId, roomSessionId);
+        written(roomId, roomSessionId);
+    }
+
+    /**
+     * Records a room session id that was written to the database bypassing the cache.
+     */
+    public void written(String roomId, String roomSessionId) {
+        if (!enabled) {
+            return;
+        }
+        entries.put(roomId, newEntry(roomSessionId));
+        evictIfFull();
+    }
+
+    @Nullable
+    private Entry live(String roomId) {
+        Entry entry = entries.get(roomId);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.nanoTime();
+        if (entry.expiresAtNanos - now <= 0) {
+            entries.remove(roomId, entry);
+            return null;
+        }
+        entry.readAtNanos = now;
+        return entry;
+    }
+
+    private Entry newEntry(@Nullable String roomSessionId) {
+        long now = System.nanoTime();
+        return new Entry(
+                roomSessionId,
+                versions.incrementAndGet(),
+                now + TimeUnit.MILLISECONDS.toNanos(ttlMillis),
+                now
+        );
+    }
+
+    /**
+     * Evicts the least recently read rooms down to 90% of max size, so a full cache is scanned once per
+     * maxSize / 10 writes rather than on every write. Writers that find the eviction running leave it alone.
+     */
+    private void evictIfFull() {
+        if (entries.size() <= maxSize || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int excess = entries.size() - maxSize * 9 / 10;
+            if (excess <= 0) {
+                return;
+            }
+            //readAtNanos moves under concurrent reads, the sort needs a snapshot of it
+            List<Candidate> byReadAt = new ArrayList<>(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                byReadAt.add(new Candidate(e.getKey(), e.getValue(), e.getValue().readAtNanos));
+            }
+            byReadAt.sort(Comparator.comparingLong(Candidate::readAtNanos));
+            for (int i = 0; i < excess && i < byReadAt.size(); i++) {
+                Candidate eldest = byReadAt.get(i);
+                entries.remove(eldest.roomId(), eldest.entry());
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private double size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,29 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.List;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The reads SampleService makes before a transition, taken in one round trip by
+ * {@link RoomMediaSessionDao#readRoomSessionSnapshot(String, String, boolean)}.
+ *
+ * @param currentRoomSessionId    rooms.current_room_session_id
+ * @param brandNew                {@link RoomMediaSessionDao#isBrandNewRoomSession(String, String)}
+ * @param otherActiveRoomSessions {@link RoomMediaSessionDao#findOtherActiveRoomSessions(String, String)},
+ *                                empty if not requested
+ */
+public record RoomSessionSnapshot(
+        @Nullable String currentRoomSessionId,
+        boolean brandNew,
+        List<String> otherActiveRoomSessions) {
+
+    /**
+     * A room session other than the current one that has already seen media sessions past CREATED.
+     */
+    public boolean isStale(@Nullable String roomSessionId) {
+        return currentRoomSessionId != null && roomSessionId != null
+               && !currentRoomSessionId.equals(roomSessionId)
+               && !brandNew;
+    }
+}
@@ -14,10 +14,16 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
+import javax.sql.DataSource;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecutor;
@@ -29,6 +35,9 @@ import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 import org.springframework.web.util.UriComponentsBuilder;
 
+import static com.sparkdan.tmost_state_machine_bench.UpsertMode.LOCKS;
+import static com.sparkdan.tmost_state_machine_bench.UpsertMode.NO_LOCKS;
+
 @Service
 @Slf4j
 public class RunTests {
@@ -45,15 +54,90 @@ public class RunTests {
     @Value("${test.pause.between.samples.millis}")
     public long pauseBetweenSamplesMillis;
 
+    @Value("${threads.virtual:false}")
+    public boolean virtualThreads;
+
+    @Value("${test.latency.netem:false}")
+    public boolean netemLatency;
+
+    /**
+     * Create the sessions of everyone joining a room with one {@link SampleService#createSessions} call.
+     */
+    @Value("${test.create.bulk:true}")
+    public boolean bulkCreate;
+
+    /**
+     * Send the offers present peers get when someone joins with one {@link SampleService#offersReceived} call
+     * in the modes that {@link UpsertMode#upsertsOffersInBulk()}, their results get a _bulk label.
+     */
+    @Value("${test.offers.bulk:true}")
+    public boolean bulkOffers;
+
+    /**
+     * Read the results of a suit from Prometheus instead of {@link TransitionRecorder}.
+     */
+    @Value("${test.results.prometheus:false}")
+    public boolean prometheusResults;
+
+    /**
+     * Location of a {@link Scenario} to run instead of {@link #mainOneCycle()}, empty for mainOneCycle.
+     */
+    @Value("${test.scenario:}")
+    public String scenarioLocation;
+
+    /**
+     * Finished rooms {@link HistoryPrefiller} puts into the database before the first suite.
+     */
+    @Value("${history.rooms:0}")
+    public long historyRooms;
+
+    @Value("${history.sweep.rooms:0,100000,1000000}")
+    public long[] historySweepRooms;
+
     @Autowired
     protected SampleService sampleService;
 
+    @Autowired(required = false)
+    protected ReactiveSampleService reactiveSampleService;
+
     @Autowired
     protected RoomMediaSessionDao dao;
 
+    @Autowired
+    protected DataSource dataSource;
+
+    @Autowired
+    protected LatencyInjector latencyInjector;
+
+    @Autowired
+    protected OpenLoopLoadGenerator openLoopLoadGenerator;
+
+    @Autowired
+    protected ScenarioLoader scenarioLoader;
+
+    @Autowired
+    protected ScenarioDriver scenarioDriver;
+
+    @Autowired
+    protected TransitionRecorder transitionRecorder;
+
+    @Autowired
+    protected PgTelemetrySampler pgTelemetrySampler;
+
+    @Autowired
+    protected HistoryPrefiller historyPrefiller;
+
+    private Scenario scenario;
+
     private RestTemplate restTemplate = new RestTemplate();
 
-    private ExecutorService executor = Executors.newCachedThreadPool();
+    private ExecutorService executor;
+
+    /**
+     * Sends the scenario through {@link ReactiveSampleService}, the load generator still waits for every call
+     * the same way it does for SampleService.
+     */
+    private volatile boolean reactive;
 
     private final ObjectMapper objectMapper = new ObjectMapper();
 
@@ -64,31 +148,144 @@ public class RunTests {
         private final List<Future<String>> hangingOffers = Collections.synchronizedList(new ArrayList<>());
     }
 
+    @PostConstruct
+    protected void createExecutor() {
+        executor = virtualThreads
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : Executors.newCachedThreadPool();
+    }
+
+    @PostConstruct
+    protected void loadScenario() throws IOException {
+        if (StringUtils.isNotBlank(scenarioLocation)) {
+            scenario = scenarioLoader.load(scenarioLocation);
+            log.info("Running scenario {} from {}", scenario.getName(), scenarioLocation);
+        }
+    }
+
     public void runTests() throws InterruptedException, IOException {
+        if (historyRooms > 0) {
+            historyPrefiller.fillTo(historyRooms);
+        }
+        if (StringUtils.isNotBlank(System.getProperty("historysweep"))) {
+            runHistorySweep();
+            return;
+        }
+        if (StringUtils.isNotBlank(System.getProperty("poolsweep"))) {
+            runPoolSweep();
+            return;
+        }
+        if (StringUtils.isNotBlank(System.getProperty("openloop"))) {
+            runOpenLoop();
+            return;
+        }
+
         String runVariations = System.getProperty("variations");
-        runSuit(false, 0);
+        runSuit(NO_LOCKS, 0);
 
         if(StringUtils.isBlank(runVariations)) {
             return;
         }
 
-        sleepBetweenTests();
-        runSuit(true, 0);
-        sleepBetweenTests();
+        for (long pgPingMs : List.of(0L, 1L, 30L)) {
+            for (UpsertMode upsertMode : UpsertMode.values()) {
+                if (pgPingMs == 0 && upsertMode == NO_LOCKS) {
+                    continue;
+                }
+                sleepBetweenTests();
+                runSuit(upsertMode, pgPingMs);
+            }
 
-        runSuit(false, 1);
-        sleepBetweenTests();
-        runSuit(true, 1);
-        sleepBetweenTests();
+            //the injected latency is JDBC only, R2DBC gets a pg ping from netem alone
+            if (reactiveSampleService != null && (pgPingMs == 0 || netemLatency)) {
+                for (UpsertMode upsertMode : ReactiveSampleService.SUPPORTED_MODES) {
+                    sleepBetweenTests();
+                    runReactiveSuit(upsertMode, pgPingMs);
+                }
+            }
 
-        runSuit(true, 1, 10);
-        sleepBetweenTests();
-        runSuit(false, 1, 10);
-        sleepBetweenTests();
+            if (pgPingMs == 1) {
+                sleepBetweenTests();
+                runSuit(LOCKS, 1, 10);
+                sleepBetweenTests();
+                runSuit(NO_LOCKS, 1, 10);
+            }
+        }
+    }
+
+    /**
+     * The closed loop suits that matter most, with {@link OpenLoopLoadGenerator} as the load.
+     */
+    public void runOpenLoop() throws InterruptedException, IOException {
+        for (long pgPingMs : List.of(1L, 30L)) {
+            for (UpsertMode upsertMode : List.of(NO_LOCKS, LOCKS)) {
+                sleepBetweenTests();
+                log.info("Running open loop tests. Upsert mode: {}, pgPing: {} ms", upsertMode, pgPingMs);
+                setPgPing(pgPingMs);
+                sampleService.setUpsertMode(upsertMode);
+                sampleService.setRpsDelay(0);
+
+                String resultLabel = "openloop_" + upsertMode.getResultLabel();
+                long startMs = System.currentTimeMillis();
+                transitionRecorder.start();
+                pgTelemetrySampler.start();
+                openLoopLoadGenerator.run(resultLabel + "+ping_" + pgPingMs);
+                pgTelemetrySampler.stop();
+                transitionRecorder.stop();
+                long endMs = System.currentTimeMillis();
+
+                outputResult(resultLabel, pgPingMs, startMs, endMs, 0);
+            }
+        }
+    }
 
-        runSuit(false, 30);
-        sleepBetweenTests();
-        runSuit(true, 30);
+    /**
+     * Throughput as a function of connection pool size and concurrent rooms at 30 ms pg ping.
+     * Meant to be run with threads.virtual=true, with platform threads the larger room counts
+     * mostly measure the OS scheduler.
+     */
+    public void runPoolSweep() throws InterruptedException, IOException {
+        HikariConfigMXBean pool = hikariPool();
+        int initialPoolSize = pool.getMaximumPoolSize();
+        long initialConcurrency = testConcurrency;
+        try {
+            for (int poolSize : List.of(10, 40, 160)) {
+                pool.setMaximumPoolSize(poolSize);
+                pool.setMinimumIdle(poolSize);
+                for (long rooms : List.of(10L, 100L, 1000L)) {
+                    testConcurrency = rooms;
+                    sleepBetweenTests();
+                    runSuit(NO_LOCKS, 30, 0, String.format(
+                            "%s_%s_pool_%d_rooms_%d",
+                            NO_LOCKS.getResultLabel(),
+                            virtualThreads ? "vt" : "pt",
+                            poolSize,
+                            rooms
+                    ));
+                }
+            }
+        } finally {
+            pool.setMaximumPoolSize(initialPoolSize);
+            pool.setMinimumIdle(initialPoolSize);
+            testConcurrency = initialConcurrency;
+        }
+    }
+
+    /**
+     * The same suite against a growing history, to see what the size of room_media_sessions and of its
+     * indexes costs a transition. History is only ever added, so sweep up from a fresh database.
+     */
+    public void runHistorySweep() throws InterruptedException, IOException {
+        for (long rooms : historySweepRooms) {
+            historyPrefiller.fillTo(rooms);
+            sleepBetweenTests();
+            runSuit(NO_LOCKS, 1, 0, String.format("%s_history_%d", NO_LOCKS.getResultLabel(), rooms));
+        }
+    }
+
+    @SneakyThrows
+    private HikariConfigMXBean hikariPool() {
+        return dataSource.unwrap(HikariDataSource.class).getHikariConfigMXBean();
     }
 
     private void sleepBetweenTests() throws InterruptedException {
@@ -96,22 +293,57 @@ public class RunTests {
         Thread.sleep(pauseBetweenSamplesMillis);
     }
 
-    public void runSuit(boolean useLocks, long pgPingMs) throws InterruptedException, IOException {
-        runSuit(useLocks, pgPingMs, 0);
+    public void runSuit(UpsertMode upsertMode, long pgPingMs) throws InterruptedException, IOException {
+        runSuit(upsertMode, pgPingMs, 0);
     }
 
-    public void runSuit(boolean useLocks, long pgPingMs, long throttleRPSDelay) throws InterruptedException, IOException {
-        log.info("Running tests. Locks: {}, pgPing: {} ms, Throttle RPS delay {}", useLocks, pgPingMs, throttleRPSDelay);
+    public void runSuit(UpsertMode upsertMode, long pgPingMs, long throttleRPSDelay) throws InterruptedException, IOException {
+        runSuit(upsertMode, pgPingMs, throttleRPSDelay, resultLabel(upsertMode));
+    }
+
+    /**
+     * Bulk offers are a variation of their own, they only change the modes that upsert offers in bulk.
+     */
+    private String resultLabel(UpsertMode upsertMode) {
+        return bulkOffers(upsertMode) ? upsertMode.getResultLabel() + "_bulk" : upsertMode.getResultLabel();
+    }
+
+    private boolean bulkOffers(UpsertMode upsertMode) {
+        return bulkOffers && upsertMode.upsertsOffersInBulk();
+    }
+
+    public void runReactiveSuit(UpsertMode upsertMode, long pgPingMs) throws InterruptedException, IOException {
+        reactiveSampleService.setUpsertMode(upsertMode);
+        reactive = true;
+        try {
+            runSuit(upsertMode, pgPingMs, 0, "reactive_" + upsertMode.getResultLabel());
+        } finally {
+            reactive = false;
+        }
+    }
+
+    public void runSuit(UpsertMode upsertMode, long pgPingMs, long throttleRPSDelay, String resultLabel) throws InterruptedException, IOException {
+        log.info("Running tests. Upsert mode: {}, pgPing: {} ms, Throttle RPS delay {}", upsertMode, pgPingMs, throttleRPSDelay);
         setPgPing(pgPingMs);
-        sampleService.setUseLocks(useLocks);
+        sampleService.setUpsertMode(upsertMode);
         sampleService.setRpsDelay(throttleRPSDelay);
 
         long startMs = System.currentTimeMillis();
+        transitionRecorder.start();
+        pgTelemetrySampler.start();
         launchCycles().join();
+        pgTelemetrySampler.stop();
+        transitionRecorder.stop();
         long endMs = System.currentTimeMillis();
 
-        outputResult(useLocks, pgPingMs, startMs, endMs, throttleRPSDelay);
-        log.info("Finished running tests. Locks: {}, pgPing: {} ms, Throttle RPS delay {}", useLocks, pgPingMs, throttleRPSDelay);
+        outputResult(
+                runsScenario() ? scenario.getName() + "_" + resultLabel : resultLabel,
+                pgPingMs,
+                startMs,
+                endMs,
+                throttleRPSDelay
+        );
+        log.info("Finished running tests. Upsert mode: {}, pgPing: {} ms, Throttle RPS delay {}", upsertMode, pgPingMs, throttleRPSDelay);
     }
 
     private void queryPrometheusToCSV(String query, long startMs, long endMs, String csvPath, String csvHeaders) throws IOException {
@@ -141,14 +373,25 @@ public class RunTests {
         );
     }
 
-    private void outputResult(boolean useLocks, long pgPingMS, long startMs, long endMs, long throttleRPSDelay ) throws IOException {
+    private void outputResult(String resultLabel, long pgPingMS, long startMs, long endMs, long throttleRPSDelay ) throws IOException {
+        String suffix = String.format(
+                "%s+ping_%d_rps_%d",
+                resultLabel,
+                pgPingMS,
+                throttleRPSDelay
+        );
+        pgTelemetrySampler.writeResults(suffix);
+        if (!prometheusResults) {
+            transitionRecorder.writeResults(suffix);
+            return;
+        }
         queryPrometheusToCSV(
                 "rate(sampleservice_callsConnected_total[5s])",
                 startMs,
                 endMs,
                 String.format(
-                        "ipnb/cps_%b+ping_%d_rps_%d.csv",
-                        useLocks,
+                        "ipnb/cps_%s+ping_%d_rps_%d.csv",
+                        resultLabel,
                         pgPingMS,
                         throttleRPSDelay
                 ),
@@ -159,8 +402,8 @@ public class RunTests {
                 startMs,
                 endMs,
                 String.format(
-                        "ipnb/connections_%b+ping_%d_rps_%d.csv",
-                        useLocks,
+                        "ipnb/connections_%s+ping_%d_rps_%d.csv",
+                        resultLabel,
                         pgPingMS,
                         throttleRPSDelay
                 ),
@@ -175,6 +418,15 @@ public class RunTests {
     }
 
     private void setPgPing(long ms) throws IOException {
+        if (netemLatency) {
+            setNetemPgPing(ms);
+            return;
+        }
+        log.info("setting injected pg round trip latency to {} ms", ms);
+        latencyInjector.setMeanMillis(ms);
+    }
+
+    private void setNetemPgPing(long ms) throws IOException {
         log.info("dropping previous pg delay setting");
         //drop delay
         try {
@@ -209,7 +461,11 @@ public class RunTests {
         for (int i = 0; i < testConcurrency; i++) {
             cycles.add(CompletableFuture.runAsync(() -> {
                 while (System.currentTimeMillis() - start < testDurationMillis) {
-                    mainOneCycle();
+                    if (runsScenario()) {
+                        scenarioCycle();
+                    } else {
+                        mainOneCycle();
+                    }
                 }
             }, executor));
         }
@@ -217,6 +473,21 @@ public class RunTests {
         return CompletableFuture.allOf(cycles.toArray(new CompletableFuture[0]));
     }
 
+    /**
+     * Scenarios drive SampleService only, the reactive suits keep running mainOneCycle.
+     */
+    private boolean runsScenario() {
+        return scenario != null && !reactive;
+    }
+
+    public void scenarioCycle() {
+        try {
+            scenarioDriver.runRoom(scenario, executor);
+        } catch (Exception e) {
+            log.error("Exception in scenario {} cycle", scenario.getName(), e);
+        }
+    }
+
     public void mainOneCycle() {
         try {
             String roomId = UUID.randomUUID().toString();
@@ -229,8 +500,8 @@ public class RunTests {
 
             String roomSession2 = UUID.randomUUID().toString();
 
-            sampleService.offerReceived(conf.roomId, conf.peerIDs.get(0), roomSession2);
-            sampleService.connected(conf.roomId, conf.peerIDs.get(0), roomSession2);
+            offerReceived(conf.roomId, conf.peerIDs.get(0), roomSession2);
+            connected(conf.roomId, conf.peerIDs.get(0), roomSession2);
 
             //when everyone idles in first media session, they're going to receive non-legitimate offers
             CompletableFuture<Void> allDisconnected = everyoneIdlyDisconnectsAsync(conf, roomSession1);
@@ -248,8 +519,8 @@ public class RunTests {
         List<String> localPeerIDs = new ArrayList<>(conf.peerIDs);
         for (String peerId : localPeerIDs) {
             leaves.add(CompletableFuture.runAsync(() -> {
-                        sampleService.offerReceived(conf.roomId, peerId, roomSessionId);
-                        sampleService.disconnected(conf.roomId, peerId, roomSessionId);
+                        offerReceived(conf.roomId, peerId, roomSessionId);
+                        disconnected(conf.roomId, peerId, roomSessionId);
                     },
                     executor
             ));
@@ -258,9 +529,19 @@ public class RunTests {
     }
 
     public void everyoneJoins(Conf conf, String roomSessionId) {
-        List<Future<String>> joins = new ArrayList<>();
+        List<String> peerIds = new ArrayList<>();
         for (int i = 0; i < numPeers; i++) {
-            joins.add(joinPeer(conf, roomSessionId));
+            peerIds.add(UUID.randomUUID().toString());
+        }
+        //the reactive suits keep creating sessions one by one
+        boolean bulk = bulkCreate && !reactive;
+        if (bulk) {
+            sampleService.createSessions(conf.roomId, peerIds);
+        }
+
+        List<Future<String>> joins = new ArrayList<>();
+        for (String peerId : peerIds) {
+            joins.add(joinPeer(conf, roomSessionId, peerId, !bulk));
         }
         waitFutures(joins);
         waitFutures(conf.hangingOffers);
@@ -277,15 +558,16 @@ public class RunTests {
         }
     }
 
-    public Future<String> joinPeer(Conf conf, String roomSessionId) {
+    public Future<String> joinPeer(Conf conf, String roomSessionId, String peerId, boolean create) {
         return executor.submit(() -> {
-            String peerId = UUID.randomUUID().toString();
-            sampleService.createSession(conf.roomId, peerId);
-            sampleService.offerReceived(conf.roomId, peerId, roomSessionId);
+            if (create) {
+                createSession(conf.roomId, peerId);
+            }
+            offerReceived(conf.roomId, peerId, roomSessionId);
 
             offerToAllAsync(conf, roomSessionId);
 
-            sampleService.connected(conf.roomId, peerId, roomSessionId);
+            connected(conf.roomId, peerId, roomSessionId);
             conf.peerIDs.add(peerId);
             return peerId;
         });
@@ -293,14 +575,53 @@ public class RunTests {
 
     public void offerToAllAsync(Conf conf, String roomSessionId) {
         List<String> presentPeers = new ArrayList<>(conf.peerIDs);
+        if (!reactive && bulkOffers(sampleService.getUpsertMode())) {
+            if (!presentPeers.isEmpty()) {
+                conf.hangingOffers.add(executor.submit(() -> {
+                    sampleService.offersReceived(conf.roomId, roomSessionId, presentPeers);
+                    return "";
+                }));
+            }
+            return;
+        }
         for (String presentPeer : presentPeers) {
             conf.hangingOffers.add(executor.submit(() -> {
-                sampleService.offerReceived(conf.roomId, presentPeer, roomSessionId);
+                offerReceived(conf.roomId, presentPeer, roomSessionId);
                 return "";
             }));
         }
 
     }
 
+    private void createSession(String roomId, String peerId) {
+        if (reactive) {
+            reactiveSampleService.createSession(roomId, peerId).block();
+        } else {
+            sampleService.createSession(roomId, peerId);
+        }
+    }
+
+    private void offerReceived(String roomId, String peerId, String roomSessionId) {
+        if (reactive) {
+            reactiveSampleService.offerReceived(roomId, peerId, roomSessionId).block();
+        } else {
+            sampleService.offerReceived(roomId, peerId, roomSessionId);
+        }
+    }
+
+    private void connected(String roomId, String peerId, String roomSessionId) {
+        if (reactive) {
+            reactiveSampleService.connected(roomId, peerId, roomSessionId).block();
+        } else {
+            sampleService.connected(roomId, peerId, roomSessionId);
+        }
+    }
 
+    private void disconnected(String roomId, String peerId, String roomSessionId) {
+        if (reactive) {
+            reactiveSampleService.disconnected(roomId, peerId, roomSessionId).block();
+        } else {
+            sampleService.disconnected(roomId, peerId, roomSessionId);
+        }
+    }
 }
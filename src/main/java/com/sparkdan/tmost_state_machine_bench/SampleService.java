@@ -2,9 +2,14 @@ package com.sparkdan.tmost_state_machine_bench;
 
 import java.time.Duration;
 import java.util.Collection;
-import java.util.List;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
 
 import io.github.bucket4j.Bandwidth;
 import io.github.bucket4j.BlockingBucket;
@@ -14,21 +19,18 @@ import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
 import jakarta.annotation.PostConstruct;
+import lombok.Getter;
 import lombok.Setter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.joda.time.Instant;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.CannotAcquireLockException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.support.TransactionTemplate;
 
-import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.ARCHIVED;
-import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
-import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
-import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
-import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
-
 @Service
 @Slf4j
 public class SampleService {
@@ -42,12 +44,67 @@ public class SampleService {
     @Autowired
     TransactionTemplate transactionTemplate;
 
+    @Autowired
+    WriteBehindQueue writeBehindQueue;
+
+    @Autowired
+    RoomLanes roomLanes;
+
+    @Autowired
+    RoomSessionCache roomSessionCache;
+
+    @Autowired
+    TransitionRecorder transitionRecorder;
+
+    @Autowired
+    CallTracer callTracer;
+
+    @Autowired
+    OptimisticUpsertStrategy optimisticUpsertStrategy;
+
     private Counter callsConnectedCounter;
     private Counter upsertRequestsCounter;
     private Timer upsertRequestsTimer;
 
+    @Getter
     @Setter
-    private boolean useLocks = false;
+    private UpsertMode upsertMode = UpsertMode.NO_LOCKS;
+
+    @Value("${advisory.lock.namespace:1}")
+    private int advisoryLockNamespace = 1;
+
+    @Value("${advisory.lock.key.space:0}")
+    private int advisoryLockKeySpace = 0;
+
+    @Value("${advisory.lock.timeout.millis:1000}")
+    private long advisoryLockTimeoutMillis = 1000;
+
+    private Counter advisoryLockFallbackCounter;
+
+    /**
+     * With {@link StalledSessionReaper} on, an offer for the current room session of the room doesn't look for
+     * other active room sessions: the first offer of the room session has disconnected them, the reaper takes
+     * the stragglers.
+     */
+    @Value("${reaper.enabled:false}")
+    private boolean reaperEnabled;
+
+    @Value("${reaper.offer.shortcut:true}")
+    private boolean reaperOfferShortcut = true;
+
+    private Counter offerShortcutCounter;
+
+    private final Map<UpsertMode, UpsertStrategy> upsertStrategies = new EnumMap<>(Map.<UpsertMode, UpsertStrategy>of(
+            UpsertMode.NO_LOCKS, request -> upsertCascade(request, this::upsertNoLock),
+            UpsertMode.LOCKS, request -> upsertCascade(request, this::upsertWithLock),
+            UpsertMode.SINGLE_STATEMENT, this::upsertInSingleStatement,
+            UpsertMode.STORED_FUNCTIONS, this::upsertServerSide,
+            UpsertMode.WRITE_BEHIND, this::upsertWriteBehind,
+            UpsertMode.LANES, request -> upsertCascade(request, this::upsertNoLock),
+            UpsertMode.PIPELINED, this::upsertPipelinedTransition,
+            UpsertMode.OPTIMISTIC, this::upsertOptimistically,
+            UpsertMode.ADVISORY_LOCKS, request -> upsertCascade(request, this::upsertWithAdvisoryLock)
+    ));
 
     private volatile BlockingBucket bucket;
 
@@ -69,6 +126,10 @@ public class SampleService {
                 .build().asBlocking();
     }
 
+    public void setUseLocks(boolean useLocks) {
+        upsertMode = useLocks ? UpsertMode.LOCKS : UpsertMode.NO_LOCKS;
+    }
+
     private void throttleRPS() throws InterruptedException {
         if(bucket != null) {
             bucket.consume(1);
@@ -78,6 +139,8 @@ public class SampleService {
     @PostConstruct
     protected void registerMeters() {
         callsConnectedCounter = meterRegistry.counter("sampleservice.callsConnected");
+        advisoryLockFallbackCounter = meterRegistry.counter("sampleservice.advisoryLock.fallbacks");
+        offerShortcutCounter = meterRegistry.counter("sampleservice.offer.shortcuts");
         upsertRequestsCounter = meterRegistry.counter("sampleservice.upsertRequestsCounter");
 
         upsertRequestsTimer = Timer.builder("sampleservice.upsertRequestTimer")
@@ -88,7 +151,8 @@ public class SampleService {
     }
 
     private boolean isStaleRoomSession(String roomId, String roomSessionId) {
-        String currentRoomSessionId = roomMediaSessionDao.getLatestRoomSessionId(roomId);
+        String currentRoomSessionId = roomSessionCache.getLatestRoomSessionId(roomId,
+                roomMediaSessionDao::getLatestRoomSessionId);
         if (currentRoomSessionId != null && roomSessionId != null
             && !StringUtils.equals(roomSessionId, currentRoomSessionId)) {
             //this one will almost always return empty set of rows because same check is performed
@@ -102,11 +166,42 @@ public class SampleService {
     @SneakyThrows
     public void createSession(String roomId, String peerId) {
         throttleRPS();
-        roomMediaSessionDao.created(roomId, peerId);
+        recorded(TransitionType.CREATE_SESSION, () -> inRoomLane(TransitionType.CREATE_SESSION, roomId, () -> {
+            roomMediaSessionDao.created(roomId, peerId);
+            return null;
+        }));
+    }
+
+    /**
+     * {@link #createSession(String, String)} for a whole join burst: one round trip and one commit
+     * instead of one per peer.
+     */
+    @SneakyThrows
+    public void createSessions(String roomId, Collection<String> peerIds) {
+        throttleRPS();
+        recorded(TransitionType.CREATE_SESSIONS, () -> inRoomLane(TransitionType.CREATE_SESSIONS, roomId, () -> {
+            roomMediaSessionDao.created(roomId, peerIds);
+            return null;
+        }));
+    }
+
+    /**
+     * Runs the transition and hands it to {@link TransitionRecorder}, failures included.
+     */
+    private <T> T recorded(TransitionType type, Callable<T> transition) throws Exception {
+        long start = System.nanoTime();
+        try {
+            T result = transition.call();
+            transitionRecorder.record(type, start, System.nanoTime(),
+                    Boolean.FALSE.equals(result) ? TransitionOutcome.REJECTED : TransitionOutcome.ACCEPTED);
+            return result;
+        } catch (Exception e) {
+            transitionRecorder.record(type, start, System.nanoTime(), TransitionOutcome.FAILED);
+            throw e;
+        }
     }
 
-    private boolean isRoomSessionLive(String roomId, String peerId, String roomSessionId) {
-        String latestRoomSessionId = roomMediaSessionDao.getLatestRoomSessionId(roomId);
+    private boolean isRoomSessionLive(String roomId, String latestRoomSessionId, String roomSessionId) {
         if (latestRoomSessionId != null && roomSessionId != null
             && !latestRoomSessionId.equals(roomSessionId)) {
             //in case offer is for a session that has never been seen before,
@@ -129,11 +224,27 @@ public class SampleService {
 
         long start = System.nanoTime();
 
-        boolean accepted = isRoomSessionLive(roomId, peerId, roomSessionId);
-        if (accepted) {
-            disconnectOtherSessions(roomId, roomSessionId);
-            accepted = persistFirstOfferEvent(roomId, peerId, roomSessionId);
-        }
+        TransitionType transition = TransitionType.OFFER_RECEIVED;
+        boolean accepted = recorded(transition, () -> inRoomLane(transition, roomId, () -> {
+            if (upsertMode == UpsertMode.PIPELINED) {
+                return offerReceivedPipelined(roomId, peerId, roomSessionId);
+            }
+            if (upsertMode == UpsertMode.STORED_FUNCTIONS) {
+                return writtenIfAccepted(roomId, roomSessionId, roomMediaSessionDao.offerReceivedServerSide(
+                        UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, Instant.now())));
+            }
+            String latestRoomSessionId = roomSessionCache.getLatestRoomSessionId(roomId,
+                    roomMediaSessionDao::getLatestRoomSessionId);
+            if (!isRoomSessionLive(roomId, latestRoomSessionId, roomSessionId)) {
+                return false;
+            }
+            if (reaperEnabled && reaperOfferShortcut && StringUtils.equals(roomSessionId, latestRoomSessionId)) {
+                offerShortcutCounter.increment();
+            } else {
+                disconnectOtherSessions(roomId, roomSessionId);
+            }
+            return persistFirstOfferEvent(roomId, peerId, roomSessionId);
+        }));
 
         log.trace("Acknowledged offer from room_id={}, peer_id={}, bridge_session_id={}. " +
                   "Accepted: {}",
@@ -146,29 +257,105 @@ public class SampleService {
         return accepted;
     }
 
+    private boolean offerReceivedPipelined(String roomId, String peerId, String roomSessionId) {
+        RoomSessionSnapshot snapshot = roomMediaSessionDao.readRoomSessionSnapshot(roomId, roomSessionId, true);
+        if (snapshot.isStale(roomSessionId)) {
+            return false;
+        }
+        if (!snapshot.otherActiveRoomSessions().isEmpty()) {
+            roomMediaSessionDao.disconnectAllInRoomAndRecreate(roomId, snapshot.otherActiveRoomSessions(),
+                    roomSessionId);
+        }
+        //the snapshot has just been checked, no need to repeat the stale check of upsertTransactionally
+        return upsertPipelined(UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, Instant.now()));
+    }
+
+    /**
+     * {@link #offerReceived(String, String, String)} for the offers all present peers get when the room
+     * renegotiates. The room session is validated and the other room sessions are disconnected once. The first
+     * offers of all peers are upserted in one statement if the upsert mode {@link UpsertMode#upsertsOffersInBulk()},
+     * one by one with the upsert of the mode otherwise.
+     *
+     * @return accepted flag of every peer
+     */
+    @SneakyThrows
+    public Map<String, Boolean> offersReceived(String roomId, String roomSessionId, Collection<String> peerIds) {
+        throttleRPS();
+
+        long start = System.nanoTime();
+
+        TransitionType transition = TransitionType.OFFERS_RECEIVED;
+        Map<String, Boolean> accepted = recorded(transition, () -> inRoomLane(transition, roomId, () -> {
+            Map<String, Boolean> result = new LinkedHashMap<>();
+            RoomSessionSnapshot snapshot = roomMediaSessionDao.readRoomSessionSnapshot(roomId, roomSessionId, true);
+            if (snapshot.isStale(roomSessionId)) {
+                peerIds.forEach(peerId -> result.put(peerId, false));
+                return result;
+            }
+            if (!snapshot.otherActiveRoomSessions().isEmpty()) {
+                log.trace("Disconnecting stalled room sessions {}", snapshot.otherActiveRoomSessions());
+                disconnectRoomSessions(roomId, snapshot.otherActiveRoomSessions(), roomSessionId);
+            }
+
+            if (!upsertMode.upsertsOffersInBulk()) {
+                peerIds.forEach(peerId -> result.put(peerId, persistFirstOfferEvent(roomId, peerId, roomSessionId)));
+                return result;
+            }
+            Map<String, UpsertOutcome> outcomes = roomMediaSessionDao.upsertFirstOffers(roomId, roomSessionId,
+                    peerIds);
+            for (Map.Entry<String, UpsertOutcome> outcome : outcomes.entrySet()) {
+                String peerId = outcome.getKey();
+                switch (outcome.getValue()) {
+                    case ACCEPTED -> result.put(peerId, true);
+                    case STALE -> result.put(peerId, false);
+                    //lost a race to a concurrent insert, the cascade of a single offer sees the row
+                    case NOT_UPDATED -> {
+                        CallTrace.retried();
+                        result.put(peerId, persistFirstOfferEvent(roomId, peerId, roomSessionId));
+                    }
+                }
+            }
+            if (result.containsValue(true)) {
+                //the statement has set the current room session
+                roomSessionCache.written(roomId, roomSessionId);
+            }
+            return result;
+        }));
+
+        log.trace("Acknowledged offers from room_id={}, bridge_session_id={}. Accepted: {}",
+                roomId, roomSessionId, accepted
+        );
+
+        upsertRequestsTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        upsertRequestsCounter.increment();
+
+        return accepted;
+    }
+
     protected void disconnectOtherSessions(String roomId, String roomSessionIdToKeep) {
         Collection<String> stalledRoomMediaSessions = roomMediaSessionDao.findOtherActiveRoomSessions(roomId,
                 roomSessionIdToKeep);
         log.trace("Disconnecting stalled room sessions {}", stalledRoomMediaSessions);
-        Collection<RoomMediaSessionDto> disconnectedMediaSessionIds =
-                roomMediaSessionDao.disconnectAllInRoomAndRecreate(
+        disconnectRoomSessions(roomId, stalledRoomMediaSessions, roomSessionIdToKeep);
+    }
+
+    private void disconnectRoomSessions(String roomId, Collection<String> stalledRoomMediaSessions,
+                                        String roomSessionIdToKeep) {
+        Collection<RoomMediaSessionDto> disconnectedMediaSessionIds = upsertMode == UpsertMode.LANES
+                ? roomMediaSessionDao.disconnectAllInRoomAndRecreateWithoutLocking(
+                        roomId,
+                        stalledRoomMediaSessions,
+                        roomSessionIdToKeep
+                )
+                : roomMediaSessionDao.disconnectAllInRoomAndRecreate(
+                        roomId,
                         stalledRoomMediaSessions,
                         roomSessionIdToKeep
                 );
     }
 
     public boolean persistFirstOfferEvent(String roomId, String peerId, String roomSessionId) {
-        Instant now = Instant.now();
-
-        return upsertTransactionally(UpsertRMSRequest.builder()
-                .roomId(roomId)
-                .peerId(peerId)
-                .roomSessionId(roomSessionId)
-                .newState(FIRST_OFFER_RECEIVED)
-                .updatedStates(List.of(CREATED, ARCHIVED, FIRST_OFFER_RECEIVED))
-                .newCreatedAt(now)
-                .newFirstOfferAt(now)
-                .build());
+        return upsertTransactionally(UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, Instant.now()));
     }
 
     @SneakyThrows
@@ -176,19 +363,8 @@ public class SampleService {
         throttleRPS();
 
         long start = System.nanoTime();
-        Instant now = Instant.now();
-        boolean result = upsertTransactionally(
-                UpsertRMSRequest.builder()
-                        .roomId(roomId)
-                        .roomSessionId(roomSessionId)
-                        .peerId(peerId)
-                        .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED))
-                        .newState(CONNECTED)
-                        .newCreatedAt(now)
-                        .newFirstOfferAt(now)
-                        .newConnectedAt(now)
-                        .build()
-        );
+        boolean result = recorded(TransitionType.CONNECTED, () -> upsertInRoomLane(TransitionType.CONNECTED,
+                UpsertRMSRequest.connected(roomId, peerId, roomSessionId, Instant.now())));
 
         upsertRequestsTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         upsertRequestsCounter.increment();
@@ -203,20 +379,8 @@ public class SampleService {
 
         long start = System.nanoTime();
 
-        Instant now = Instant.now();
-        boolean result = upsertTransactionally(
-                UpsertRMSRequest.builder()
-                        .roomId(roomId)
-                        .roomSessionId(roomSessionId)
-                        .peerId(peerId)
-                        .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED, DISCONNECTED))
-                        .newState(DISCONNECTED)
-                        .newCreatedAt(now)
-                        .newFirstOfferAt(now)
-                        .newConnectedAt(now)
-                        .newDisconnectedAt(now)
-                        .build()
-        );
+        boolean result = recorded(TransitionType.DISCONNECTED, () -> upsertInRoomLane(TransitionType.DISCONNECTED,
+                UpsertRMSRequest.disconnected(roomId, peerId, roomSessionId, Instant.now())));
 
         upsertRequestsTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
         upsertRequestsCounter.increment();
@@ -224,9 +388,50 @@ public class SampleService {
         return result;
     }
 
+    private boolean upsertInRoomLane(TransitionType transition, UpsertRMSRequest upsertRMSRequest) {
+        return inRoomLane(transition, upsertRMSRequest.getRoomId(), () -> upsertTransactionally(upsertRMSRequest));
+    }
+
+    /**
+     * Runs the transition on the lane of the room in {@link UpsertMode#LANES}, traced by {@link CallTracer}
+     * on the thread that actually talks to the database.
+     */
+    @SneakyThrows
+    private <T> T inRoomLane(TransitionType transition, String roomId, Callable<T> task) {
+        UpsertMode mode = upsertMode;
+        Callable<T> traced = () -> callTracer.trace(transition, mode, task);
+        if (mode == UpsertMode.LANES) {
+            return roomLanes.execute(roomId, traced);
+        }
+        return traced.call();
+    }
+
     private int upsertWithLock(UpsertRMSRequest upsertRMSRequest) {
+        return upsertLocked(upsertRMSRequest, roomMediaSessionDao::selectRoomIdForUpdate);
+    }
+
+    /**
+     * Falls back to {@link #upsertWithLock(UpsertRMSRequest)} if the advisory lock isn't acquired
+     * within advisory.lock.timeout.millis, that transaction is rolled back by then.
+     */
+    private int upsertWithAdvisoryLock(UpsertRMSRequest upsertRMSRequest) {
+        try {
+            return upsertLocked(upsertRMSRequest, roomId -> roomMediaSessionDao.advisoryLockRoom(
+                    roomId,
+                    advisoryLockNamespace,
+                    advisoryLockKeySpace,
+                    advisoryLockTimeoutMillis
+            ));
+        } catch (CannotAcquireLockException e) {
+            log.debug("Advisory lock timed out, falling back to the row lock. request: {}", upsertRMSRequest, e);
+            advisoryLockFallbackCounter.increment();
+            return upsertWithLock(upsertRMSRequest);
+        }
+    }
+
+    private int upsertLocked(UpsertRMSRequest upsertRMSRequest, Consumer<String> lockRoom) {
         Integer result = transactionTemplate.execute(status -> {
-            roomMediaSessionDao.selectRoomIdForUpdate(upsertRMSRequest.getRoomId());
+            lockRoom.accept(upsertRMSRequest.getRoomId());
 
             int updated;
             updated = roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest);
@@ -248,32 +453,119 @@ public class SampleService {
         int updated;
         updated = roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest);
         if (updated == 0) {
-            updated = roomMediaSessionDao.updateCreatedRoomSession(upsertRMSRequest);
+            updated = updateCreatedOrInsert(upsertRMSRequest);
+        }
+        return updated;
+    }
+
+    private int updateCreatedOrInsert(UpsertRMSRequest upsertRMSRequest) {
+        int updated;
+        updated = roomMediaSessionDao.updateCreatedRoomSession(upsertRMSRequest);
+        if (updated == 0) {
+            updated = roomMediaSessionDao.insertOrDoNothing(upsertRMSRequest);
             if (updated == 0) {
-                updated = roomMediaSessionDao.insertOrDoNothing(upsertRMSRequest);
-                if (updated == 0) {
-                    updated = roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest);
-                }
+                CallTrace.retried();
+                updated = roomMediaSessionDao.updateByRoomSessionId(upsertRMSRequest);
             }
         }
         return updated;
     }
 
+    /**
+     * {@link #upsertNoLock(UpsertRMSRequest)} with the update of the current room session sent along with
+     * the first statement. Most transitions end with that statement, so they take a single round trip.
+     */
+    private boolean upsertPipelined(UpsertRMSRequest upsertRMSRequest) {
+        int updated = roomMediaSessionDao.updateByRoomSessionIdAndSetLatest(upsertRMSRequest);
+        if (updated == 0) {
+            updated = updateCreatedOrInsert(upsertRMSRequest);
+        }
+        if (updated == 0) {
+            throw new RuntimeException(String.format(
+                    "Failed to update info on room media sessions. 0 rows updated. request: %s",
+                    upsertRMSRequest
+            ));
+        }
+        //the first statement has set the current room session
+        roomSessionCache.written(upsertRMSRequest.getRoomId(), upsertRMSRequest.getRoomSessionId());
+        return true;
+    }
+
+    private boolean upsertInSingleStatement(UpsertRMSRequest upsertRMSRequest) {
+        UpsertOutcome outcome = roomMediaSessionDao.upsertInSingleStatement(upsertRMSRequest);
+        if (outcome == UpsertOutcome.NOT_UPDATED) {
+            //same as the last updateByRoomSessionId of upsertNoLock: someone has inserted the row concurrently,
+            // the next statement sees it
+            CallTrace.retried();
+            outcome = roomMediaSessionDao.upsertInSingleStatement(upsertRMSRequest);
+        }
+
+        if (outcome == UpsertOutcome.NOT_UPDATED) {
+            throw new RuntimeException(String.format(
+                    "Failed to update info on room media sessions. 0 rows updated. request: %s",
+                    upsertRMSRequest
+            ));
+        }
+        return writtenIfAccepted(upsertRMSRequest.getRoomId(), upsertRMSRequest.getRoomSessionId(),
+                outcome == UpsertOutcome.ACCEPTED);
+    }
+
+    private boolean upsertServerSide(UpsertRMSRequest upsertRMSRequest) {
+        return writtenIfAccepted(upsertRMSRequest.getRoomId(), upsertRMSRequest.getRoomSessionId(),
+                roomMediaSessionDao.upsertServerSide(upsertRMSRequest));
+    }
+
+    /**
+     * The server side transitions set the current room session themselves when they accept one, the cache
+     * has to learn about it or it keeps rejecting the other peers of the new room session until the entry expires.
+     */
+    private boolean writtenIfAccepted(String roomId, String roomSessionId, boolean accepted) {
+        if (accepted) {
+            roomSessionCache.written(roomId, roomSessionId);
+        }
+        return accepted;
+    }
+
     private boolean upsertTransactionally(UpsertRMSRequest upsertRMSRequest) {
-        String roomId = upsertRMSRequest.getRoomId();
+        return upsertStrategies.get(upsertMode).upsert(upsertRMSRequest);
+    }
+
+    private boolean upsertPipelinedTransition(UpsertRMSRequest upsertRMSRequest) {
         String roomSessionId = upsertRMSRequest.getRoomSessionId();
+        RoomSessionSnapshot snapshot = roomMediaSessionDao.readRoomSessionSnapshot(upsertRMSRequest.getRoomId(),
+                roomSessionId, false);
+        return !snapshot.isStale(roomSessionId) && upsertPipelined(upsertRMSRequest);
+    }
 
+    private boolean upsertWriteBehind(UpsertRMSRequest upsertRMSRequest) {
+        String roomId = upsertRMSRequest.getRoomId();
+        String roomSessionId = upsertRMSRequest.getRoomSessionId();
         if (isStaleRoomSession(roomId, roomSessionId)) {
             return false;
         }
+        //the batched upsert sets the latest room session id itself, the cache learns about it once that's written
+        return writeBehindQueue.awaitAck(writeBehindQueue.enqueue(upsertRMSRequest)
+                .thenApply(accepted -> writtenIfAccepted(roomId, roomSessionId, accepted)));
+    }
 
-        int updated;
-        if (useLocks) {
-            updated = upsertWithLock(upsertRMSRequest);
-        } else {
-            updated = upsertNoLock(upsertRMSRequest);
+    private boolean upsertOptimistically(UpsertRMSRequest upsertRMSRequest) {
+        //reads and writes the current room session itself, versioned
+        return writtenIfAccepted(upsertRMSRequest.getRoomId(), upsertRMSRequest.getRoomSessionId(),
+                optimisticUpsertStrategy.upsert(upsertRMSRequest));
+    }
+
+    /**
+     * Stale check, the update/update/insert cascade and the update of the current room session.
+     */
+    private boolean upsertCascade(UpsertRMSRequest upsertRMSRequest, ToIntFunction<UpsertRMSRequest> cascade) {
+        String roomId = upsertRMSRequest.getRoomId();
+        String roomSessionId = upsertRMSRequest.getRoomSessionId();
+
+        if (isStaleRoomSession(roomId, roomSessionId)) {
+            return false;
         }
 
+        int updated = cascade.applyAsInt(upsertRMSRequest);
         if (updated == 0) {
             throw new RuntimeException(String.format(
                     "Failed to update info on room media sessions. 0 rows updated. request: %s",
@@ -283,7 +575,7 @@ public class SampleService {
 
         //has to be done last not to hold a lock on a neighbour transaction for the whole duration of the
         // transaction
-        roomMediaSessionDao.setLatestRoomSessionId(roomId, roomSessionId);
+        roomSessionCache.setLatestRoomSessionId(roomId, roomSessionId, roomMediaSessionDao::setLatestRoomSessionId);
 
         return true;
     }
@@ -0,0 +1,100 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.Data;
+
+/**
+ * Workload of one room, interpreted by {@link ScenarioDriver}. Loaded from YAML or JSON by {@link ScenarioLoader}.
+ * <p>
+ * A room fills up to a size drawn from {@link #roomSize}, optionally goes through reconnect storms, then switches
+ * room sessions {@link #sessionSwitches} times and finally empties.
+ * On every switch the first peer moves to the new room session, the others either follow it or idle:
+ * an idle peer sends an offer for the old room session, gets rejected and disconnects.
+ */
+@Data
+public class Scenario {
+
+    private String name = "default";
+
+    private RoomSize roomSize = new RoomSize();
+
+    /**
+     * Pause between two peers starting to join, 0 joins everyone at once.
+     */
+    private long joinIntervalMillis = 0;
+
+    /**
+     * Pause between two peers leaving at the end of the room.
+     */
+    private long leaveIntervalMillis = 0;
+
+    /**
+     * Every joining peer triggers an offer to every peer already in the room, N^2 offers per room session.
+     */
+    private boolean offerToAllOnJoin = true;
+
+    /**
+     * Share of offers the signalling sends twice.
+     */
+    private double duplicateOfferRatio = 0;
+
+    /**
+     * Every peer drops and reconnects to a new room session at once.
+     */
+    private int reconnectStorms = 0;
+
+    private int sessionSwitches = 1;
+
+    /**
+     * Share of peers that don't follow a room session switch.
+     */
+    private double idlePeerRatio = 0;
+
+    /**
+     * After a switch new peers join the new room session until the room is back to its size.
+     */
+    private boolean refillOnSwitch = false;
+
+    /**
+     * Peers disconnect at the end of the room, otherwise they are left connected.
+     */
+    private boolean leaveAtEnd = true;
+
+    public enum RoomSizeDistribution {
+        FIXED,
+        UNIFORM,
+        /**
+         * As many rooms of 2-4 peers as of 200-400: the usual shape of production room sizes.
+         */
+        LOG_UNIFORM
+    }
+
+    @Data
+    public static class RoomSize {
+        private RoomSizeDistribution distribution = RoomSizeDistribution.FIXED;
+        private int min = 40;
+        private int max = 40;
+
+        public int sample() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return switch (distribution) {
+                case FIXED -> min;
+                case UNIFORM -> random.nextInt(min, max + 1);
+                case LOG_UNIFORM -> (int) Math.floor(Math.exp(random.nextDouble(Math.log(min), Math.log(max + 1))));
+            };
+        }
+    }
+
+    public void validate() {
+        if (roomSize.getMin() < 1 || roomSize.getMax() < roomSize.getMin()) {
+            throw new IllegalArgumentException(String.format(
+                    "Scenario %s: room size has to be within [1, max], got [%d, %d]",
+                    name, roomSize.getMin(), roomSize.getMax()
+            ));
+        }
+        if (duplicateOfferRatio < 0 || duplicateOfferRatio > 1 || idlePeerRatio < 0 || idlePeerRatio > 1) {
+            throw new IllegalArgumentException("Scenario " + name + ": ratios have to be within [0, 1]");
+        }
+    }
+}
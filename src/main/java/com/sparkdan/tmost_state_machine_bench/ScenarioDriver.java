@@ -0,0 +1,163 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+/**
+ * Plays one room of a {@link Scenario} against {@link SampleService}, see Scenario for the phases.
+ * Runs on the executor of the caller, so the thread model is the one of the load generator.
+ */
+@Service
+@Slf4j
+public class ScenarioDriver {
+
+    @Autowired
+    protected SampleService sampleService;
+
+    @Autowired
+    protected RoomMediaSessionDao dao;
+
+    static class Room {
+        final String roomId = UUID.randomUUID().toString();
+        final List<String> peerIds = Collections.synchronizedList(new ArrayList<>());
+        private final List<CompletableFuture<?>> hangingOffers = Collections.synchronizedList(new ArrayList<>());
+        volatile String roomSessionId = UUID.randomUUID().toString();
+    }
+
+    public Room runRoom(Scenario scenario, ExecutorService executor) {
+        Room room = new Room();
+        dao.createRoom(room.roomId);
+        int size = scenario.getRoomSize().sample();
+        log.trace("Running scenario {} with room {} of {} peers", scenario.getName(), room.roomId, size);
+
+        join(scenario, room, size, executor);
+
+        for (int i = 0; i < scenario.getReconnectStorms(); i++) {
+            reconnectStorm(scenario, room, executor);
+        }
+
+        for (int i = 0; i < scenario.getSessionSwitches(); i++) {
+            switchRoomSession(scenario, room, size, executor);
+        }
+
+        if (scenario.isLeaveAtEnd()) {
+            for (String peerId : new ArrayList<>(room.peerIds)) {
+                pause(scenario.getLeaveIntervalMillis());
+                sampleService.disconnected(room.roomId, peerId, room.roomSessionId);
+            }
+        }
+        return room;
+    }
+
+    private void join(Scenario scenario, Room room, int peers, ExecutorService executor) {
+        List<CompletableFuture<Void>> joins = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            if (i > 0) {
+                pause(scenario.getJoinIntervalMillis());
+            }
+            joins.add(CompletableFuture.runAsync(() -> {
+                String peerId = UUID.randomUUID().toString();
+                sampleService.createSession(room.roomId, peerId);
+                offer(scenario, room.roomId, peerId, room.roomSessionId, executor);
+                if (scenario.isOfferToAllOnJoin()) {
+                    for (String presentPeer : new ArrayList<>(room.peerIds)) {
+                        room.hangingOffers.add(CompletableFuture.runAsync(
+                                () -> offer(scenario, room.roomId, presentPeer, room.roomSessionId, executor),
+                                executor
+                        ));
+                    }
+                }
+                sampleService.connected(room.roomId, peerId, room.roomSessionId);
+                room.peerIds.add(peerId);
+            }, executor));
+        }
+        joins.forEach(CompletableFuture::join);
+        new ArrayList<>(room.hangingOffers).forEach(CompletableFuture::join);
+        room.hangingOffers.clear();
+    }
+
+    /**
+     * Every peer drops and reconnects at once. A reconnect always comes with a new room session, a disconnected
+     * media session never moves back to CONNECTED. Disconnects that arrive after the first offer for the new room
+     * session has switched the room are rejected as stale, just like late signals in production.
+     */
+    private void reconnectStorm(Scenario scenario, Room room, ExecutorService executor) {
+        String oldRoomSessionId = room.roomSessionId;
+        String newRoomSessionId = UUID.randomUUID().toString();
+        List<CompletableFuture<Void>> reconnects = new ArrayList<>();
+        for (String peerId : new ArrayList<>(room.peerIds)) {
+            reconnects.add(CompletableFuture.runAsync(() -> {
+                sampleService.disconnected(room.roomId, peerId, oldRoomSessionId);
+                offer(scenario, room.roomId, peerId, newRoomSessionId, executor);
+                sampleService.connected(room.roomId, peerId, newRoomSessionId);
+            }, executor));
+        }
+        reconnects.forEach(CompletableFuture::join);
+        room.roomSessionId = newRoomSessionId;
+    }
+
+    private void switchRoomSession(Scenario scenario, Room room, int size, ExecutorService executor) {
+        if (room.peerIds.isEmpty()) {
+            return;
+        }
+        String oldRoomSessionId = room.roomSessionId;
+        String newRoomSessionId = UUID.randomUUID().toString();
+        List<String> peers = new ArrayList<>(room.peerIds);
+        String leader = peers.get(0);
+
+        offer(scenario, room.roomId, leader, newRoomSessionId, executor);
+        sampleService.connected(room.roomId, leader, newRoomSessionId);
+        room.roomSessionId = newRoomSessionId;
+
+        List<CompletableFuture<Void>> moves = new ArrayList<>();
+        for (String peerId : peers.subList(1, peers.size())) {
+            boolean idle = ThreadLocalRandom.current().nextDouble() < scenario.getIdlePeerRatio();
+            moves.add(CompletableFuture.runAsync(() -> {
+                if (idle) {
+                    offer(scenario, room.roomId, peerId, oldRoomSessionId, executor);
+                    sampleService.disconnected(room.roomId, peerId, oldRoomSessionId);
+                    room.peerIds.remove(peerId);
+                } else {
+                    offer(scenario, room.roomId, peerId, newRoomSessionId, executor);
+                    sampleService.connected(room.roomId, peerId, newRoomSessionId);
+                }
+            }, executor));
+        }
+        moves.forEach(CompletableFuture::join);
+
+        if (scenario.isRefillOnSwitch() && room.peerIds.size() < size) {
+            join(scenario, room, size - room.peerIds.size(), executor);
+        }
+    }
+
+    private void offer(Scenario scenario, String roomId, String peerId, String roomSessionId,
+                       ExecutorService executor) {
+        if (ThreadLocalRandom.current().nextDouble() < scenario.getDuplicateOfferRatio()) {
+            CompletableFuture<Boolean> duplicate = CompletableFuture.supplyAsync(
+                    () -> sampleService.offerReceived(roomId, peerId, roomSessionId),
+                    executor
+            );
+            sampleService.offerReceived(roomId, peerId, roomSessionId);
+            duplicate.join();
+            return;
+        }
+        sampleService.offerReceived(roomId, peerId, roomSessionId);
+    }
+
+    @SneakyThrows
+    private static void pause(long millis) {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+}
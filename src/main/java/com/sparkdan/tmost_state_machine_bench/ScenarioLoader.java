@@ -0,0 +1,33 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.stereotype.Service;
+
+/**
+ * Reads a {@link Scenario} from a Spring resource location, e.g. classpath:scenarios/default.yaml
+ * or file:/tmp/big-rooms.json. JSON is valid YAML, so one parser reads both.
+ */
+@Service
+public class ScenarioLoader {
+
+    @Autowired
+    ResourceLoader resourceLoader;
+
+    private final ObjectMapper objectMapper = new ObjectMapper(new YAMLFactory());
+
+    public Scenario load(String location) throws IOException {
+        Resource resource = resourceLoader.getResource(location);
+        try (InputStream in = resource.getInputStream()) {
+            Scenario scenario = objectMapper.readValue(in, Scenario.class);
+            scenario.validate();
+            return scenario;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Refill;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.intellij.lang.annotations.Language;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+
+/**
+ * Moves DISCONNECTED and ARCHIVED media sessions finished more than archive.age.millis ago from
+ * room_media_sessions to room_media_sessions_history, so the hot table and its indexes stay the size of the
+ * live sessions however long the bench runs.
+ * A batch is one statement: the rows are claimed with FOR UPDATE SKIP LOCKED, deleted and inserted into the
+ * history, nothing goes through the application. archive.max.rows.per.second caps the rows moved.
+ * <p>
+ * Room sessions stay known through the history, see {@link JdbcRoomMediaSessionDao#KNOWN_ROOM_SESSION}, so a late
+ * offer for an archived room session is still stale. A transition of a moved media session of the current room
+ * session would start it over though, so the age has to be longer than the latest a transition of a finished
+ * media session arrives.
+ */
+@Service
+@Slf4j
+public class SessionArchiver {
+
+    /**
+     * ctid is only unique within a partition, tableoid picks the partition.
+     */
+    @Language("SQL")
+    private static final String ARCHIVE_SQL = """
+            with claimed as (
+                select tableoid as the_tableoid, ctid as the_ctid
+                from room_media_sessions
+                where state in ('DISCONNECTED', 'ARCHIVED')
+                  and coalesce(disconnected_at, created_at) < :finished_before
+                limit :batch_size
+                for update skip locked
+            ),
+            moved as (
+                delete from room_media_sessions
+                where (tableoid, ctid) in (select the_tableoid, the_ctid from claimed)
+                returning peer_id, room_session_id, room_id, created_at, first_offer_at, connected_at,
+                          disconnected_at, state, version
+            )
+            insert into room_media_sessions_history (peer_id, room_session_id, room_id, created_at, first_offer_at,
+                                                     connected_at, disconnected_at, state, version)
+            select peer_id, room_session_id, room_id, created_at, first_offer_at, connected_at,
+                   disconnected_at, state, version
+            from moved
+            """;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    @Value("${archive.enabled:false}")
+    boolean enabled;
+
+    @Value("${archive.interval.millis:1000}")
+    long intervalMillis = 1000;
+
+    /**
+     * Rows per statement, one statement is one transaction and holds its row locks until it commits.
+     */
+    @Value("${archive.batch.size:500}")
+    int batchSize = 500;
+
+    @Value("${archive.max.rows.per.second:5000}")
+    int maxRowsPerSecond = 5000;
+
+    @Value("${archive.age.millis:600000}")
+    long ageMillis = 600000;
+
+    private Counter movedCounter;
+    private Counter failuresCounter;
+    private Timer batchTimer;
+
+    private Bucket rowsBucket;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    protected void start() {
+        registerMeters();
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::archive, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Archiving media sessions finished {} ms ago every {} ms, at most {} a second",
+                ageMillis, intervalMillis, maxRowsPerSecond);
+    }
+
+    protected void registerMeters() {
+        movedCounter = meterRegistry.counter("archive.rows");
+        failuresCounter = meterRegistry.counter("archive.failures");
+        batchTimer = Timer.builder("archive.batch")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+        rowsBucket = Bucket.builder()
+                .addLimit(Bandwidth.classic(maxRowsPerSecond, Refill.greedy(maxRowsPerSecond, Duration.ofSeconds(1))))
+                .build();
+    }
+
+    @PreDestroy
+    protected void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * One round of batches.
+     *
+     * @return media sessions moved
+     */
+    int archive() {
+        int moved = 0;
+        try {
+            while (true) {
+                int size = (int) rowsBucket.tryConsumeAsMuchAsPossible(batchSize);
+                if (size == 0) {
+                    break;
+                }
+                long start = System.nanoTime();
+                int batch = namedJdbcTemplate.update(ARCHIVE_SQL, Map.of(
+                        "finished_before", new Timestamp(System.currentTimeMillis() - ageMillis),
+                        "batch_size", size
+                ));
+                batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                movedCounter.increment(batch);
+                moved += batch;
+
+                //only the rows moved count against the rate
+                if (batch < size) {
+                    rowsBucket.addTokens(size - batch);
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failuresCounter.increment();
+            log.warn("Failed to archive finished media sessions", e);
+        }
+        return moved;
+    }
+}
@@ -0,0 +1,145 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.github.bucket4j.Bandwidth;
+import io.github.bucket4j.Bucket;
+import io.github.bucket4j.Refill;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Disconnects stalled media sessions in the background, see
+ * {@link RoomMediaSessionDao#reapStalledSessions(int, long, long)}.
+ * Batches are claimed with FOR UPDATE SKIP LOCKED, so the reaper never waits for a transition and a
+ * transition waits for one batch at most. reaper.max.rows.per.second caps the rows claimed, a round
+ * ends early when a batch comes back short.
+ */
+@Service
+@Slf4j
+public class StalledSessionReaper {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    RoomMediaSessionDao roomMediaSessionDao;
+
+    @Value("${reaper.enabled:false}")
+    boolean enabled;
+
+    @Value("${reaper.interval.millis:1000}")
+    long intervalMillis = 1000;
+
+    @Value("${reaper.batch.size:100}")
+    int batchSize = 100;
+
+    @Value("${reaper.max.rows.per.second:1000}")
+    int maxRowsPerSecond = 1000;
+
+    /**
+     * A CREATED row nobody has answered for this long is a lost reconnect signal.
+     */
+    @Value("${reaper.created.timeout.millis:60000}")
+    long createdTimeoutMillis = 60000;
+
+    /**
+     * A first offer that hasn't connected for this long is a failed connection.
+     */
+    @Value("${reaper.offer.timeout.millis:30000}")
+    long offerTimeoutMillis = 30000;
+
+    private Counter disconnectedCounter;
+    private Counter expiredCounter;
+    private Counter recreatedCounter;
+    private Counter failuresCounter;
+    private Timer batchTimer;
+
+    private Bucket rowsBucket;
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    protected void start() {
+        registerMeters();
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "stalled-session-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::reap, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("Reaping stalled media sessions every {} ms, at most {} a second", intervalMillis, maxRowsPerSecond);
+    }
+
+    protected void registerMeters() {
+        disconnectedCounter = meterRegistry.counter("reaper.disconnected");
+        expiredCounter = meterRegistry.counter("reaper.expired");
+        recreatedCounter = meterRegistry.counter("reaper.recreated");
+        failuresCounter = meterRegistry.counter("reaper.failures");
+        batchTimer = Timer.builder("reaper.batch")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+        rowsBucket = Bucket.builder()
+                .addLimit(Bandwidth.classic(maxRowsPerSecond, Refill.greedy(maxRowsPerSecond, Duration.ofSeconds(1))))
+                .build();
+    }
+
+    @PreDestroy
+    protected void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * One round of batches.
+     *
+     * @return media sessions claimed
+     */
+    int reap() {
+        int claimed = 0;
+        try {
+            while (true) {
+                int size = (int) rowsBucket.tryConsumeAsMuchAsPossible(batchSize);
+                if (size == 0) {
+                    break;
+                }
+                long now = System.currentTimeMillis();
+                long start = System.nanoTime();
+                ReapedSessions reaped = roomMediaSessionDao.reapStalledSessions(
+                        size,
+                        now - createdTimeoutMillis,
+                        now - offerTimeoutMillis
+                );
+                batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+                disconnectedCounter.increment(reaped.disconnected());
+                expiredCounter.increment(reaped.expired());
+                recreatedCounter.increment(reaped.recreated());
+                claimed += reaped.claimed();
+
+                //only the rows claimed count against the rate
+                if (reaped.claimed() < size) {
+                    rowsBucket.addTokens(size - reaped.claimed());
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            failuresCounter.increment();
+            log.warn("Failed to reap stalled media sessions", e);
+        }
+        return claimed;
+    }
+}
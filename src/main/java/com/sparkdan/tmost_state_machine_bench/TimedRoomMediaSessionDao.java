@@ -0,0 +1,64 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Times every {@link RoomMediaSessionDao} method into {@link CallTracer}, only with calltrace.enabled=true.
+ */
+public final class TimedRoomMediaSessionDao {
+
+    private TimedRoomMediaSessionDao() {
+    }
+
+    public static RoomMediaSessionDao wrap(RoomMediaSessionDao dao, CallTracer callTracer) {
+        return (RoomMediaSessionDao) Proxy.newProxyInstance(
+                TimedRoomMediaSessionDao.class.getClassLoader(),
+                new Class<?>[]{RoomMediaSessionDao.class},
+                (proxy, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        return switch (method.getName()) {
+                            case "equals" -> proxy == args[0];
+                            case "hashCode" -> System.identityHashCode(proxy);
+                            default -> "Timed" + dao;
+                        };
+                    }
+                    long start = System.nanoTime();
+                    try {
+                        return method.invoke(dao, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    } finally {
+                        callTracer.daoCall(method.getName(), System.nanoTime() - start);
+                    }
+                }
+        );
+    }
+
+    /**
+     * Wraps every RoomMediaSessionDao of the context.
+     */
+    @Component
+    @ConditionalOnProperty(name = "calltrace.enabled", havingValue = "true")
+    static class PostProcessor implements BeanPostProcessor {
+
+        private final ObjectProvider<CallTracer> callTracer;
+
+        PostProcessor(ObjectProvider<CallTracer> callTracer) {
+            this.callTracer = callTracer;
+        }
+
+        @Override
+        public Object postProcessAfterInitialization(Object bean, String beanName) {
+            if (bean instanceof RoomMediaSessionDao dao && !Proxy.isProxyClass(bean.getClass())) {
+                return wrap(dao, callTracer.getObject());
+            }
+            return bean;
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+public enum TransitionOutcome {
+    /**
+     * The service returned true.
+     */
+    ACCEPTED,
+    /**
+     * The service returned false, e.g. an offer for a stale room session.
+     */
+    REJECTED,
+    /**
+     * The service threw.
+     */
+    FAILED
+}
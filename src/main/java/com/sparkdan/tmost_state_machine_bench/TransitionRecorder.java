@@ -0,0 +1,274 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.HdrHistogram.Histogram;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Records every transition of a suite in process and writes the results of the suite to ipnb/ without Prometheus.
+ * <p>
+ * A transition is one fixed size record: start and end System.nanoTime(), type and outcome.
+ * Records go to a buffer of recorder.capacity records preallocated off heap, or mapped onto recorder.file
+ * if it is set, so the raw data of the last suite survives the process. Records past the capacity are dropped
+ * and counted. Hikari pool stats are sampled once a second while a suite runs.
+ * Outside of a suite {@link #record} does nothing.
+ */
+@Service
+@Slf4j
+public class TransitionRecorder {
+
+    /**
+     * long start, long end, byte type, byte outcome, 2 bytes of padding.
+     */
+    private static final int RECORD_SIZE = 20;
+
+    /**
+     * Buffers are indexed by int, mapped ones included.
+     */
+    static final int MAX_CAPACITY = Integer.MAX_VALUE / RECORD_SIZE;
+
+    @Autowired(required = false)
+    DataSource dataSource;
+
+    @Value("${recorder.capacity:2000000}")
+    int capacity = 2_000_000;
+
+    /**
+     * Beginning of a suite left out of the results, same as the 5 s the Prometheus queries skip.
+     */
+    @Value("${recorder.warmup.millis:5000}")
+    long warmupMillis = 5000;
+
+    @Value("${recorder.file:}")
+    private String file;
+
+    private ByteBuffer buffer;
+
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile boolean active;
+    private long suiteStartNanos;
+    private long suiteStartMillis;
+
+    private ScheduledExecutorService poolSampler;
+    private final List<long[]> poolSamples = new ArrayList<>();
+
+    @PostConstruct
+    protected void checkCapacity() {
+        if (capacity < 0 || capacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException(String.format(
+                    "recorder.capacity=%d is out of range, a buffer holds 0 to %d records of %d bytes",
+                    capacity, MAX_CAPACITY, RECORD_SIZE));
+        }
+    }
+
+    public synchronized void start() throws IOException {
+        if (buffer == null) {
+            buffer = allocate();
+        }
+        next.set(0);
+        dropped.set(0);
+        synchronized (poolSamples) {
+            poolSamples.clear();
+        }
+        suiteStartMillis = System.currentTimeMillis();
+        suiteStartNanos = System.nanoTime();
+
+        HikariPoolMXBean pool = hikariPool();
+        if (pool != null) {
+            poolSampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "recorder-pool-sampler");
+                thread.setDaemon(true);
+                return thread;
+            });
+            poolSampler.scheduleAtFixedRate(() -> samplePool(pool), 0, 1, TimeUnit.SECONDS);
+        }
+        active = true;
+    }
+
+    public synchronized void stop() throws InterruptedException {
+        active = false;
+        if (poolSampler != null) {
+            poolSampler.shutdown();
+            poolSampler.awaitTermination(5, TimeUnit.SECONDS);
+            poolSampler = null;
+        }
+    }
+
+    public void record(TransitionType type, long startNanos, long endNanos, TransitionOutcome outcome) {
+        if (!active) {
+            return;
+        }
+        long slot = next.getAndIncrement();
+        if (slot >= capacity) {
+            dropped.incrementAndGet();
+            return;
+        }
+        //slot < capacity <= MAX_CAPACITY, the product fits into an int
+        int offset = (int) (slot * RECORD_SIZE);
+        buffer.putLong(offset, startNanos);
+        buffer.putLong(offset + 8, endNanos);
+        buffer.put(offset + 16, (byte) type.ordinal());
+        buffer.put(offset + 17, (byte) outcome.ordinal());
+    }
+
+    private ByteBuffer allocate() throws IOException {
+        long bytes = (long) capacity * RECORD_SIZE;
+        if (StringUtils.isBlank(file)) {
+            return ByteBuffer.allocateDirect((int) bytes);
+        }
+        File target = new File(file);
+        FileUtils.forceMkdirParent(target);
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw");
+             FileChannel channel = raf.getChannel()) {
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+        }
+    }
+
+    private HikariPoolMXBean hikariPool() {
+        if (dataSource == null) {
+            return null;
+        }
+        try {
+            return dataSource.unwrap(HikariDataSource.class).getHikariPoolMXBean();
+        } catch (Exception e) {
+            log.info("No Hikari pool to sample", e);
+            return null;
+        }
+    }
+
+    private void samplePool(HikariPoolMXBean pool) {
+        long[] sample = {
+                System.currentTimeMillis(),
+                pool.getActiveConnections(),
+                pool.getIdleConnections(),
+                pool.getThreadsAwaitingConnection(),
+                pool.getTotalConnections()
+        };
+        synchronized (poolSamples) {
+            poolSamples.add(sample);
+        }
+    }
+
+    /**
+     * Writes the recorded suite to
+     * <ul>
+     *     <li>ipnb/cps_{suffix}.csv: connected calls per second, what the notebooks plot</li>
+     *     <li>ipnb/connections_{suffix}.csv: active pool connections per second</li>
+     *     <li>ipnb/transitions_{suffix}.csv: per second and transition type, outcomes and latency percentiles</li>
+     *     <li>ipnb/pool_{suffix}.csv: all sampled pool stats</li>
+     * </ul>
+     */
+    public synchronized void writeResults(String suffix) throws IOException {
+        long records = Math.min(next.get(), capacity);
+        if (dropped.get() > 0) {
+            log.warn("{} transitions didn't fit into recorder.capacity={} and were dropped", dropped.get(), capacity);
+        }
+
+        TreeMap<Long, Map<TransitionType, Second>> seconds = new TreeMap<>();
+        for (long i = 0; i < records; i++) {
+            int offset = (int) (i * RECORD_SIZE);
+            long start = buffer.getLong(offset);
+            long end = buffer.getLong(offset + 8);
+            TransitionType type = TransitionType.values()[buffer.get(offset + 16)];
+            TransitionOutcome outcome = TransitionOutcome.values()[buffer.get(offset + 17)];
+
+            if (end - suiteStartNanos < TimeUnit.MILLISECONDS.toNanos(warmupMillis)) {
+                continue;
+            }
+            long second = TimeUnit.NANOSECONDS.toSeconds(end - suiteStartNanos);
+            seconds.computeIfAbsent(second, s -> new EnumMap<>(TransitionType.class))
+                    .computeIfAbsent(type, t -> new Second())
+                    .add(outcome, end - start);
+        }
+
+        StringBuilder cps = new StringBuilder("time,rps\n");
+        StringBuilder transitions = new StringBuilder("time,type,accepted,rejected,failed,p50_ms,p90_ms,p99_ms,p999_ms,max_ms\n");
+        for (Map.Entry<Long, Map<TransitionType, Second>> entry : seconds.entrySet()) {
+            long time = suiteStartMillis + TimeUnit.SECONDS.toMillis(entry.getKey());
+            Second connected = entry.getValue().get(TransitionType.CONNECTED);
+            cps.append(time).append(",").append(connected == null ? 0 : connected.calls()).append("\n");
+
+            for (Map.Entry<TransitionType, Second> typeEntry : entry.getValue().entrySet()) {
+                Second s = typeEntry.getValue();
+                transitions.append(time).append(",")
+                        .append(typeEntry.getKey().getLabel()).append(",")
+                        .append(s.outcomes[TransitionOutcome.ACCEPTED.ordinal()]).append(",")
+                        .append(s.outcomes[TransitionOutcome.REJECTED.ordinal()]).append(",")
+                        .append(s.outcomes[TransitionOutcome.FAILED.ordinal()]).append(",")
+                        .append(millis(s.latency.getValueAtPercentile(50))).append(",")
+                        .append(millis(s.latency.getValueAtPercentile(90))).append(",")
+                        .append(millis(s.latency.getValueAtPercentile(99))).append(",")
+                        .append(millis(s.latency.getValueAtPercentile(99.9))).append(",")
+                        .append(millis(s.latency.getMaxValue())).append("\n");
+            }
+        }
+
+        StringBuilder connections = new StringBuilder("time,rps\n");
+        StringBuilder pool = new StringBuilder("time,active,idle,pending,total\n");
+        synchronized (poolSamples) {
+            for (long[] sample : poolSamples) {
+                if (sample[0] < suiteStartMillis + warmupMillis) {
+                    continue;
+                }
+                connections.append(sample[0]).append(",").append(sample[1]).append("\n");
+                pool.append(StringUtils.join(sample, ',')).append("\n");
+            }
+        }
+
+        write("ipnb/cps_" + suffix + ".csv", cps);
+        write("ipnb/connections_" + suffix + ".csv", connections);
+        write("ipnb/transitions_" + suffix + ".csv", transitions);
+        write("ipnb/pool_" + suffix + ".csv", pool);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    private static void write(String path, StringBuilder content) throws IOException {
+        FileUtils.writeStringToFile(new File(path), content.toString(), StandardCharsets.UTF_8);
+    }
+
+    private static class Second {
+        private final long[] outcomes = new long[TransitionOutcome.values().length];
+        private final Histogram latency = new Histogram(3);
+
+        private void add(TransitionOutcome outcome, long nanos) {
+            outcomes[outcome.ordinal()]++;
+            latency.recordValue(nanos);
+        }
+
+        private long calls() {
+            return outcomes[TransitionOutcome.ACCEPTED.ordinal()] + outcomes[TransitionOutcome.REJECTED.ordinal()];
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * The calls of {@link SampleService} a load generator makes.
+ */
+@RequiredArgsConstructor
+public enum TransitionType {
+    CREATE_SESSION("createSession"),
+    /**
+     * One call for all peers of a join burst.
+     */
+    CREATE_SESSIONS("createSessions"),
+    OFFER_RECEIVED("offerReceived"),
+    /**
+     * One call for the offers all present peers get when the room renegotiates.
+     */
+    OFFERS_RECEIVED("offersReceived"),
+    CONNECTED("connected"),
+    DISCONNECTED("disconnected");
+
+    /**
+     * Used in result file names and meter tags.
+     */
+    @Getter
+    private final String label;
+}
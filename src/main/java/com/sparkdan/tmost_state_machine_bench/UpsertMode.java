@@ -0,0 +1,60 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+@RequiredArgsConstructor
+public enum UpsertMode {
+    /**
+     * update/update/insert/update cascade, every statement in autocommit.
+     */
+    NO_LOCKS("false"),
+    /**
+     * The same cascade in a transaction holding the lock on the rooms row.
+     */
+    LOCKS("true"),
+    /**
+     * The whole transition in one data-modifying CTE statement.
+     */
+    SINGLE_STATEMENT("cte"),
+    /**
+     * Whole transitions, offerReceived included, inside the PL/pgSQL functions of migration.sql.
+     */
+    STORED_FUNCTIONS("plpgsql"),
+    /**
+     * Transitions are coalesced and written in batches by {@link WriteBehindQueue}.
+     */
+    WRITE_BEHIND("writebehind"),
+    /**
+     * The no locks cascade, with all transitions of a room serialized on one of {@link RoomLanes}.
+     */
+    LANES("lanes"),
+    /**
+     * The no locks cascade with independent statements sent in one round trip:
+     * the reads before the transition and the update of the current room session with the first update.
+     */
+    PIPELINED("pipelined"),
+    /**
+     * Compare-and-set on the row and room versions in a short transaction, retried with jittered backoff
+     * on conflicts. See {@link OptimisticUpsertStrategy}.
+     */
+    OPTIMISTIC("optimistic"),
+    /**
+     * {@link #LOCKS} with a transaction level advisory lock keyed by the room instead of the lock on the rooms row.
+     */
+    ADVISORY_LOCKS("advisory");
+
+    /**
+     * Used in the result file names, the first two keep the names the notebooks already read.
+     */
+    @Getter
+    private final String resultLabel;
+
+    /**
+     * Modes that upsert the offers of a renegotiation in one set-based statement, see
+     * {@link SampleService#offersReceived}. The others upsert them one peer at a time the way they upsert a single offer.
+     */
+    public boolean upsertsOffersInBulk() {
+        return this == SINGLE_STATEMENT;
+    }
+}
@@ -0,0 +1,13 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+public enum UpsertOutcome {
+    ACCEPTED,
+    /**
+     * The room has already moved on to another room session that has connected peers.
+     */
+    STALE,
+    /**
+     * No row was touched, usually because a concurrent request inserted the same media session.
+     */
+    NOT_UPDATED
+}
@@ -8,6 +8,12 @@ import lombok.Builder;
 import lombok.Data;
 import org.joda.time.Instant;
 
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.ARCHIVED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+
 @Data
 @Builder
 public class UpsertRMSRequest {
@@ -27,4 +33,43 @@ public class UpsertRMSRequest {
     Instant newConnectedAt;
     @Nullable
     Instant newDisconnectedAt;
+
+    public static UpsertRMSRequest firstOffer(String roomId, String peerId, String roomSessionId, Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId(roomId)
+                .peerId(peerId)
+                .roomSessionId(roomSessionId)
+                .newState(FIRST_OFFER_RECEIVED)
+                .updatedStates(List.of(CREATED, ARCHIVED, FIRST_OFFER_RECEIVED))
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .build();
+    }
+
+    public static UpsertRMSRequest connected(String roomId, String peerId, String roomSessionId, Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId(roomId)
+                .roomSessionId(roomSessionId)
+                .peerId(peerId)
+                .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED))
+                .newState(CONNECTED)
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .newConnectedAt(now)
+                .build();
+    }
+
+    public static UpsertRMSRequest disconnected(String roomId, String peerId, String roomSessionId, Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId(roomId)
+                .roomSessionId(roomSessionId)
+                .peerId(peerId)
+                .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED, DISCONNECTED))
+                .newState(DISCONNECTED)
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .newConnectedAt(now)
+                .newDisconnectedAt(now)
+                .build();
+    }
 }
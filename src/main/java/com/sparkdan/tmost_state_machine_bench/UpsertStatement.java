@@ -0,0 +1,155 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.joda.time.Instant;
+import org.springframework.jdbc.core.SqlParameter;
+import org.springframework.jdbc.core.namedparam.EmptySqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterUtils;
+import org.springframework.jdbc.core.namedparam.ParsedSql;
+
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_CREATED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_DISCONNECTED_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_FIRST_OFFER_AT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_PEER_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.COL_STATE;
+
+/**
+ * A named parameter statement over an {@link UpsertRMSRequest}, turned into positional SQL once.
+ * {@link #bind} writes the request straight into the PreparedStatement, so a call builds no parameter map
+ * and parses no SQL.
+ * The updated_states list is inlined instead of bound: there's a statement text for every subset of
+ * states, picked by a bitmask of state ordinals.
+ */
+final class UpsertStatement {
+
+    private static final String UPDATED_STATES = "(:updated_states)";
+    private static final RoomMediaSessionState[] STATES = RoomMediaSessionState.values();
+
+    private final String[] sqlByStates;
+    private final List<String> parameters;
+
+    private final int[] roomId;
+    private final int[] roomSessionId;
+    private final int[] peerId;
+    private final int[] createdAt;
+    private final int[] firstOfferAt;
+    private final int[] connectedAt;
+    private final int[] disconnectedAt;
+    private final int[] state;
+
+    private UpsertStatement(String[] sqlByStates, List<String> parameters) {
+        this.sqlByStates = sqlByStates;
+        this.parameters = parameters;
+        this.roomId = positions(COL_ROOM_ID);
+        this.roomSessionId = positions(COL_ROOM_SESSION_ID);
+        this.peerId = positions(COL_PEER_ID);
+        this.createdAt = positions(COL_CREATED_AT);
+        this.firstOfferAt = positions(COL_FIRST_OFFER_AT);
+        this.connectedAt = positions(COL_CONNECTED_AT);
+        this.disconnectedAt = positions(COL_DISCONNECTED_AT);
+        this.state = positions(COL_STATE);
+    }
+
+    static UpsertStatement compile(String namedSql) {
+        String[] sqlByStates = new String[1 << STATES.length];
+        List<String> parameters = null;
+        for (int mask = 0; mask < sqlByStates.length; mask++) {
+            ParsedSql parsed = NamedParameterUtils.parseSqlStatement(namedSql.replace(UPDATED_STATES, inlined(mask)));
+            sqlByStates[mask] = NamedParameterUtils.substituteNamedParameters(parsed, null);
+            if (parameters == null) {
+                parameters = NamedParameterUtils.buildSqlParameterList(parsed, EmptySqlParameterSource.INSTANCE)
+                        .stream()
+                        .map(SqlParameter::getName)
+                        .toList();
+            }
+        }
+        return new UpsertStatement(sqlByStates, parameters);
+    }
+
+    /**
+     * An empty list still has to parse, and nothing is in (null).
+     */
+    private static String inlined(int mask) {
+        if (mask == 0) {
+            return "(null)";
+        }
+        return IntStream.range(0, STATES.length)
+                .filter(ordinal -> (mask & (1 << ordinal)) != 0)
+                .mapToObj(ordinal -> "'" + STATES[ordinal].name() + "'")
+                .collect(Collectors.joining(", ", "(", ")"));
+    }
+
+    static int statesMask(List<RoomMediaSessionState> states) {
+        int mask = 0;
+        for (int i = 0; i < states.size(); i++) {
+            mask |= 1 << states.get(i).ordinal();
+        }
+        return mask;
+    }
+
+    String sql(UpsertRMSRequest upsertRMSRequest) {
+        return sqlByStates[statesMask(upsertRMSRequest.getUpdatedStates())];
+    }
+
+    /**
+     * 1-based JDBC positions of the named parameter, empty if the statement doesn't use it.
+     */
+    int[] positions(String name) {
+        return IntStream.range(0, parameters.size())
+                .filter(i -> parameters.get(i).equals(name))
+                .map(i -> i + 1)
+                .toArray();
+    }
+
+    void bind(PreparedStatement ps, UpsertRMSRequest upsertRMSRequest) throws SQLException {
+        setString(ps, roomId, upsertRMSRequest.getRoomId());
+        setString(ps, roomSessionId, upsertRMSRequest.getRoomSessionId());
+        setString(ps, peerId, upsertRMSRequest.getPeerId());
+        setString(ps, state, upsertRMSRequest.getNewState().name());
+
+        //transitions stamp all of their timestamps with the same now, it's converted once
+        Instant now = upsertRMSRequest.getNewCreatedAt();
+        Timestamp nowTimestamp = timestamp(now);
+        setTimestamp(ps, createdAt, nowTimestamp);
+        setTimestamp(ps, firstOfferAt, timestamp(upsertRMSRequest.getNewFirstOfferAt(), now, nowTimestamp));
+        setTimestamp(ps, connectedAt, timestamp(upsertRMSRequest.getNewConnectedAt(), now, nowTimestamp));
+        setTimestamp(ps, disconnectedAt, timestamp(upsertRMSRequest.getNewDisconnectedAt(), now, nowTimestamp));
+    }
+
+    private static Timestamp timestamp(Instant instant, Instant now, Timestamp nowTimestamp) {
+        return instant == now ? nowTimestamp : timestamp(instant);
+    }
+
+    private static Timestamp timestamp(Instant instant) {
+        return instant == null ? null : new Timestamp(instant.getMillis());
+    }
+
+    private static void setString(PreparedStatement ps, int[] positions, String value) throws SQLException {
+        for (int position : positions) {
+            ps.setString(position, value);
+        }
+    }
+
+    /**
+     * Nulls go with an explicit type, otherwise the driver would be asked for the parameter metadata.
+     */
+    private static void setTimestamp(PreparedStatement ps, int[] positions, Timestamp value) throws SQLException {
+        for (int position : positions) {
+            if (value == null) {
+                ps.setNull(position, Types.TIMESTAMP);
+            } else {
+                ps.setTimestamp(position, value);
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+/**
+ * How a transition writes its room media session and keeps concurrent transitions of the room apart:
+ * not at all, with the lock on the rooms row, with versions, in one statement and so on.
+ * SampleService picks one per {@link UpsertMode}.
+ */
+@FunctionalInterface
+public interface UpsertStrategy {
+
+    /**
+     * Stale room session check, the write of the row and of the current room session.
+     *
+     * @return false if the request is for a stale room session
+     */
+    boolean upsert(UpsertRMSRequest upsertRMSRequest);
+}
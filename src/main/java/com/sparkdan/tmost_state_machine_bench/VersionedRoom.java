@@ -0,0 +1,9 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * rooms.current_room_session_id along with the version it was read at.
+ */
+public record VersionedRoom(@Nullable String currentRoomSessionId, long version) {
+}
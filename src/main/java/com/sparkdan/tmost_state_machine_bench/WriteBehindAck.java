@@ -0,0 +1,15 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+/**
+ * When {@link WriteBehindQueue#submit(UpsertRMSRequest)} returns to the caller.
+ */
+public enum WriteBehindAck {
+    /**
+     * As soon as the transition is buffered. Transitions still in the buffer are lost if the node dies.
+     */
+    ENQUEUED,
+    /**
+     * After the batch holding the transition is written. Callers still share round trips and coalesced writes.
+     */
+    FLUSHED
+}
@@ -0,0 +1,363 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.jetbrains.annotations.Nullable;
+import org.joda.time.Instant;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.stereotype.Service;
+
+/**
+ * Write-behind stage in front of {@link RoomMediaSessionDao}, used by {@link UpsertMode#WRITE_BEHIND}.
+ * <p>
+ * Transitions are buffered per (room_session_id, peer_id). A transition that picks up where the buffered one
+ * left off is merged into it, e.g. FIRST_OFFER_RECEIVED followed by CONNECTED becomes one CONNECTED write
+ * with the earliest timestamps, just like UPDATE_BASE_SQL would leave the row.
+ * The buffer is flushed with {@link RoomMediaSessionDao#upsertInBatch(List)} once it holds writebehind.batch.size
+ * media sessions or writebehind.flush.interval.millis after the previous flush.
+ * Every buffered write completes its future with whether it was accepted, a write of a stale room session is not.
+ */
+@Service
+@Slf4j
+public class WriteBehindQueue {
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    @Autowired
+    RoomMediaSessionDao roomMediaSessionDao;
+
+    @Value("${writebehind.batch.size:500}")
+    private int batchSize = 500;
+
+    @Value("${writebehind.flush.interval.millis:20}")
+    private long flushIntervalMillis = 20;
+
+    @Setter
+    @Value("${writebehind.ack:FLUSHED}")
+    private WriteBehindAck ack = WriteBehindAck.FLUSHED;
+
+    private record Key(String roomSessionId, String peerId) {
+    }
+
+    private static class Pending {
+        private final List<UpsertRMSRequest> writes = new ArrayList<>(2);
+        //one per write, transitions merged into a write share its future
+        private final List<CompletableFuture<Boolean>> accepted = new ArrayList<>(2);
+
+        /**
+         * @return true if the request was merged into the last buffered write
+         */
+        private boolean add(UpsertRMSRequest request) {
+            if (!writes.isEmpty()) {
+                int last = writes.size() - 1;
+                UpsertRMSRequest merged = coalesce(writes.get(last), request);
+                if (merged != null) {
+                    writes.set(last, merged);
+                    return true;
+                }
+            }
+            writes.add(request);
+            accepted.add(new CompletableFuture<>());
+            return false;
+        }
+
+        private CompletableFuture<Boolean> last() {
+            return accepted.get(accepted.size() - 1);
+        }
+
+        /**
+         * Fails the writes still waiting, the ones after a failed write are never attempted.
+         */
+        private void fail(Throwable e) {
+            for (CompletableFuture<Boolean> write : accepted) {
+                write.completeExceptionally(e);
+            }
+        }
+    }
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition batchFull = lock.newCondition();
+    //guarded by lock
+    private LinkedHashMap<Key, Pending> buffer = new LinkedHashMap<>();
+    private final AtomicInteger bufferedWrites = new AtomicInteger();
+
+    private volatile boolean running;
+    private Thread flusher;
+
+    private Counter enqueuedCounter;
+    private Counter coalescedCounter;
+    private Counter failedCounter;
+    private Timer flushTimer;
+    private DistributionSummary flushSizeSummary;
+
+    @PostConstruct
+    protected void start() {
+        Gauge.builder("writebehind.queue.depth", bufferedWrites, AtomicInteger::get)
+                .register(meterRegistry);
+        enqueuedCounter = meterRegistry.counter("writebehind.enqueued");
+        coalescedCounter = meterRegistry.counter("writebehind.coalesced");
+        failedCounter = meterRegistry.counter("writebehind.failed");
+        flushTimer = Timer.builder("writebehind.flush.latency")
+                .publishPercentiles(0.5, 0.9, 0.99)
+                .publishPercentileHistogram()
+                .distributionStatisticExpiry(Duration.ofSeconds(30))
+                .register(meterRegistry);
+        flushSizeSummary = DistributionSummary.builder("writebehind.flush.size")
+                .register(meterRegistry);
+
+        running = true;
+        flusher = new Thread(this::flushLoop, "write-behind-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    protected void stop() throws InterruptedException {
+        lock.lock();
+        try {
+            running = false;
+            batchFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        flusher.join();
+    }
+
+    /**
+     * Buffers the transition and waits for it according to the ack policy.
+     *
+     * @return false if the transition was rejected, always true with {@link WriteBehindAck#ENQUEUED}
+     */
+    public boolean submit(UpsertRMSRequest upsertRMSRequest) {
+        return awaitAck(enqueue(upsertRMSRequest));
+    }
+
+    /**
+     * Waits for the future of {@link #enqueue(UpsertRMSRequest)} according to the ack policy.
+     *
+     * @return false if the transition was rejected, always true with {@link WriteBehindAck#ENQUEUED}
+     */
+    public boolean awaitAck(CompletableFuture<Boolean> accepted) {
+        return ack != WriteBehindAck.FLUSHED || accepted.join();
+    }
+
+    /**
+     * @return completed with false if the transition was rejected as stale once it's written
+     */
+    public CompletableFuture<Boolean> enqueue(UpsertRMSRequest upsertRMSRequest) {
+        Key key = new Key(upsertRMSRequest.getRoomSessionId(), upsertRMSRequest.getPeerId());
+        enqueuedCounter.increment();
+        lock.lock();
+        try {
+            if (!running) {
+                throw new IllegalStateException("write-behind queue is stopped");
+            }
+            Pending pending = buffer.computeIfAbsent(key, k -> new Pending());
+            if (pending.add(upsertRMSRequest)) {
+                coalescedCounter.increment();
+            } else {
+                bufferedWrites.incrementAndGet();
+            }
+            if (buffer.size() >= batchSize) {
+                batchFull.signal();
+            }
+            return pending.last();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            LinkedHashMap<Key, Pending> batch;
+            lock.lock();
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+                long remaining = deadline - System.nanoTime();
+                while (running && buffer.size() < batchSize && remaining > 0) {
+                    remaining = batchFull.awaitNanos(remaining);
+                }
+                if (!running && buffer.isEmpty()) {
+                    return;
+                }
+                batch = buffer;
+                buffer = new LinkedHashMap<>();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                continue;
+            } finally {
+                lock.unlock();
+            }
+
+            if (batch.isEmpty()) {
+                continue;
+            }
+            //an unexpected failure must not take the only flusher down with it, callers wait for their writes
+            try {
+                flush(batch.values());
+            } catch (RuntimeException e) {
+                log.error("failed to flush {} media sessions", batch.size(), e);
+                failedCounter.increment();
+                for (Pending pending : batch.values()) {
+                    pending.fail(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the batch in rounds: the first buffered write of every media session, then the second one
+     * for the few media sessions that had transitions which couldn't be merged, and so on.
+     */
+    private void flush(Collection<Pending> batch) {
+        long start = System.nanoTime();
+        int total = 0;
+        Set<Pending> failed = new LinkedHashSet<>();
+        try {
+            for (int round = 0; ; round++) {
+                List<UpsertRMSRequest> requests = new ArrayList<>();
+                List<CompletableFuture<Boolean>> accepted = new ArrayList<>();
+                List<Pending> owners = new ArrayList<>();
+                for (Pending pending : batch) {
+                    if (pending.writes.size() > round && !failed.contains(pending)) {
+                        requests.add(pending.writes.get(round));
+                        accepted.add(pending.accepted.get(round));
+                        owners.add(pending);
+                    }
+                }
+                if (requests.isEmpty()) {
+                    break;
+                }
+                for (int from = 0; from < requests.size(); from += batchSize) {
+                    int to = Math.min(requests.size(), from + batchSize);
+                    write(requests.subList(from, to), accepted.subList(from, to), owners.subList(from, to),
+                            failed);
+                }
+                total += requests.size();
+            }
+        } finally {
+            bufferedWrites.addAndGet(-batch.stream().mapToInt(p -> p.writes.size()).sum());
+        }
+        flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        flushSizeSummary.record(total);
+    }
+
+    private void write(List<UpsertRMSRequest> requests, List<CompletableFuture<Boolean>> accepted,
+                       List<Pending> owners, Set<Pending> failed) {
+        int[] upserted;
+        try {
+            upserted = roomMediaSessionDao.upsertInBatch(requests);
+        } catch (DataAccessException e) {
+            log.info("failed to write batch of {} transitions, writing them one by one", requests.size(), e);
+            upserted = new int[requests.size()];
+        } catch (RuntimeException e) {
+            log.error("failed to write batch of {} transitions", requests.size(), e);
+            failedCounter.increment(requests.size());
+            for (Pending owner : owners) {
+                failed.add(owner);
+                owner.fail(e);
+            }
+            return;
+        }
+
+        for (int i = 0; i < upserted.length; i++) {
+            //drivers may answer SUCCESS_NO_INFO instead of the row count
+            if (upserted[i] != 0) {
+                accepted.get(i).complete(true);
+                continue;
+            }
+            //stale room session, lost insert race or a failed batch. the single statement tells them apart
+            UpsertRMSRequest request = requests.get(i);
+            try {
+                UpsertOutcome outcome = roomMediaSessionDao.upsertInSingleStatement(request);
+                if (outcome == UpsertOutcome.NOT_UPDATED) {
+                    outcome = roomMediaSessionDao.upsertInSingleStatement(request);
+                }
+                if (outcome == UpsertOutcome.NOT_UPDATED) {
+                    throw new RuntimeException(String.format(
+                            "Failed to update info on room media sessions. 0 rows updated. request: %s",
+                            request
+                    ));
+                }
+                accepted.get(i).complete(outcome == UpsertOutcome.ACCEPTED);
+            } catch (RuntimeException e) {
+                log.error("failed to write transition {}", request, e);
+                failedCounter.increment();
+                failed.add(owners.get(i));
+                owners.get(i).fail(e);
+            }
+        }
+    }
+
+    /**
+     * Merges two successive transitions of one media session into a single one that leaves
+     * the row in the same state as applying both of them in order.
+     *
+     * @return null if no single transition does that
+     */
+    @Nullable
+    static UpsertRMSRequest coalesce(UpsertRMSRequest first, UpsertRMSRequest second) {
+        List<RoomMediaSessionState> updatedStates;
+        RoomMediaSessionState newState;
+        if (second.getUpdatedStates().contains(first.getNewState())) {
+            //second moves further every row first has moved
+            Set<RoomMediaSessionState> union = new LinkedHashSet<>(first.getUpdatedStates());
+            union.addAll(second.getUpdatedStates());
+            updatedStates = List.copyOf(union);
+            newState = second.getNewState();
+        } else if (first.getUpdatedStates().containsAll(second.getUpdatedStates())) {
+            //second can't move anything first hasn't already moved, e.g. a late offer after CONNECTED
+            updatedStates = first.getUpdatedStates();
+            newState = first.getNewState();
+        } else {
+            return null;
+        }
+
+        return UpsertRMSRequest.builder()
+                .roomId(second.getRoomId())
+                .roomSessionId(second.getRoomSessionId())
+                .peerId(second.getPeerId())
+                .updatedStates(updatedStates)
+                .newState(newState)
+                .newCreatedAt(earliest(first.getNewCreatedAt(), second.getNewCreatedAt()))
+                .newFirstOfferAt(earliest(first.getNewFirstOfferAt(), second.getNewFirstOfferAt()))
+                .newConnectedAt(earliest(first.getNewConnectedAt(), second.getNewConnectedAt()))
+                .newDisconnectedAt(earliest(first.getNewDisconnectedAt(), second.getNewDisconnectedAt()))
+                .build();
+    }
+
+    @Nullable
+    private static Instant earliest(@Nullable Instant first, @Nullable Instant second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        return first.isAfter(second) ? second : first;
+    }
+}
@@ -0,0 +1,74 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.UUID;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallTracerTests {
+
+    @Test
+    void daoMethodsTaggedByTransitionStrategyAndOutcome() {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CallTracer callTracer = new CallTracer();
+        callTracer.meterRegistry = meterRegistry;
+        callTracer.setEnabled(true);
+
+        InMemoryRoomMediaSessionStore store = new InMemoryRoomMediaSessionStore(16);
+        SampleService sampleService = new SampleService();
+        sampleService.meterRegistry = meterRegistry;
+        sampleService.roomMediaSessionDao = TimedRoomMediaSessionDao.wrap(store, callTracer);
+        sampleService.roomSessionCache = new RoomSessionCache();
+        sampleService.roomSessionCache.meterRegistry = meterRegistry;
+        sampleService.roomSessionCache.registerMeters();
+        sampleService.transitionRecorder = new TransitionRecorder();
+        sampleService.callTracer = callTracer;
+        sampleService.registerMeters();
+
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        store.createRoom(roomId);
+        sampleService.connected(roomId, peerId, "session1");
+        sampleService.offerReceived(roomId, peerId, "session2");
+        assertFalse(sampleService.offerReceived(roomId, peerId, "session1"));
+
+        Timer connectedUpdate = meterRegistry.find("dao.method")
+                .tags("method", "updateByRoomSessionId",
+                        "transition", "connected",
+                        "strategy", "no_locks",
+                        "outcome", "accepted")
+                .timer();
+        assertNotNull(connectedUpdate);
+        assertEquals(1, connectedUpdate.count());
+
+        assertNotNull(meterRegistry.find("dao.method")
+                .tags("method", "disconnectAllInRoomAndRecreate", "transition", "offerReceived")
+                .timer());
+        assertNotNull(meterRegistry.find("sampleservice.roundtrips")
+                .tags("transition", "offerReceived", "outcome", "stale")
+                .summary());
+        //nothing runs outside of a transition
+        assertNull(meterRegistry.find("dao.method").tags("transition", CallTracer.NONE).timer());
+    }
+
+    @Test
+    void offByDefault() throws Exception {
+        MeterRegistry meterRegistry = new SimpleMeterRegistry();
+        CallTracer callTracer = new CallTracer();
+        callTracer.meterRegistry = meterRegistry;
+
+        assertEquals(true, callTracer.trace(TransitionType.CONNECTED, UpsertMode.NO_LOCKS, () -> {
+            assertNull(CallTrace.current());
+            return true;
+        }));
+        assertTrue(meterRegistry.getMeters().isEmpty());
+    }
+}
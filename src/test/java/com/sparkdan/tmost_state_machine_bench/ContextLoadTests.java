@@ -0,0 +1,34 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import javax.sql.DataSource;
+
+import io.r2dbc.spi.ConnectionFactory;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.ApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * The context with the properties the bench ships with: the r2dbc driver on the classpath must not take
+ * the JDBC beans away.
+ */
+@SpringBootTest
+class ContextLoadTests {
+
+    @Autowired
+    ApplicationContext context;
+
+    @Test
+    void jdbcBeansWithReactiveDisabled() {
+        assertNotNull(context.getBean(DataSource.class));
+        assertNotNull(context.getBean(JdbcTemplate.class));
+        assertNotNull(context.getBean(TransactionTemplate.class));
+        assertEquals(0, context.getBeanNamesForType(ConnectionFactory.class).length);
+        assertEquals(0, context.getBeanNamesForType(ReactiveSampleService.class).length);
+    }
+}
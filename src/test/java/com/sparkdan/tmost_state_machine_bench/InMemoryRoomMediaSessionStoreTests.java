@@ -0,0 +1,375 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.joda.time.Instant;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.transaction.support.SimpleTransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionDao.UNKNOWN_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryRoomMediaSessionStoreTests {
+
+    protected SampleService sampleService;
+
+    protected InMemoryRoomMediaSessionStore dao;
+
+    @BeforeEach
+    void setUp() {
+        dao = new InMemoryRoomMediaSessionStore(16);
+        sampleService = new SampleService();
+        sampleService.meterRegistry = new SimpleMeterRegistry();
+        sampleService.roomMediaSessionDao = dao;
+        sampleService.transactionTemplate = noTransactions();
+        sampleService.roomSessionCache = new RoomSessionCache();
+        sampleService.roomSessionCache.meterRegistry = sampleService.meterRegistry;
+        sampleService.roomSessionCache.registerMeters();
+        sampleService.transitionRecorder = new TransitionRecorder();
+        sampleService.callTracer = new CallTracer();
+        sampleService.callTracer.meterRegistry = sampleService.meterRegistry;
+        sampleService.optimisticUpsertStrategy = new OptimisticUpsertStrategy();
+        sampleService.optimisticUpsertStrategy.meterRegistry = sampleService.meterRegistry;
+        sampleService.optimisticUpsertStrategy.roomMediaSessionDao = dao;
+        sampleService.optimisticUpsertStrategy.transactionTemplate = sampleService.transactionTemplate;
+        sampleService.optimisticUpsertStrategy.registerMeters();
+        sampleService.roomLanes = new RoomLanes();
+        sampleService.roomLanes.meterRegistry = sampleService.meterRegistry;
+        sampleService.roomLanes.start();
+        sampleService.registerMeters();
+    }
+
+    @AfterEach
+    void tearDown() {
+        sampleService.roomLanes.stop();
+    }
+
+    /**
+     * The store has no transactions, every callback runs as is.
+     */
+    private static TransactionTemplate noTransactions() {
+        return new TransactionTemplate() {
+            @Override
+            public <T> T execute(TransactionCallback<T> action) {
+                return action.doInTransaction(new SimpleTransactionStatus());
+            }
+        };
+    }
+
+    @Test
+    void persistWorks() {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.createSession(roomId, peerId);
+        assertState(roomId, peerId, UNKNOWN_ROOM_SESSION_ID, CREATED);
+
+        sampleService.offerReceived(roomId, peerId, roomSessionId);
+        assertState(roomId, peerId, roomSessionId, FIRST_OFFER_RECEIVED);
+        assertNotExists(roomId, peerId, UNKNOWN_ROOM_SESSION_ID);
+
+        sampleService.connected(roomId, peerId, roomSessionId);
+        assertState(roomId, peerId, roomSessionId, CONNECTED);
+
+        sampleService.offerReceived(roomId, peerId, roomSessionId);
+        assertState(roomId, peerId, roomSessionId, CONNECTED);
+
+        sampleService.disconnected(roomId, peerId, roomSessionId);
+        assertState(roomId, peerId, roomSessionId, DISCONNECTED);
+    }
+
+    @Test
+    public void testReconnectSignalled() {
+        String roomId = UUID.randomUUID().toString();
+        String peer1 = UUID.randomUUID().toString();
+        String peer2 = UUID.randomUUID().toString();
+        String discoPeer = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+
+        dao.createRoom(roomId);
+
+        sampleService.connected(roomId, peer1, roomSession1);
+        sampleService.connected(roomId, peer2, roomSession1);
+        sampleService.disconnected(roomId, discoPeer, roomSession1);
+
+        String roomSession2 = UUID.randomUUID().toString();
+        sampleService.offerReceived(roomId, peer1, roomSession2);
+
+        assertState(roomId, peer1, roomSession1, DISCONNECTED);
+        assertState(roomId, peer2, roomSession1, DISCONNECTED);
+
+        assertNotExists(roomId, discoPeer, UNKNOWN_ROOM_SESSION_ID);
+        assertState(roomId, peer1, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, peer2, UNKNOWN_ROOM_SESSION_ID, CREATED);
+
+        //offers to the previous room session are not accepted anymore
+        assertFalse(sampleService.offerReceived(roomId, peer2, roomSession1));
+    }
+
+    @Test
+    public void testCreateSessions() {
+        String roomId = UUID.randomUUID().toString();
+        String peer1 = UUID.randomUUID().toString();
+        String peer2 = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+
+        sampleService.createSession(roomId, peer1);
+        sampleService.offerReceived(roomId, peer1, roomSessionId);
+        sampleService.createSessions(roomId, List.of(peer1, peer2));
+
+        assertState(roomId, peer1, roomSessionId, FIRST_OFFER_RECEIVED);
+        assertState(roomId, peer1, UNKNOWN_ROOM_SESSION_ID, CREATED);
+        assertState(roomId, peer2, UNKNOWN_ROOM_SESSION_ID, CREATED);
+    }
+
+    @Test
+    public void testOffersReceived() {
+        String roomId = UUID.randomUUID().toString();
+        String connectedPeer = UUID.randomUUID().toString();
+        String createdPeer = UUID.randomUUID().toString();
+        String newPeer = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+
+        sampleService.connected(roomId, connectedPeer, roomSession1);
+        sampleService.createSession(roomId, createdPeer);
+        Map<String, Boolean> accepted = sampleService.offersReceived(roomId, roomSession2,
+                List.of(connectedPeer, createdPeer, newPeer));
+
+        assertEquals(Map.of(connectedPeer, true, createdPeer, true, newPeer, true), accepted);
+        assertState(roomId, connectedPeer, roomSession1, DISCONNECTED);
+        assertState(roomId, connectedPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, createdPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, newPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertNotExists(roomId, createdPeer, UNKNOWN_ROOM_SESSION_ID);
+
+        //offers to the previous room session are not accepted anymore
+        assertEquals(Map.of(connectedPeer, false),
+                sampleService.offersReceived(roomId, roomSession1, List.of(connectedPeer)));
+    }
+
+    @Test
+    public void testOffersReceivedInBulk() {
+        sampleService.setUpsertMode(UpsertMode.SINGLE_STATEMENT);
+        try {
+            testOffersReceived();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testCheckConstraintEnforced() {
+        String roomId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+
+        assertThrows(DataIntegrityViolationException.class, () -> dao.insertOrDoNothing(UpsertRMSRequest.builder()
+                .roomId(roomId)
+                .roomSessionId(UNKNOWN_ROOM_SESSION_ID)
+                .peerId(UUID.randomUUID().toString())
+                .newState(CONNECTED)
+                .build()));
+    }
+
+    @Test
+    public void testSingleStatementUpsert() {
+        sampleService.setUpsertMode(UpsertMode.SINGLE_STATEMENT);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testStoredFunctions() {
+        sampleService.setUpsertMode(UpsertMode.STORED_FUNCTIONS);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testPipelined() {
+        sampleService.setUpsertMode(UpsertMode.PIPELINED);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testOptimistic() {
+        sampleService.setUpsertMode(UpsertMode.OPTIMISTIC);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testLanes() {
+        sampleService.setUpsertMode(UpsertMode.LANES);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testOptimisticRetriesOnVersionConflict() {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.createSession(roomId, peerId);
+
+        //the CREATED row moves on between the read and the compare-and-set of the first attempt
+        AtomicBoolean interfered = new AtomicBoolean();
+        sampleService.optimisticUpsertStrategy.roomMediaSessionDao = (RoomMediaSessionDao) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{RoomMediaSessionDao.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("compareAndSetRoomMediaSession")
+                        && interfered.compareAndSet(false, true)) {
+                        dao.updateCreatedRoomSession(UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId,
+                                Instant.now()));
+                    }
+                    return method.invoke(dao, args);
+                }
+        );
+        sampleService.setUpsertMode(UpsertMode.OPTIMISTIC);
+        try {
+            assertTrue(sampleService.connected(roomId, peerId, roomSessionId));
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+
+        assertState(roomId, peerId, roomSessionId, CONNECTED);
+        assertEquals(1.0, sampleService.meterRegistry.get("optimistic.conflicts")
+                .tag("on", "room_media_sessions").counter().count());
+    }
+
+    @Test
+    public void testOptimisticRetriesOnRoomSessionSwitch() {
+        String roomId = UUID.randomUUID().toString();
+        String connectedPeer = UUID.randomUUID().toString();
+        String createdPeer = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.connected(roomId, connectedPeer, roomSession1);
+        sampleService.createSession(roomId, createdPeer);
+
+        //the room moves on to another room session between the read of the room and the row write
+        AtomicBoolean switched = new AtomicBoolean();
+        sampleService.optimisticUpsertStrategy.roomMediaSessionDao = (RoomMediaSessionDao) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{RoomMediaSessionDao.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("compareAndSetRoomMediaSession")
+                        && switched.compareAndSet(false, true)) {
+                        dao.setLatestRoomSessionId(roomId, roomSession2);
+                    }
+                    return method.invoke(dao, args);
+                }
+        );
+        sampleService.setUpsertMode(UpsertMode.OPTIMISTIC);
+        try {
+            assertFalse(sampleService.connected(roomId, createdPeer, roomSession1));
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+
+        assertState(roomId, createdPeer, UNKNOWN_ROOM_SESSION_ID, CREATED);
+        assertNotExists(roomId, createdPeer, roomSession1);
+        assertEquals(1.0, sampleService.meterRegistry.get("optimistic.conflicts")
+                .tag("on", "rooms").counter().count());
+    }
+
+    @Test
+    public void testAdvisoryLocks() {
+        sampleService.setUpsertMode(UpsertMode.ADVISORY_LOCKS);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    /**
+     * Every mode that sets the current room session, server side ones included, has to keep the cache in step:
+     * the second peer of a new room session is accepted even though the cache was loaded before the switch.
+     */
+    @Test
+    public void testRoomSessionCachedInEveryMode() {
+        sampleService.roomSessionCache.setEnabled(true);
+        for (UpsertMode mode : List.of(UpsertMode.NO_LOCKS, UpsertMode.LOCKS, UpsertMode.SINGLE_STATEMENT,
+                UpsertMode.STORED_FUNCTIONS, UpsertMode.PIPELINED, UpsertMode.OPTIMISTIC,
+                UpsertMode.ADVISORY_LOCKS, UpsertMode.LANES)) {
+            sampleService.setUpsertMode(mode);
+            try {
+                String roomId = UUID.randomUUID().toString();
+                String peer1 = UUID.randomUUID().toString();
+                String peer2 = UUID.randomUUID().toString();
+                String roomSession1 = UUID.randomUUID().toString();
+                String roomSession2 = UUID.randomUUID().toString();
+                dao.createRoom(roomId);
+
+                assertTrue(sampleService.connected(roomId, peer1, roomSession1), mode.name());
+                assertTrue(sampleService.connected(roomId, peer2, roomSession1), mode.name());
+
+                assertTrue(sampleService.offerReceived(roomId, peer1, roomSession2), mode.name());
+                assertTrue(sampleService.offerReceived(roomId, peer2, roomSession2), mode.name());
+                assertState(roomId, peer2, roomSession2, FIRST_OFFER_RECEIVED);
+                assertFalse(sampleService.offerReceived(roomId, peer2, roomSession1), mode.name());
+            } finally {
+                sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            }
+        }
+    }
+
+    private void assertNotExists(String roomId, String peerId, String roomSessionId) {
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
+        assertNull(dto);
+    }
+
+    private void assertState(String roomId, String peerId, String roomSessionId, RoomMediaSessionState state) {
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
+        assertNotNull(dto);
+        assertEquals(state, dto.getState());
+    }
+}
@@ -0,0 +1,74 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LatencyInjectingDataSourceTests {
+
+    @Test
+    void roundTripPerExecuteCommitAndRollback() throws Exception {
+        AtomicInteger roundTrips = new AtomicInteger();
+        LatencyInjector latencyInjector = new LatencyInjector() {
+            @Override
+            public void roundTrip() {
+                roundTrips.incrementAndGet();
+            }
+        };
+        DataSource dataSource = new LatencyInjectingDataSource(stub(DataSource.class), () -> latencyInjector);
+
+        try (Connection connection = dataSource.getConnection()) {
+            PreparedStatement statement = connection.prepareStatement("select 1");
+            statement.setString(1, "not a round trip");
+            statement.executeQuery();
+            statement.executeUpdate();
+            connection.commit();
+            connection.rollback();
+        }
+
+        assertEquals(4, roundTrips.get());
+    }
+
+    @Test
+    void distributionsKeepTheMean() {
+        for (LatencyDistribution distribution : LatencyDistribution.values()) {
+            double sum = 0;
+            int samples = 200_000;
+            for (int i = 0; i < samples; i++) {
+                sum += distribution.sampleMillis(30, 10);
+            }
+            assertEquals(30, sum / samples, 0.5, distribution.name());
+        }
+    }
+
+    /**
+     * Every call returns a stub of the return type, or null for non-JDBC types.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> type) {
+        return (T) Proxy.newProxyInstance(
+                LatencyInjectingDataSourceTests.class.getClassLoader(),
+                new Class<?>[]{type},
+                (proxy, method, args) -> {
+                    Class<?> returnType = method.getReturnType();
+                    if (returnType.isInterface() && returnType.getPackageName().equals("java.sql")) {
+                        return stub(returnType);
+                    }
+                    if (returnType == int.class) {
+                        return 0;
+                    }
+                    if (returnType == boolean.class) {
+                        return false;
+                    }
+                    return null;
+                }
+        );
+    }
+}
@@ -0,0 +1,67 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoomLanesTests {
+
+    private RoomLanes roomLanes;
+    private ExecutorService callers;
+
+    @BeforeEach
+    void setUp() {
+        roomLanes = new RoomLanes();
+        roomLanes.meterRegistry = new SimpleMeterRegistry();
+        roomLanes.start();
+        callers = Executors.newFixedThreadPool(16);
+    }
+
+    @AfterEach
+    void tearDown() {
+        callers.shutdownNow();
+        roomLanes.stop();
+    }
+
+    /**
+     * Tasks of one room submitted from many threads at once never overlap and all run on the same lane thread.
+     */
+    @Test
+    void tasksOfOneRoomRunSerially() throws Exception {
+        String roomId = UUID.randomUUID().toString();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Set<String> laneThreads = ConcurrentHashMap.newKeySet();
+
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            int task = i;
+            results.add(callers.submit(() -> roomLanes.execute(roomId, () -> {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                laneThreads.add(Thread.currentThread().getName());
+                Thread.sleep(1);
+                inFlight.decrementAndGet();
+                return task;
+            })));
+        }
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(i, results.get(i).get());
+        }
+
+        assertEquals(1, maxInFlight.get());
+        assertEquals(1, laneThreads.size());
+    }
+}
@@ -0,0 +1,131 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RoomSessionCacheTests {
+
+    protected SimpleMeterRegistry meterRegistry;
+
+    protected RoomSessionCache cache;
+
+    @BeforeEach
+    void setUp() {
+        meterRegistry = new SimpleMeterRegistry();
+        cache = new RoomSessionCache();
+        cache.meterRegistry = meterRegistry;
+        cache.registerMeters();
+        cache.setEnabled(true);
+    }
+
+    @Test
+    void secondReadIsServedFromCache() {
+        AtomicInteger loads = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            assertEquals("rs1", cache.getLatestRoomSessionId("room", roomId -> {
+                loads.incrementAndGet();
+                return "rs1";
+            }));
+        }
+
+        assertEquals(1, loads.get());
+        assertEquals(2.0, meterRegistry.counter("room.session.cache.hits").count());
+        assertEquals(1.0, meterRegistry.counter("room.session.cache.misses").count());
+    }
+
+    @Test
+    void unchangedWriteIsSkipped() {
+        List<String> written = new ArrayList<>();
+        cache.setLatestRoomSessionId("room", "rs1", (roomId, rsid) -> written.add(rsid));
+        cache.setLatestRoomSessionId("room", "rs1", (roomId, rsid) -> written.add(rsid));
+        cache.setLatestRoomSessionId("room", "rs2", (roomId, rsid) -> written.add(rsid));
+
+        assertEquals(List.of("rs1", "rs2"), written);
+        assertEquals(1.0, meterRegistry.counter("room.session.cache.skipped.writes").count());
+        assertEquals("rs2", cache.getLatestRoomSessionId("room", roomId -> "from db"));
+    }
+
+    @Test
+    void loadDoesNotOverwriteConcurrentWrite() {
+        String loaded = cache.getLatestRoomSessionId("room", roomId -> {
+            //another transition writes while this read is in flight
+            cache.written(roomId, "rs2");
+            return "rs1";
+        });
+
+        assertEquals("rs1", loaded);
+        assertEquals("rs2", cache.getLatestRoomSessionId("room", roomId -> "from db"));
+    }
+
+    @Test
+    void evictsLeastRecentlyReadRooms() {
+        cache.maxSize = 10;
+        for (int i = 0; i < 10; i++) {
+            cache.written("room" + i, "rs" + i);
+        }
+        assertEquals("rs0", cache.getLatestRoomSessionId("room0", roomId -> "from db"));
+
+        //goes over max size, evicts down to 9 rooms
+        cache.written("room10", "rs10");
+
+        assertEquals(9.0, meterRegistry.get("room.session.cache.size").gauge().value());
+        assertEquals("rs0", cache.getLatestRoomSessionId("room0", roomId -> "from db"));
+        assertEquals("rs10", cache.getLatestRoomSessionId("room10", roomId -> "from db"));
+        assertEquals("from db", cache.getLatestRoomSessionId("room1", roomId -> "from db"));
+    }
+
+    /**
+     * A load of one room in flight doesn't hold up reads and writes of the other rooms.
+     */
+    @Test
+    void slowLoadDoesNotBlockOtherRooms() throws Exception {
+        cache.written("other", "rs1");
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> slow = executor.submit(() -> cache.getLatestRoomSessionId("room", roomId -> {
+                loading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return "rs1";
+            }));
+            assertTrue(loading.await(5, TimeUnit.SECONDS));
+
+            assertEquals("rs1", cache.getLatestRoomSessionId("other", roomId -> "from db"));
+            cache.written("other", "rs2");
+            assertEquals("rs2", cache.getLatestRoomSessionId("other", roomId -> "from db"));
+
+            release.countDown();
+            assertEquals("rs1", slow.get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void disabledCacheGoesToDatabase() {
+        cache.setEnabled(false);
+        AtomicInteger loads = new AtomicInteger();
+        cache.getLatestRoomSessionId("room", roomId -> "rs" + loads.incrementAndGet());
+        cache.getLatestRoomSessionId("room", roomId -> "rs" + loads.incrementAndGet());
+
+        assertEquals(2, loads.get());
+    }
+}
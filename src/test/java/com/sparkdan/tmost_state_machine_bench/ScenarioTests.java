@@ -0,0 +1,104 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.DefaultResourceLoader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScenarioTests {
+
+    private static ScenarioLoader loader() {
+        ScenarioLoader loader = new ScenarioLoader();
+        loader.resourceLoader = new DefaultResourceLoader();
+        return loader;
+    }
+
+    @Test
+    void bundledScenariosLoad() throws Exception {
+        Scenario defaultScenario = loader().load("classpath:scenarios/default.yaml");
+        assertEquals("default", defaultScenario.getName());
+        assertEquals(40, defaultScenario.getRoomSize().sample());
+
+        Scenario mix = loader().load("classpath:scenarios/production-mix.yaml");
+        assertEquals(Scenario.RoomSizeDistribution.LOG_UNIFORM, mix.getRoomSize().getDistribution());
+        for (int i = 0; i < 10_000; i++) {
+            int size = mix.getRoomSize().sample();
+            assertTrue(size >= 2 && size <= 300, "room size " + size);
+        }
+    }
+
+    @Test
+    void invalidRoomSizeRejected() {
+        Scenario scenario = new Scenario();
+        scenario.getRoomSize().setMin(0);
+        assertThrows(IllegalArgumentException.class, scenario::validate);
+    }
+
+    private static ScenarioDriver inMemoryDriver() {
+        SampleService sampleService = new SampleService();
+        sampleService.meterRegistry = new SimpleMeterRegistry();
+        sampleService.roomMediaSessionDao = new InMemoryRoomMediaSessionStore(16);
+        sampleService.roomSessionCache = new RoomSessionCache();
+        sampleService.roomSessionCache.meterRegistry = sampleService.meterRegistry;
+        sampleService.roomSessionCache.registerMeters();
+        sampleService.transitionRecorder = new TransitionRecorder();
+        sampleService.callTracer = new CallTracer();
+        sampleService.callTracer.meterRegistry = sampleService.meterRegistry;
+        sampleService.registerMeters();
+
+        ScenarioDriver driver = new ScenarioDriver();
+        driver.sampleService = sampleService;
+        driver.dao = sampleService.roomMediaSessionDao;
+        return driver;
+    }
+
+    @Test
+    void productionMixRunsAgainstInMemoryStore() throws Exception {
+        Scenario scenario = loader().load("classpath:scenarios/production-mix.yaml");
+        scenario.setJoinIntervalMillis(0);
+        scenario.setLeaveIntervalMillis(0);
+        scenario.getRoomSize().setMax(20);
+
+        ScenarioDriver driver = inMemoryDriver();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int i = 0; i < 5; i++) {
+                driver.runRoom(scenario, executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void reconnectStormReconnectsEveryone() {
+        Scenario scenario = new Scenario();
+        scenario.getRoomSize().setMin(10);
+        scenario.setReconnectStorms(2);
+        scenario.setSessionSwitches(0);
+        scenario.setLeaveAtEnd(false);
+
+        ScenarioDriver driver = inMemoryDriver();
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ScenarioDriver.Room room = driver.runRoom(scenario, executor);
+
+            assertEquals(10, room.peerIds.size());
+            assertEquals(room.roomSessionId, driver.dao.getLatestRoomSessionId(room.roomId));
+            for (String peerId : room.peerIds) {
+                RoomMediaSessionDto dto = driver.dao.findByPrimaryKey(room.roomId, room.roomSessionId, peerId);
+                assertNotNull(dto);
+                assertEquals(RoomMediaSessionState.CONNECTED, dto.getState());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.joda.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionDao.UNKNOWN_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SpringBootTest
+class SessionArchiverTests {
+
+    @Autowired
+    protected SampleService sampleService;
+
+    @Autowired
+    protected RoomMediaSessionDao dao;
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    protected NamedParameterJdbcTemplate namedJdbcTemplate;
+
+    private SessionArchiver archiver;
+
+    private final String roomId = UUID.randomUUID().toString();
+    private final String peer1 = UUID.randomUUID().toString();
+    private final String peer2 = UUID.randomUUID().toString();
+    private final String peer3 = UUID.randomUUID().toString();
+    private final String roomSession1 = UUID.randomUUID().toString();
+    private final String roomSession2 = UUID.randomUUID().toString();
+
+    @BeforeEach
+    void setUp() {
+        archiver = new SessionArchiver();
+        archiver.meterRegistry = new SimpleMeterRegistry();
+        archiver.namedJdbcTemplate = namedJdbcTemplate;
+        //everything finished so far, in batches of 2
+        archiver.ageMillis = -60000;
+        archiver.batchSize = 2;
+        archiver.maxRowsPerSecond = 1_000_000;
+        archiver.registerMeters();
+
+        //room session 1 is switched away from and is all DISCONNECTED, every peer has a reconnect signal
+        dao.createRoom(roomId);
+        for (String peerId : List.of(peer1, peer2, peer3)) {
+            sampleService.connected(roomId, peerId, roomSession1);
+        }
+        sampleService.offerReceived(roomId, peer1, roomSession2);
+    }
+
+    @Test
+    void movesFinishedMediaSessionsInBatches() {
+        int moved = archiver.archive();
+        //the finished media sessions of other tests go as well
+        assertTrue(moved >= 3);
+        assertEquals(moved, archiver.meterRegistry.counter("archive.rows").count());
+
+        for (String peerId : List.of(peer1, peer2, peer3)) {
+            assertNull(dao.findByPrimaryKey(roomId, roomSession1, peerId));
+        }
+        assertEquals(3, jdbcTemplate.queryForObject("""
+                        select count(*) from room_media_sessions_history
+                        where room_id = ? and room_session_id = ? and state = 'DISCONNECTED'
+                        """,
+                Integer.class, roomId, roomSession1));
+        assertState(roomId, peer1, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, peer2, UNKNOWN_ROOM_SESSION_ID, CREATED);
+    }
+
+    @Test
+    void archivedRoomSessionStaysStale() {
+        archiver.archive();
+        assertFalse(dao.isBrandNewRoomSession(roomId, roomSession1));
+
+        for (UpsertMode mode : List.of(UpsertMode.NO_LOCKS, UpsertMode.SINGLE_STATEMENT,
+                UpsertMode.STORED_FUNCTIONS, UpsertMode.PIPELINED, UpsertMode.OPTIMISTIC)) {
+            sampleService.setUpsertMode(mode);
+            try {
+                assertFalse(sampleService.offerReceived(roomId, peer2, roomSession1), mode.name());
+                assertEquals(Map.of(peer3, false),
+                        sampleService.offersReceived(roomId, roomSession1, List.of(peer3)), mode.name());
+            } finally {
+                sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            }
+        }
+        //the stale checks of the statements themselves
+        assertEquals(UpsertOutcome.STALE, dao.upsertInSingleStatement(
+                UpsertRMSRequest.firstOffer(roomId, peer2, roomSession1, Instant.now())));
+        assertEquals(Map.of(peer3, UpsertOutcome.STALE), dao.upsertFirstOffers(roomId, roomSession1, List.of(peer3)));
+
+        assertEquals(roomSession2, dao.getLatestRoomSessionId(roomId));
+        assertNull(dao.findByPrimaryKey(roomId, roomSession1, peer2));
+    }
+
+    private void assertState(String roomId, String peerId, String roomSessionId, RoomMediaSessionState state) {
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
+        assertNotNull(dto);
+        assertEquals(state, dto.getState());
+    }
+}
@@ -0,0 +1,76 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.util.UUID;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.joda.time.Instant;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class StalledSessionReaperTests {
+
+    private InMemoryRoomMediaSessionStore dao;
+    private MeterRegistry meterRegistry;
+    private StalledSessionReaper reaper;
+
+    private final String roomId = UUID.randomUUID().toString();
+    private final String oldRoomSessionId = UUID.randomUUID().toString();
+
+    @BeforeEach
+    void setUp() {
+        dao = new InMemoryRoomMediaSessionStore(16);
+        meterRegistry = new SimpleMeterRegistry();
+        reaper = new StalledSessionReaper();
+        reaper.meterRegistry = meterRegistry;
+        reaper.roomMediaSessionDao = dao;
+        dao.createRoom(roomId);
+    }
+
+    private String connectedToOldRoomSession() {
+        String peerId = UUID.randomUUID().toString();
+        dao.created(roomId, peerId);
+        dao.updateCreatedRoomSession(UpsertRMSRequest.connected(roomId, peerId, oldRoomSessionId, Instant.now()));
+        return peerId;
+    }
+
+    @Test
+    void reapsSwitchedRoomSessionsAndExpiredReconnectSignals() {
+        String connectedPeer = connectedToOldRoomSession();
+        String silentPeer = UUID.randomUUID().toString();
+        dao.created(roomId, silentPeer);
+        dao.setLatestRoomSessionId(roomId, UUID.randomUUID().toString());
+
+        reaper.createdTimeoutMillis = -1000;
+        reaper.registerMeters();
+        assertEquals(2, reaper.reap());
+
+        assertEquals(DISCONNECTED, dao.findByPrimaryKey(roomId, oldRoomSessionId, connectedPeer).getState());
+        assertEquals(CREATED, dao.findByPrimaryKey(roomId, null, connectedPeer).getState());
+        assertNull(dao.findByPrimaryKey(roomId, null, silentPeer));
+        assertEquals(1, meterRegistry.counter("reaper.disconnected").count());
+        assertEquals(1, meterRegistry.counter("reaper.expired").count());
+        assertEquals(1, meterRegistry.counter("reaper.recreated").count());
+
+        //the fresh reconnect signal stays
+        reaper.createdTimeoutMillis = 60000;
+        assertEquals(0, reaper.reap());
+    }
+
+    @Test
+    void rateLimited() {
+        connectedToOldRoomSession();
+        connectedToOldRoomSession();
+        dao.setLatestRoomSessionId(roomId, UUID.randomUUID().toString());
+
+        reaper.maxRowsPerSecond = 1;
+        reaper.registerMeters();
+        assertEquals(1, reaper.reap());
+        assertEquals(0, reaper.reap());
+    }
+}
@@ -1,10 +1,29 @@
 package com.sparkdan.tmost_state_machine_bench;
 
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.joda.time.Instant;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionDao.UNKNOWN_ROOM_SESSION_ID;
 import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
@@ -12,8 +31,10 @@ import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREAT
 import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
 import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 
 @SpringBootTest
@@ -25,6 +46,21 @@ class TmostStateMachineBenchApplicationTests {
     @Autowired
     protected RoomMediaSessionDao dao;
 
+    @Autowired
+    protected TransactionTemplate transactionTemplate;
+
+    @Autowired
+    protected JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    protected JdbcRoomMediaSessionDao jdbcDao;
+
+    @Autowired
+    protected MeterRegistry meterRegistry;
+
+    @Autowired
+    protected OptimisticUpsertStrategy optimisticUpsertStrategy;
+
     @Test
     void persistWorks() {
         String roomId = UUID.randomUUID().toString();
@@ -33,27 +69,27 @@ class TmostStateMachineBenchApplicationTests {
         dao.createRoom(roomId);
         sampleService.createSession(roomId, peerId);
 
-        RoomMediaSessionDto dto = dao.findByPrimaryKey(UNKNOWN_ROOM_SESSION_ID, peerId);
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, UNKNOWN_ROOM_SESSION_ID, peerId);
         assertNotNull(dto);
         assertEquals(CREATED, dto.getState());
 
         sampleService.offerReceived(roomId, peerId, roomSessionId);
-        dto = dao.findByPrimaryKey(roomSessionId, peerId);
+        dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNotNull(dto);
         assertEquals(FIRST_OFFER_RECEIVED, dto.getState());
 
         sampleService.connected(roomId, peerId, roomSessionId);
-        dto = dao.findByPrimaryKey(roomSessionId, peerId);
+        dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNotNull(dto);
         assertEquals(CONNECTED, dto.getState());
 
         sampleService.offerReceived(roomId, peerId, roomSessionId);
-        dto = dao.findByPrimaryKey(roomSessionId, peerId);
+        dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNotNull(dto);
         assertEquals(CONNECTED, dto.getState());
 
         sampleService.disconnected(roomId, peerId, roomSessionId);
-        dto = dao.findByPrimaryKey(roomSessionId, peerId);
+        dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNotNull(dto);
         assertEquals(DISCONNECTED, dto.getState());
 
@@ -73,29 +109,301 @@ class TmostStateMachineBenchApplicationTests {
         sampleService.connected(roomId, peer2, roomSession1);
         sampleService.disconnected(roomId, discoPeer, roomSession1);
 
-        assertState(peer1, roomSession1, CONNECTED);
-        assertState(peer2, roomSession1, CONNECTED);
-        assertState(discoPeer, roomSession1, DISCONNECTED);
+        assertState(roomId, peer1, roomSession1, CONNECTED);
+        assertState(roomId, peer2, roomSession1, CONNECTED);
+        assertState(roomId, discoPeer, roomSession1, DISCONNECTED);
 
         String roomSession2 = UUID.randomUUID().toString();
         sampleService.offerReceived(roomId, peer1, roomSession2);
 
-        assertState(peer1, roomSession1, DISCONNECTED);
-        assertState(peer2, roomSession1, DISCONNECTED);
+        assertState(roomId, peer1, roomSession1, DISCONNECTED);
+        assertState(roomId, peer2, roomSession1, DISCONNECTED);
+
+        assertNotExists(roomId, discoPeer, UNKNOWN_ROOM_SESSION_ID);
+        assertState(roomId, peer1, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, peer2, UNKNOWN_ROOM_SESSION_ID, CREATED);
+
+    }
+
+    /**
+     * The lifecycle and the room session switch of every upsert mode.
+     */
+    @ParameterizedTest
+    @EnumSource(UpsertMode.class)
+    public void testUpsertMode(UpsertMode upsertMode) {
+        sampleService.setUpsertMode(upsertMode);
+        try {
+            persistWorks();
+            testReconnectSignalled();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    /**
+     * Transitions of one peer racing each other: every one of them lands, the losers of a race retry.
+     */
+    @Test
+    public void testOptimisticConcurrentTransitions() throws Exception {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.createSession(roomId, peerId);
+        Counter rowConflicts = meterRegistry.counter("optimistic.conflicts", "on", "room_media_sessions");
+        double rowConflictsBefore = rowConflicts.count();
+        DistributionSummary retries = meterRegistry.get("optimistic.retries").summary();
+        double retriesBefore = retries.totalAmount();
+
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        int maxAttempts = optimisticUpsertStrategy.maxAttempts;
+        optimisticUpsertStrategy.maxAttempts = 1000;
+        sampleService.setUpsertMode(UpsertMode.OPTIMISTIC);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < threads * 20; i++) {
+                boolean offer = i % 2 == 0;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    return offer
+                            ? sampleService.offerReceived(roomId, peerId, roomSessionId)
+                            : sampleService.connected(roomId, peerId, roomSessionId);
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            optimisticUpsertStrategy.maxAttempts = maxAttempts;
+            executor.shutdownNow();
+        }
+
+        assertState(roomId, peerId, roomSessionId, CONNECTED);
+        assertEquals(roomSessionId, dao.getLatestRoomSessionId(roomId));
+        assertTrue(rowConflicts.count() > rowConflictsBefore);
+        assertTrue(retries.totalAmount() > retriesBefore);
+    }
+
+    /**
+     * A switch of the room session that commits between the read of the room and the row write: the transition
+     * is retried and turns out to be stale instead of landing in the previous room session.
+     */
+    @Test
+    public void testOptimisticRetriesOnRoomSessionSwitch() throws Exception {
+        String roomId = UUID.randomUUID().toString();
+        String connectedPeer = UUID.randomUUID().toString();
+        String createdPeer = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.connected(roomId, connectedPeer, roomSession1);
+        sampleService.createSession(roomId, createdPeer);
+        Counter roomConflicts = meterRegistry.counter("optimistic.conflicts", "on", "rooms");
+        double roomConflictsBefore = roomConflicts.count();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        RoomMediaSessionDao strategyDao = optimisticUpsertStrategy.roomMediaSessionDao;
+        AtomicBoolean switched = new AtomicBoolean();
+        optimisticUpsertStrategy.roomMediaSessionDao = (RoomMediaSessionDao) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{RoomMediaSessionDao.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("compareAndSetRoomMediaSession")
+                        && switched.compareAndSet(false, true)) {
+                        //committed by another connection
+                        executor.submit(() -> dao.setLatestRoomSessionId(roomId, roomSession2)).get();
+                    }
+                    return method.invoke(strategyDao, args);
+                }
+        );
+        sampleService.setUpsertMode(UpsertMode.OPTIMISTIC);
+        try {
+            assertFalse(sampleService.connected(roomId, createdPeer, roomSession1));
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            optimisticUpsertStrategy.roomMediaSessionDao = strategyDao;
+            executor.shutdownNow();
+        }
+
+        assertState(roomId, createdPeer, UNKNOWN_ROOM_SESSION_ID, CREATED);
+        assertNotExists(roomId, createdPeer, roomSession1);
+        assertEquals(roomConflictsBefore + 1, roomConflicts.count());
+    }
+
+    /**
+     * Every write of a row bumps its version and every room session switch bumps the version of the room,
+     * whichever mode wrote them, so an optimistic writer racing them never misses the write.
+     */
+    @ParameterizedTest
+    @EnumSource(value = UpsertMode.class, names = {"NO_LOCKS", "SINGLE_STATEMENT", "STORED_FUNCTIONS", "PIPELINED"})
+    public void testVersionsAdvance(UpsertMode upsertMode) {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.setUpsertMode(upsertMode);
+        try {
+            sampleService.createSession(roomId, peerId);
+            long roomVersion = dao.readVersionedRoom(roomId).version();
+
+            sampleService.offerReceived(roomId, peerId, roomSession1);
+            assertEquals(roomVersion + 1, dao.readVersionedRoom(roomId).version());
+            long rowVersion = dao.findByPrimaryKey(roomId, roomSession1, peerId).getVersion();
 
-        assertNotExists(discoPeer, UNKNOWN_ROOM_SESSION_ID);
-        assertState(peer1, roomSession2, FIRST_OFFER_RECEIVED);
-        assertState(peer2, UNKNOWN_ROOM_SESSION_ID, CREATED);
+            sampleService.connected(roomId, peerId, roomSession1);
+            assertTrue(dao.findByPrimaryKey(roomId, roomSession1, peerId).getVersion() > rowVersion);
+            rowVersion = dao.findByPrimaryKey(roomId, roomSession1, peerId).getVersion();
+
+            sampleService.offerReceived(roomId, peerId, roomSession2);
+            assertEquals(roomVersion + 2, dao.readVersionedRoom(roomId).version());
+            assertTrue(dao.findByPrimaryKey(roomId, roomSession1, peerId).getVersion() > rowVersion);
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    @Test
+    public void testOffersReceived() {
+        String roomId = UUID.randomUUID().toString();
+        String connectedPeer = UUID.randomUUID().toString();
+        String createdPeer = UUID.randomUUID().toString();
+        String newPeer = UUID.randomUUID().toString();
+        String roomSession1 = UUID.randomUUID().toString();
+        String roomSession2 = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+
+        sampleService.connected(roomId, connectedPeer, roomSession1);
+        sampleService.createSession(roomId, createdPeer);
+        Map<String, Boolean> accepted = sampleService.offersReceived(roomId, roomSession2,
+                List.of(connectedPeer, createdPeer, newPeer));
+
+        assertEquals(Map.of(connectedPeer, true, createdPeer, true, newPeer, true), accepted);
+        assertState(roomId, connectedPeer, roomSession1, DISCONNECTED);
+        assertState(roomId, connectedPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, createdPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertState(roomId, newPeer, roomSession2, FIRST_OFFER_RECEIVED);
+        assertNotExists(roomId, createdPeer, UNKNOWN_ROOM_SESSION_ID);
+        assertEquals(roomSession2, dao.getLatestRoomSessionId(roomId));
+
+        //offers to the previous room session are not accepted anymore
+        assertEquals(Map.of(connectedPeer, false),
+                sampleService.offersReceived(roomId, roomSession1, List.of(connectedPeer)));
+    }
+
+    @Test
+    public void testOffersReceivedInBulk() {
+        sampleService.setUpsertMode(UpsertMode.SINGLE_STATEMENT);
+        try {
+            testOffersReceived();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+        }
+    }
+
+    /**
+     * The media session of the peer is inserted by a transaction the bulk upsert doesn't see yet: moving the CREATED
+     * row onto it fails once that transaction commits, and the peer is retried on its own.
+     */
+    @Test
+    public void testOffersReceivedInBulkRetriesLostRace() throws Exception {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.createSession(roomId, peerId);
+
+        CountDownLatch inserted = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> concurrentInsert = executor.submit(() -> transactionTemplate.executeWithoutResult(status -> {
+            dao.insertOrDoNothing(UpsertRMSRequest.firstOffer(roomId, peerId, roomSessionId, Instant.now()));
+            inserted.countDown();
+            waitForBlockedStatement();
+        }));
+        sampleService.setUpsertMode(UpsertMode.SINGLE_STATEMENT);
+        try {
+            inserted.await();
+            assertEquals(Map.of(peerId, true), sampleService.offersReceived(roomId, roomSessionId, List.of(peerId)));
+            concurrentInsert.get();
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            executor.shutdownNow();
+        }
+
+        assertState(roomId, peerId, roomSessionId, FIRST_OFFER_RECEIVED);
+        //the failed statement is rolled back as a whole
+        assertState(roomId, peerId, UNKNOWN_ROOM_SESSION_ID, CREATED);
+    }
+
+    /**
+     * Repeated offers to a CONNECTED media session, one by one and in bulk, leave the row and the room as they are.
+     */
+    @Test
+    public void testWriteAvoidanceSkipsRepeatedOffers() {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        sampleService.createSession(roomId, peerId);
+        sampleService.offerReceived(roomId, peerId, roomSessionId);
+        sampleService.connected(roomId, peerId, roomSessionId);
+        long version = version(roomSessionId, peerId);
+        long roomVersion = roomVersion(roomId);
+        Counter skipped = meterRegistry.counter("dao.writes.skipped", "table", "room_media_sessions");
+        double skippedBefore = skipped.count();
+
+        jdbcDao.writeAvoidance = true;
+        try {
+            assertTrue(sampleService.offerReceived(roomId, peerId, roomSessionId));
+            sampleService.setUpsertMode(UpsertMode.SINGLE_STATEMENT);
+            assertEquals(Map.of(peerId, true), sampleService.offersReceived(roomId, roomSessionId, List.of(peerId)));
+        } finally {
+            sampleService.setUpsertMode(UpsertMode.NO_LOCKS);
+            jdbcDao.writeAvoidance = false;
+        }
+
+        assertState(roomId, peerId, roomSessionId, CONNECTED);
+        assertEquals(version, version(roomSessionId, peerId));
+        assertEquals(roomVersion, roomVersion(roomId));
+        assertEquals(skippedBefore + 2, skipped.count());
+    }
+
+    private long version(String roomSessionId, String peerId) {
+        return jdbcTemplate.queryForObject(
+                "select version from room_media_sessions where room_session_id = ? and peer_id = ?",
+                Long.class, roomSessionId, peerId);
+    }
+
+    private long roomVersion(String roomId) {
+        return jdbcTemplate.queryForObject("select version from rooms where room_id = ?", Long.class, roomId);
+    }
 
+    /**
+     * Until some other backend waits for a transaction lock, e.g. on the unique index.
+     */
+    private void waitForBlockedStatement() {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "select exists (select 1 from pg_locks where locktype = 'transactionid' and not granted)",
+                Boolean.class))) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("Nothing got blocked by the concurrent insert");
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
     }
 
-    private void assertNotExists(String peerId, String roomSessionId) {
-        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomSessionId, peerId);
+    private void assertNotExists(String roomId, String peerId, String roomSessionId) {
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNull(dto);
     }
 
-    private void assertState(String peerId, String roomSessionId, RoomMediaSessionState state) {
-        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomSessionId, peerId);
+    private void assertState(String roomId, String peerId, String roomSessionId, RoomMediaSessionState state) {
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
         assertNotNull(dto);
         assertEquals(state, dto.getState());
     }
@@ -0,0 +1,100 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TransitionRecorderTests {
+
+    @Test
+    void writesOutcomesPerSecondAndType() throws Exception {
+        TransitionRecorder recorder = new TransitionRecorder();
+        recorder.capacity = 3;
+        recorder.warmupMillis = 0;
+
+        recorder.record(TransitionType.CONNECTED, 0, 1, TransitionOutcome.ACCEPTED);
+        recorder.start();
+        long now = System.nanoTime();
+        recorder.record(TransitionType.CONNECTED, now, now + 2_000_000, TransitionOutcome.ACCEPTED);
+        recorder.record(TransitionType.CONNECTED, now, now + 2_000_000, TransitionOutcome.REJECTED);
+        recorder.record(TransitionType.OFFER_RECEIVED, now, now + 1_000_000, TransitionOutcome.FAILED);
+        recorder.record(TransitionType.DISCONNECTED, now, now + 1_000_000, TransitionOutcome.ACCEPTED);
+        recorder.stop();
+
+        String suffix = "test_" + UUID.randomUUID();
+        File cps = new File("ipnb/cps_" + suffix + ".csv");
+        File transitions = new File("ipnb/transitions_" + suffix + ".csv");
+        try {
+            recorder.writeResults(suffix);
+
+            List<String> cpsLines = FileUtils.readLines(cps, StandardCharsets.UTF_8);
+            assertEquals(2, cpsLines.size());
+            assertTrue(cpsLines.get(1).endsWith(",2"), cpsLines.get(1));
+
+            //the last record didn't fit into the capacity
+            List<String> transitionLines = FileUtils.readLines(transitions, StandardCharsets.UTF_8);
+            assertEquals(3, transitionLines.size());
+            assertTrue(transitionLines.stream().anyMatch(line -> line.contains(",offerReceived,0,0,1,")));
+            assertTrue(transitionLines.stream().anyMatch(line -> line.contains(",connected,1,1,0,")));
+        } finally {
+            for (String prefix : List.of("cps_", "connections_", "transitions_", "pool_")) {
+                FileUtils.deleteQuietly(new File("ipnb/" + prefix + suffix + ".csv"));
+            }
+        }
+    }
+
+    /**
+     * A locale with a decimal comma must not split the latency columns of the csv.
+     */
+    @Test
+    void writesLatenciesWithDecimalPoint() throws Exception {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.GERMANY);
+        TransitionRecorder recorder = new TransitionRecorder();
+        recorder.capacity = 1;
+        recorder.warmupMillis = 0;
+        recorder.start();
+        long now = System.nanoTime();
+        recorder.record(TransitionType.CONNECTED, now, now + 1_500_000, TransitionOutcome.ACCEPTED);
+        recorder.stop();
+
+        String suffix = "test_" + UUID.randomUUID();
+        File transitions = new File("ipnb/transitions_" + suffix + ".csv");
+        try {
+            recorder.writeResults(suffix);
+
+            List<String> transitionLines = FileUtils.readLines(transitions, StandardCharsets.UTF_8);
+            assertEquals(2, transitionLines.size());
+            assertEquals(transitionLines.get(0).split(",").length, transitionLines.get(1).split(",").length,
+                    transitionLines.get(1));
+            assertTrue(transitionLines.get(1).contains(".5"), transitionLines.get(1));
+        } finally {
+            Locale.setDefault(defaultLocale);
+            for (String prefix : List.of("cps_", "connections_", "transitions_", "pool_")) {
+                FileUtils.deleteQuietly(new File("ipnb/" + prefix + suffix + ".csv"));
+            }
+        }
+    }
+
+    @Test
+    void rejectsCapacityPastIntOffsets() {
+        TransitionRecorder recorder = new TransitionRecorder();
+        recorder.capacity = TransitionRecorder.MAX_CAPACITY;
+        assertDoesNotThrow(recorder::checkCapacity);
+
+        recorder.capacity = TransitionRecorder.MAX_CAPACITY + 1;
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class, recorder::checkCapacity);
+        assertTrue(e.getMessage().contains("recorder.capacity=" + (TransitionRecorder.MAX_CAPACITY + 1)),
+                e.getMessage());
+    }
+}
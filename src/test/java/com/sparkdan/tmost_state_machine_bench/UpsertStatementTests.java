@@ -0,0 +1,84 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+import org.joda.time.Instant;
+import org.junit.jupiter.api.Test;
+
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_BY_ROOM_SESSION_ID;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT;
+import static com.sparkdan.tmost_state_machine_bench.JdbcRoomMediaSessionDao.UPDATE_CREATED_ROOM_SESSION_STATEMENT;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UpsertStatementTests {
+
+    @Test
+    void updatedStatesInlinedByOrdinal() {
+        UpsertStatement statement = UpsertStatement.compile(UPDATE_BY_ROOM_SESSION_ID);
+        String sql = statement.sql(UpsertRMSRequest.firstOffer("room", "peer", "rs", Instant.now()));
+
+        assertTrue(sql.contains("in ('CREATED', 'FIRST_OFFER_RECEIVED', 'ARCHIVED')"), sql);
+        assertFalse(sql.contains(":"), sql);
+        assertArrayEquals(new int[0], statement.positions("expected_version"));
+    }
+
+    @Test
+    void bindsEveryPosition() throws Exception {
+        Instant now = Instant.now();
+        UpsertRMSRequest request = UpsertRMSRequest.connected("room", "peer", "rs", now);
+        String sql = UPDATE_CREATED_ROOM_SESSION_STATEMENT.sql(request);
+
+        Map<Integer, Object> bound = bind(UPDATE_CREATED_ROOM_SESSION_STATEMENT, request);
+
+        assertEquals(positions(sql), List.copyOf(bound.keySet()));
+        assertTrue(bound.containsValue("CONNECTED"));
+        assertTrue(bound.containsValue(new Timestamp(now.getMillis())));
+
+        int[] disconnectedAt = UPDATE_CREATED_ROOM_SESSION_STATEMENT.positions(
+                JdbcRoomMediaSessionDao.COL_DISCONNECTED_AT);
+        assertEquals(2, disconnectedAt.length);
+        assertNull(bound.get(disconnectedAt[0]));
+    }
+
+    @Test
+    void changeGuardBound() throws Exception {
+        UpsertRMSRequest request = UpsertRMSRequest.firstOffer("room", "peer", "rs", Instant.now());
+        String sql = UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT.sql(request);
+
+        assertTrue(sql.contains("in ('CREATED', 'FIRST_OFFER_RECEIVED', 'ARCHIVED') and"), sql);
+        Map<Integer, Object> bound = bind(UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT, request);
+        assertEquals(positions(sql), List.copyOf(bound.keySet()));
+        //the update and the matched count
+        assertEquals(2, UPDATE_BY_ROOM_SESSION_ID_IF_CHANGED_STATEMENT.positions(
+                JdbcRoomMediaSessionDao.COL_PEER_ID).length);
+    }
+
+    private static Map<Integer, Object> bind(UpsertStatement statement, UpsertRMSRequest request) throws Exception {
+        Map<Integer, Object> bound = new TreeMap<>();
+        PreparedStatement ps = (PreparedStatement) Proxy.newProxyInstance(
+                UpsertStatementTests.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class},
+                (proxy, method, args) -> {
+                    bound.put((Integer) args[0], method.getName().equals("setNull") ? null : args[1]);
+                    return null;
+                }
+        );
+        statement.bind(ps, request);
+        return bound;
+    }
+
+    private static List<Integer> positions(String sql) {
+        int parameters = (int) sql.chars().filter(c -> c == '?').count();
+        return IntStream.rangeClosed(1, parameters).boxed().toList();
+    }
+}
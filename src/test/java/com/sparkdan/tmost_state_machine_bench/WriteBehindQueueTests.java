@@ -0,0 +1,177 @@
+package com.sparkdan.tmost_state_machine_bench;
+
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.joda.time.Instant;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.ARCHIVED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.CREATED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.DISCONNECTED;
+import static com.sparkdan.tmost_state_machine_bench.RoomMediaSessionState.FIRST_OFFER_RECEIVED;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteBehindQueueTests {
+
+    protected InMemoryRoomMediaSessionStore dao;
+
+    protected WriteBehindQueue queue;
+
+    @BeforeEach
+    void setUp() {
+        dao = new InMemoryRoomMediaSessionStore(16);
+        queue = new WriteBehindQueue();
+        queue.meterRegistry = new SimpleMeterRegistry();
+        queue.roomMediaSessionDao = dao;
+        queue.start();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        queue.stop();
+    }
+
+    @Test
+    void offerThenConnectedCoalescesToConnected() {
+        Instant offerAt = new Instant(1000);
+        Instant connectedAt = new Instant(2000);
+        UpsertRMSRequest merged = WriteBehindQueue.coalesce(offer(offerAt), connected(connectedAt));
+
+        assertNotNull(merged);
+        assertEquals(CONNECTED, merged.getNewState());
+        assertEquals(offerAt, merged.getNewCreatedAt());
+        assertEquals(offerAt, merged.getNewFirstOfferAt());
+        assertEquals(connectedAt, merged.getNewConnectedAt());
+    }
+
+    @Test
+    void lateOfferKeepsConnected() {
+        UpsertRMSRequest merged = WriteBehindQueue.coalesce(connected(new Instant(2000)), offer(new Instant(3000)));
+
+        assertNotNull(merged);
+        assertEquals(CONNECTED, merged.getNewState());
+        assertEquals(new Instant(2000), merged.getNewFirstOfferAt());
+    }
+
+    @Test
+    void coalescedTransitionsAreFlushed() {
+        String roomId = UUID.randomUUID().toString();
+        String peerId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        dao.created(roomId, peerId);
+
+        Instant now = Instant.now();
+        queue.enqueue(request(roomId, peerId, roomSessionId, offer(now)));
+        queue.enqueue(request(roomId, peerId, roomSessionId, connected(now)));
+        queue.enqueue(request(roomId, peerId, roomSessionId, disconnected(now))).join();
+
+        RoomMediaSessionDto dto = dao.findByPrimaryKey(roomId, roomSessionId, peerId);
+        assertNotNull(dto);
+        assertEquals(DISCONNECTED, dto.getState());
+        assertEquals(roomSessionId, dao.getLatestRoomSessionId(roomId));
+    }
+
+    @Test
+    void staleWriteIsRejected() {
+        String roomId = UUID.randomUUID().toString();
+        String oldRoomSessionId = UUID.randomUUID().toString();
+        String latestRoomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        Instant now = Instant.now();
+        assertTrue(queue.enqueue(request(roomId, UUID.randomUUID().toString(), oldRoomSessionId, connected(now)))
+                .join());
+        assertTrue(queue.enqueue(request(roomId, UUID.randomUUID().toString(), latestRoomSessionId, connected(now)))
+                .join());
+
+        String latePeerId = UUID.randomUUID().toString();
+        assertFalse(queue.enqueue(request(roomId, latePeerId, oldRoomSessionId, offer(now))).join());
+        assertNull(dao.findByPrimaryKey(roomId, oldRoomSessionId, latePeerId));
+    }
+
+    @Test
+    void unexpectedFailureFailsTheBatchOnly() {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        queue.roomMediaSessionDao = (RoomMediaSessionDao) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[]{RoomMediaSessionDao.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("upsertInBatch") && failing.compareAndSet(true, false)) {
+                        throw new IllegalStateException("not a DataAccessException");
+                    }
+                    return method.invoke(dao, args);
+                }
+        );
+        String roomId = UUID.randomUUID().toString();
+        String roomSessionId = UUID.randomUUID().toString();
+        dao.createRoom(roomId);
+        Instant now = Instant.now();
+
+        assertThrows(CompletionException.class, () -> queue.enqueue(
+                request(roomId, UUID.randomUUID().toString(), roomSessionId, connected(now))).join());
+        //the flusher is still there for the next batch
+        assertTrue(queue.enqueue(request(roomId, UUID.randomUUID().toString(), roomSessionId, connected(now)))
+                .join());
+        assertEquals(1, queue.meterRegistry.counter("writebehind.failed").count());
+    }
+
+    private static UpsertRMSRequest request(String roomId, String peerId, String roomSessionId,
+                                            UpsertRMSRequest transition) {
+        transition.setRoomId(roomId);
+        transition.setPeerId(peerId);
+        transition.setRoomSessionId(roomSessionId);
+        return transition;
+    }
+
+    private static UpsertRMSRequest offer(Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId("room")
+                .roomSessionId("room-session")
+                .peerId("peer")
+                .newState(FIRST_OFFER_RECEIVED)
+                .updatedStates(List.of(CREATED, ARCHIVED, FIRST_OFFER_RECEIVED))
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .build();
+    }
+
+    private static UpsertRMSRequest connected(Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId("room")
+                .roomSessionId("room-session")
+                .peerId("peer")
+                .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED))
+                .newState(CONNECTED)
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .newConnectedAt(now)
+                .build();
+    }
+
+    private static UpsertRMSRequest disconnected(Instant now) {
+        return UpsertRMSRequest.builder()
+                .roomId("room")
+                .roomSessionId("room-session")
+                .peerId("peer")
+                .updatedStates(List.of(ARCHIVED, CREATED, FIRST_OFFER_RECEIVED, CONNECTED, DISCONNECTED))
+                .newState(DISCONNECTED)
+                .newCreatedAt(now)
+                .newFirstOfferAt(now)
+                .newConnectedAt(now)
+                .newDisconnectedAt(now)
+                .build();
+    }
+}